@@ -0,0 +1,50 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers;
+
+/**
+ * Counts the changes to data that is cached. Something built from the data is only kept if no change was
+ * counted while it was being built, otherwise it may have missed the change. Read current() before loading,
+ * call advance() after every change and keep the result only if isCurrent still holds.
+ *
+ * Not thread safe, the cache that owns it guards it with its own lock.
+ */
+public final class CacheGeneration {
+
+    private long generation;
+
+    public long current() {
+
+        return generation;
+    }
+
+    /**
+     * @param generation a value read from current() before the data was loaded
+     * @return true if nothing changed since
+     */
+    public boolean isCurrent(long generation) {
+
+        return this.generation == generation;
+    }
+
+    public void advance() {
+
+        generation++;
+    }
+}
@@ -89,6 +89,146 @@ public class LogicDoer {
     }
 
 
+    /**
+     * Attempts to retrieve the number of threads used to aggregate research graphs.
+     * If nothing is found, defaults to half of the available processors.
+     *
+     * @return the research aggregation parallelism, at least 1
+     */
+    public static int getResearchParallelism() {
+        try {
+            return Math.max(1, ConfigFactory.load().getInt("research.parallelism"));
+        } catch (Exception ex) {
+            return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        }
+    }
+
+    /**
+     * Attempts to retrieve the number of research graphs kept in the result cache.
+     * If nothing is found, defaults to 64.
+     *
+     * @return the maximum number of cached research graphs
+     */
+    public static int getResearchCacheEntries() {
+        try {
+            return Math.max(0, ConfigFactory.load().getInt("research.cache.entries"));
+        } catch (Exception ex) {
+            return 64;
+        }
+    }
+
+    /**
+     * Attempts to retrieve the number of data points, summed over all cached graphs, the research
+     * result cache may hold. If nothing is found, defaults to 200000.
+     *
+     * @return the maximum number of cached data points
+     */
+    public static int getResearchCacheDataPoints() {
+        try {
+            return Math.max(0, ConfigFactory.load().getInt("research.cache.dataPoints"));
+        } catch (Exception ex) {
+            return 200000;
+        }
+    }
+
+    /**
+     * Attempts to retrieve the number of research CSV exports that may run at once.
+     * If nothing is found, defaults to 2.
+     *
+     * @return the number of export worker threads, at least 1
+     */
+    public static int getResearchExportThreads() {
+        try {
+            return Math.max(1, ConfigFactory.load().getInt("research.export.threads"));
+        } catch (Exception ex) {
+            return 2;
+        }
+    }
+
+    /**
+     * Attempts to retrieve the number of research CSV exports that may wait for a worker.
+     * If nothing is found, defaults to 10.
+     *
+     * @return the export queue size, at least 1
+     */
+    public static int getResearchExportQueueSize() {
+        try {
+            return Math.max(1, ConfigFactory.load().getInt("research.export.queueSize"));
+        } catch (Exception ex) {
+            return 10;
+        }
+    }
+
+    /**
+     * Attempts to retrieve how long, in minutes, finished research CSV exports are kept.
+     * If nothing is found, defaults to 60.
+     *
+     * @return the export retention in minutes, at least 1
+     */
+    public static int getResearchExportRetentionMinutes() {
+        try {
+            return Math.max(1, ConfigFactory.load().getInt("research.export.retentionMinutes"));
+        } catch (Exception ex) {
+            return 60;
+        }
+    }
+
+    /**
+     * Attempts to retrieve how long, in milliseconds, a typeahead list is served before it is rebuilt
+     * from the database. If nothing is found, defaults to 2000.
+     *
+     * @return the typeahead refresh interval in milliseconds, at least 0
+     */
+    public static long getTypeaheadRefreshMillis() {
+        try {
+            return Math.max(0, ConfigFactory.load().getLong("typeahead.refreshMillis"));
+        } catch (Exception ex) {
+            return 2000;
+        }
+    }
+
+    /**
+     * Attempts to retrieve the number of threads that encode uploaded patient photos.
+     * If nothing is found, defaults to 1.
+     *
+     * @return the number of photo writer threads, at least 1
+     */
+    public static int getPhotoWriteThreads() {
+        try {
+            return Math.max(1, ConfigFactory.load().getInt("photos.write.threads"));
+        } catch (Exception ex) {
+            return 1;
+        }
+    }
+
+    /**
+     * Attempts to retrieve the number of uploaded patient photos that may wait for a writer thread.
+     * If nothing is found, defaults to 100.
+     *
+     * @return the photo write queue size, at least 1
+     */
+    public static int getPhotoWriteQueueSize() {
+        try {
+            return Math.max(1, ConfigFactory.load().getInt("photos.write.queueSize"));
+        } catch (Exception ex) {
+            return 100;
+        }
+    }
+
+    /**
+     * Attempts to retrieve how many times writing an uploaded patient photo is tried before it is left
+     * for the next startup. If nothing is found, defaults to 5.
+     *
+     * @return the number of attempts, at least 1
+     */
+    public static int getPhotoWriteMaxAttempts() {
+        try {
+            return Math.max(1, ConfigFactory.load().getInt("photos.write.maxAttempts"));
+        } catch (Exception ex) {
+            return 5;
+        }
+    }
+
     /**
      * I wonder what this method does
      *
@@ -18,8 +18,11 @@
 */
 package femr.business.helpers;
 
+import com.avaje.ebean.Ebean;
 import com.avaje.ebean.ExpressionList;
 import com.avaje.ebean.Query;
+import com.avaje.ebean.SqlQuery;
+import com.avaje.ebean.SqlRow;
 import femr.data.daos.IRepository;
 import femr.data.models.core.IPatient;
 import femr.data.models.core.IPatientEncounterVital;
@@ -28,84 +31,130 @@ import femr.data.models.mysql.Patient;
 import femr.data.models.mysql.PatientEncounterVital;
 import femr.data.models.core.IMissionCity;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class QueryHelper {
 
-    public static Float findPatientWeight(IRepository<IPatientEncounterVital> patientEncounterVitalRepository, int encounterId){
-        Float weight = null;
-        Query<PatientEncounterVital> query2 = QueryProvider.getPatientEncounterVitalQuery()
-                .fetch("vital")
-                .where()
-                .eq("patient_encounter_id", encounterId)
-                .eq("vital.name", "weight")
-                .order().desc("date_taken");
-        List<? extends IPatientEncounterVital> patientEncounterVitals = patientEncounterVitalRepository.find(query2);
-        if (patientEncounterVitals.size() > 0) {
-            weight = patientEncounterVitals.get(0).getVitalValue();
-        }
-        return weight;
-    }
+    /**
+     * Finds the newest value of each of the requested vitals for a batch of encounters in one query.
+     * A vital that was never recorded for an encounter is left out of that encounter's map.
+     *
+     * @param patientEncounterVitalRepository repository to query
+     * @param encounterIds ids of the encounters, not null
+     * @param vitalNames names of the vitals (e.g. "weight", "heightFeet"), not null
+     * @return a map of encounter id to a map of vital name to its newest value, every encounter id is a key
+     */
+    public static Map<Integer, Map<String, Float>> findLatestVitals(IRepository<IPatientEncounterVital> patientEncounterVitalRepository, Collection<Integer> encounterIds, Collection<String> vitalNames){
+
+        Map<Integer, Map<String, Float>> latestVitals = new HashMap<>();
+        for (Integer encounterId : encounterIds)
+            latestVitals.put(encounterId, new HashMap<>());
+        if (encounterIds.isEmpty() || vitalNames.isEmpty())
+            return latestVitals;
 
-    public static Integer findWeeksPregnant(IRepository<IPatientEncounterVital> patientEncounterVitalRepository, int encounterId){
-        Integer weeks_pregnant = null;
-        Query<PatientEncounterVital> query2 = QueryProvider.getPatientEncounterVitalQuery()
-                .fetch("vital")
+        Query<PatientEncounterVital> query = QueryProvider.getPatientEncounterVitalQuery()
+                .fetch("vital", "name")
                 .where()
-                .eq("patient_encounter_id", encounterId)
-                .eq("vital.name", "weeksPregnant")
-                .order().desc("date_taken");
-        List<? extends IPatientEncounterVital> patientEncounterVitals = patientEncounterVitalRepository.find(query2);
-        if (patientEncounterVitals.size() > 0) {
-            weeks_pregnant = Math.round(patientEncounterVitals.get(0).getVitalValue());
+                .in("patient_encounter_id", encounterIds)
+                .in("vital.name", vitalNames)
+                .order().desc("date_taken")
+                .order().desc("id");
+        List<? extends IPatientEncounterVital> patientEncounterVitals = patientEncounterVitalRepository.find(query);
+
+        //newest first, so the first value seen for a vital is the one to keep
+        for (IPatientEncounterVital patientEncounterVital : patientEncounterVitals) {
+            Map<String, Float> encounterVitals = latestVitals.get(patientEncounterVital.getPatientEncounterId());
+            if (encounterVitals != null && patientEncounterVital.getVitalValue() != null)
+                encounterVitals.putIfAbsent(patientEncounterVital.getVital().getName(), patientEncounterVital.getVitalValue());
         }
-        return weeks_pregnant;
+        return latestVitals;
     }
 
-    public static Integer findPatientHeightFeet(IRepository<IPatientEncounterVital> patientEncounterVitalRepository, int encounterId){
-        Integer heightFeet = null;
-        Query<PatientEncounterVital> query1 = QueryProvider.getPatientEncounterVitalQuery()
-                .fetch("vital")
-                .where()
-                .eq("patient_encounter_id", encounterId)
-                .eq("vital.name", "heightFeet")
-                .order().desc("date_taken");
-        List<? extends IPatientEncounterVital> patientEncounterVitals = patientEncounterVitalRepository.find(query1);
-        if (patientEncounterVitals.size() > 0) {
-            heightFeet = Math.round(patientEncounterVitals.get(0).getVitalValue());
-        }
-        return heightFeet;
+    /**
+     * Finds the newest value of each of the requested vitals for one encounter in one query.
+     *
+     * @see #findLatestVitals(IRepository, Collection, Collection)
+     * @return a map of vital name to its newest value
+     */
+    public static Map<String, Float> findLatestVitals(IRepository<IPatientEncounterVital> patientEncounterVitalRepository, int encounterId, String... vitalNames){
+
+        return findLatestVitals(patientEncounterVitalRepository, Collections.singletonList(encounterId), Arrays.asList(vitalNames)).get(encounterId);
     }
 
-    public static Integer findPatientHeightInches(IRepository<IPatientEncounterVital> patientEncounterVitalRepository, int encounterId){
-        Integer heightInches = null;
-        Query<PatientEncounterVital> query1 = QueryProvider.getPatientEncounterVitalQuery()
-                .fetch("vital")
-                .where()
-                .eq("patient_encounter_id", encounterId)
-                .eq("vital.name", "heightInches")
-                .order().desc("date_taken");
-        List<? extends IPatientEncounterVital> patientEncounterVitals = patientEncounterVitalRepository.find(query1);
-        if (patientEncounterVitals.size() > 0) {
-            heightInches = Math.round(patientEncounterVitals.get(0).getVitalValue());
-        }
-        return heightInches;
+    /**
+     * Finds the encounters whose tab field values (hpi, assessment, problems, custom fields...) match the words
+     * in a full-text search, best match first. Uses the FULLTEXT index on patient_encounter_tab_fields, which
+     * MySQL keeps up to date as tab fields are saved, so only matching rows are read. Editing a field adds a
+     * new row, so only the latest row of each field (and chief complaint) is matched. Problems are added one
+     * row each and never replaced, so every problem row is matched.
+     *
+     * Each row has encounter_id, patient_id, first_name, last_name, date_of_triage_visit, relevance and
+     * tab_field_names (comma separated).
+     *
+     * @param words words to search for, not null
+     * @param tripId only encounters from this trip, may be null
+     * @param from only encounters triaged at or after this time, may be null
+     * @param to only encounters triaged before this time, may be null
+     * @param limit the most encounters to return
+     */
+    public static List<SqlRow> findEncounterNoteMatches(String words, Integer tripId, Date from, Date to, int limit){
+
+        StringBuilder sql = new StringBuilder()
+                .append("select pe.id as encounter_id, pe.patient_id, p.first_name, p.last_name, pe.date_of_triage_visit,")
+                .append(" max(match (petf.tab_field_value) against (:words)) as relevance,")
+                .append(" group_concat(distinct tf.name order by tf.name separator ',') as tab_field_names")
+                .append(" from patient_encounter_tab_fields petf")
+                .append(" join patient_encounters pe on pe.id = petf.patient_encounter_id")
+                .append(" join patients p on p.id = pe.patient_id")
+                .append(" join tab_fields tf on tf.id = petf.tab_field_id")
+                .append(" where match (petf.tab_field_value) against (:words)")
+                .append(" and (tf.name = 'problem' or petf.id = (select max(latest.id) from patient_encounter_tab_fields latest")
+                .append(" where latest.patient_encounter_id = petf.patient_encounter_id")
+                .append(" and latest.tab_field_id = petf.tab_field_id")
+                .append(" and latest.chief_complaint_id <=> petf.chief_complaint_id))")
+                .append(" and p.isDeleted is null");
+        if (tripId != null)
+            sql.append(" and pe.mission_trip_id = :tripId");
+        if (from != null)
+            sql.append(" and pe.date_of_triage_visit >= :fromDate");
+        if (to != null)
+            sql.append(" and pe.date_of_triage_visit < :toDate");
+        sql.append(" group by pe.id, pe.patient_id, p.first_name, p.last_name, pe.date_of_triage_visit")
+                .append(" order by relevance desc, pe.id desc")
+                .append(" limit :maxRows");
+
+        SqlQuery sqlQuery = Ebean.createSqlQuery(sql.toString())
+                .setParameter("words", words)
+                .setParameter("maxRows", limit);
+        if (tripId != null)
+            sqlQuery.setParameter("tripId", tripId);
+        if (from != null)
+            sqlQuery.setParameter("fromDate", from);
+        if (to != null)
+            sqlQuery.setParameter("toDate", to);
+
+        return sqlQuery.findList();
     }
 
     /**
-     * finds all patients with a country filter
+     * finds all patients with a country filter, using the countries each patient has been seen in
+     * (patient_countries) instead of joining through every encounter
      */
     public static List<? extends IPatient> findPatients(IRepository<IPatient> patientRepository, String country){
 
         ExpressionList<Patient> patientExpressionList = QueryProvider.getPatientQuery()
                 .select("*")
-                .fetch("patientEncounters")
-                .fetch("patientEncounters.missionTrip")
-                .fetch("patientEncounters.missionTrip.missionCity")
-                .fetch("patientEncounters.missionTrip.missionCity.missionCountry")
                 .where()
                 .isNull("isDeleted")
-                .eq("patientEncounters.missionTrip.missionCity.missionCountry.name", country);
+                .raw("id in (select pc.patient_id from patient_countries pc" +
+                        " join mission_countries mco on mco.id = pc.mission_country_id" +
+                        " where mco.name = ?)", country);
 
         return patientExpressionList.findList();
     }
@@ -82,6 +82,10 @@ public class QueryProvider {
         return Ebean.find(PatientEncounter.class);
     }
 
+    public static Query<PatientCountry> getPatientCountryQuery() {
+        return Ebean.find(PatientCountry.class);
+    }
+
     public static Query<PatientEncounterPhoto> getPatientEncounterPhotoQuery() {
         return Ebean.find(PatientEncounterPhoto.class);
     }
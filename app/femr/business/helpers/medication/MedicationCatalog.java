@@ -0,0 +1,109 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.medication;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import femr.business.helpers.CacheGeneration;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The medications shown in the medication typeaheads, built once and kept until a medication is created,
+ * deleted or removed.
+ */
+public final class MedicationCatalog {
+
+    private static final MedicationCatalog INSTANCE = new MedicationCatalog();
+
+    private final CacheGeneration generation = new CacheGeneration();
+    private Catalog current;
+
+    private MedicationCatalog() {
+    }
+
+    public static MedicationCatalog get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * @return the current catalog, null if it has to be built
+     */
+    public synchronized Catalog find() {
+
+        return current;
+    }
+
+    /**
+     * @return the generation to hand to put once a catalog has been built
+     */
+    public synchronized long getGeneration() {
+
+        return generation.current();
+    }
+
+    /**
+     * Keeps a catalog unless the medications changed after the generation it was started in.
+     *
+     * @param catalog    the catalog that was built, not null
+     * @param generation the generation read before the medications were loaded
+     */
+    public synchronized void put(Catalog catalog, long generation) {
+
+        if (this.generation.isCurrent(generation))
+            current = catalog;
+    }
+
+    /**
+     * Drops the catalog, call after any change to a medication.
+     */
+    public synchronized void invalidate() {
+
+        generation.advance();
+        current = null;
+    }
+
+    /**
+     * One build of the catalog. Shared between requests, so neither part may be modified.
+     */
+    public static final class Catalog {
+
+        private final List<String> names;
+        private final ObjectNode medicationsWithID;
+
+        /**
+         * @param names             names of the medications that are not deleted, ordered by name
+         * @param medicationsWithID the same medications with their id, form and ingredients
+         */
+        public Catalog(List<String> names, ObjectNode medicationsWithID) {
+
+            this.names = Collections.unmodifiableList(names);
+            this.medicationsWithID = medicationsWithID;
+        }
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        public ObjectNode getMedicationsWithID() {
+            return medicationsWithID;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.photo;
+
+import play.mvc.Http.MultipartFormData.FilePart;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches the images uploaded with the medical form to the photo slots they were picked in. The file
+ * inputs are named with their slot, e.g. patientPhotos[3].
+ */
+public final class EncounterImageSlots {
+
+    private EncounterImageSlots() {
+    }
+
+    /**
+     * Indexes uploaded images by slot in one pass, so each slot is found without scanning every upload.
+     *
+     * @param encounterImages the uploaded images, not null
+     * @return a map of slot to the first image uploaded for it, images without a slot are left out
+     */
+    public static Map<Integer, FilePart> index(List<FilePart> encounterImages) {
+
+        Map<Integer, FilePart> imagesBySlot = new HashMap<>();
+        for (FilePart image : encounterImages) {
+
+            Integer slot = parseSlot(image.getKey());
+            if (slot != null)
+                imagesBySlot.putIfAbsent(slot, image);
+        }
+        return imagesBySlot;
+    }
+
+    /**
+     * @return the number between the brackets of a file input name, null if there is none
+     */
+    public static Integer parseSlot(String keyName) {
+
+        if (keyName == null)
+            return null;
+        int leftBracket = keyName.indexOf("[");
+        int rightBracket = keyName.indexOf("]");
+        if (leftBracket < 0 || rightBracket <= leftBracket)
+            return null;
+        try {
+            return Integer.parseInt(keyName.substring(leftBracket + 1, rightBracket).trim());
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
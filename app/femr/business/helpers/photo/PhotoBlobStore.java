@@ -0,0 +1,129 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.photo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Names photo files by their content so uploading the same image twice (a retake that didn't change, a
+ * photo added to several encounters) keeps one file on disk. A file is blobs/ab/abcdef....jpg inside the
+ * photo folder, where abcdef... is the SHA-256 of the uploaded image. Photo rows point at the file and are
+ * its reference count: the file is deleted when the last photo pointing at it is.
+ * <p>
+ * Creating a photo that points at a file and deleting the file once nothing points at it must hold
+ * {@link #lockFor(File)}, otherwise a new photo could point at a file that is being deleted.
+ */
+public final class PhotoBlobStore {
+
+    private static final String BLOB_DIRECTORY = "blobs";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // files share a fixed number of locks, a lock per file would be kept for every image ever uploaded
+    private static final Object[] locks = new Object[64];
+
+    static {
+
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    private PhotoBlobStore() {
+    }
+
+    /**
+     * @param bytes the uploaded image
+     * @return the hex SHA-256 of the image
+     */
+    public static String hash(byte[] bytes) {
+
+        MessageDigest digest = newDigest();
+        digest.update(bytes);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param file the uploaded image
+     * @return the hex SHA-256 of the image
+     * @throws IOException if the file can't be read
+     */
+    public static String hash(File file) throws IOException {
+
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Where an image is kept, relative to the photo folder. Images are spread over 256 sub folders so no
+     * folder gets too big to list. Patient photos use ".jpg" and encounter photos no extension, so the two
+     * folders never share a file path and count each other's references.
+     *
+     * @param hash      the hash of the image, see {@link #hash(byte[])}
+     * @param extension added to the file name, e.g. ".jpg" or ""
+     * @return the value for the photo's file path
+     */
+    public static String blobPath(String hash, String extension) {
+
+        return "/" + BLOB_DIRECTORY + "/" + hash.substring(0, 2) + "/" + hash + extension;
+    }
+
+    /**
+     * @param file a photo file
+     * @return the lock to hold while creating photos that point at the file or deleting the file, other
+     * files may share it
+     */
+    public static Object lockFor(File file) {
+
+        return locks[Math.floorMod(file.getAbsolutePath().hashCode(), locks.length)];
+    }
+
+    private static MessageDigest newDigest() {
+
+        try {
+
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+
+            // every JRE has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.photo;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Smaller copies of photos for lists and avatars. A copy is made the first time a size is asked for and
+ * kept on disk next to the original (Patient_1.jpg gets Patient_1_thumbnail.jpg), it is made again when
+ * the original is newer than the copy.
+ */
+public final class PhotoDerivatives {
+
+    public static final String THUMBNAIL = "thumbnail";
+    public static final String MEDIUM = "medium";
+
+    // longest side in pixels, thumbnails cover the 90 pixel images on high density screens
+    private static final Map<String, Integer> MAX_DIMENSIONS;
+
+    static {
+        Map<String, Integer> maxDimensions = new LinkedHashMap<>();
+        maxDimensions.put(THUMBNAIL, 180);
+        maxDimensions.put(MEDIUM, 640);
+        MAX_DIMENSIONS = Collections.unmodifiableMap(maxDimensions);
+    }
+
+    private PhotoDerivatives() {
+    }
+
+    /**
+     * @return true if size is one of the sizes copies are made in
+     */
+    public static boolean isSize(String size) {
+
+        return size != null && MAX_DIMENSIONS.containsKey(size);
+    }
+
+    /**
+     * Finds the copy of a photo in a size, making it if it doesn't exist yet or is older than the photo.
+     *
+     * @param original the photo
+     * @param size     THUMBNAIL or MEDIUM
+     * @return the copy, or the original if size is not a known size or the original is not an image
+     * @throws IOException if the copy can't be written
+     */
+    public static File retrieveDerivative(File original, String size) throws IOException {
+
+        if (!isSize(size) || !original.isFile())
+            return original;
+
+        File derivative = derivativeFile(original, size);
+        if (derivative.isFile() && derivative.lastModified() >= original.lastModified())
+            return derivative;
+
+        BufferedImage image = ImageIO.read(original);
+        if (image == null)
+            return original;
+
+        //written to a temporary file first so a request never serves half a copy
+        File temporary = File.createTempFile(derivative.getName(), ".tmp", derivative.getAbsoluteFile().getParentFile());
+        try {
+            int maxDimension = MAX_DIMENSIONS.get(size);
+            if (Math.max(image.getWidth(), image.getHeight()) <= maxDimension)
+                Files.copy(original.toPath(), temporary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            else
+                ImageIO.write(scale(image, maxDimension), "jpg", temporary);
+            Files.move(temporary.toPath(), derivative.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporary.delete();
+        }
+        return derivative;
+    }
+
+    /**
+     * Deletes every copy of a photo, call when the photo is deleted.
+     */
+    public static void deleteDerivatives(File original) {
+
+        for (String size : MAX_DIMENSIONS.keySet())
+            derivativeFile(original, size).delete();
+    }
+
+    static File derivativeFile(File original, String size) {
+
+        String name = original.getName();
+        if (name.toLowerCase().endsWith(".jpg"))
+            name = name.substring(0, name.length() - 4);
+        return new File(original.getAbsoluteFile().getParentFile(), name + "_" + size + ".jpg");
+    }
+
+    /**
+     * Shrinks an image so its longest side is maxDimension, halving it in steps because a single
+     * bilinear step skips most of the pixels of a large photo.
+     */
+    static BufferedImage scale(BufferedImage image, int maxDimension) {
+
+        double ratio = (double) maxDimension / Math.max(image.getWidth(), image.getHeight());
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+
+        BufferedImage current = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+
+            //jpeg has no alpha, transparent pixels become white
+            BufferedImage next = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = next.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(current, 0, 0, width, height, Color.WHITE, null);
+            graphics.dispose();
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+
+        return current;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.photo;
+
+import com.google.common.annotations.VisibleForTesting;
+import femr.business.helpers.CacheGeneration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where the photo files are, by patient and by photo id, so serving a photo does not have to look the
+ * path up in the database. Only the most recently used paths are kept.
+ */
+public final class PhotoPathCache {
+
+    /**
+     * Kept for patients that are known to have no photo.
+     */
+    public static final String NO_PHOTO = "";
+
+    private static final int MAX_ENTRIES = 10000;
+    private static final PhotoPathCache INSTANCE = new PhotoPathCache(MAX_ENTRIES);
+
+    private final Map<Integer, String> patientPhotoPaths;
+    private final Map<Integer, String> photoPaths;
+    private final CacheGeneration generation = new CacheGeneration();
+
+    /**
+     * @param maxEntries paths kept for patients and for photos, each
+     */
+    @VisibleForTesting
+    public PhotoPathCache(int maxEntries) {
+
+        this.patientPhotoPaths = createLeastRecentlyUsedMap(maxEntries);
+        this.photoPaths = createLeastRecentlyUsedMap(maxEntries);
+    }
+
+    public static PhotoPathCache get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * @return the generation to hand to a put once the path has been looked up
+     */
+    public synchronized long getGeneration() {
+
+        return generation.current();
+    }
+
+    /**
+     * @param patientId id of the patient
+     * @return path of the patient's photo, NO_PHOTO if the patient has none, null if it has to be looked up
+     */
+    public synchronized String findPatientPhotoPath(int patientId) {
+
+        return patientPhotoPaths.get(patientId);
+    }
+
+    /**
+     * @param patientId  id of the patient
+     * @param path       path of the patient's photo or NO_PHOTO, not null
+     * @param generation the generation read before the path was looked up
+     */
+    public synchronized void putPatientPhotoPath(int patientId, String path, long generation) {
+
+        if (this.generation.isCurrent(generation))
+            patientPhotoPaths.put(patientId, path);
+    }
+
+    /**
+     * Drops the path of a patient's photo, call after the photo is added or removed.
+     */
+    public synchronized void invalidatePatient(int patientId) {
+
+        generation.advance();
+        patientPhotoPaths.remove(patientId);
+    }
+
+    /**
+     * @param photoId id of the photo
+     * @return path of the photo, null if it has to be looked up
+     */
+    public synchronized String findPhotoPath(int photoId) {
+
+        return photoPaths.get(photoId);
+    }
+
+    /**
+     * @param photoId    id of the photo
+     * @param path       path of the photo, not null
+     * @param generation the generation read before the path was looked up
+     */
+    public synchronized void putPhotoPath(int photoId, String path, long generation) {
+
+        if (this.generation.isCurrent(generation))
+            photoPaths.put(photoId, path);
+    }
+
+    /**
+     * Drops the path of a photo, call after its file path changes or it is deleted.
+     */
+    public synchronized void invalidatePhoto(int photoId) {
+
+        generation.advance();
+        photoPaths.remove(photoId);
+    }
+
+    private static Map<Integer, String> createLeastRecentlyUsedMap(int maxEntries) {
+
+        return new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+}
@@ -0,0 +1,285 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.photo;
+
+import femr.business.helpers.LogicDoer;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes uploaded patient photos in the background so decoding and re-encoding the image doesn't hold
+ * the request thread. The uploaded image is first saved next to where the photo goes (photo.jpg.pending)
+ * and only deleted once the photo is written, so an image is never lost to a full queue, a failed write or a
+ * restart. Only photos.write.threads photos are encoded at once and at most photos.write.queueSize wait for
+ * a writer. A failed write is tried again after a growing delay, photos.write.maxAttempts times, and then
+ * again at the next startup.
+ */
+public class PhotoWriteQueue {
+
+    private static final String PENDING_SUFFIX = ".pending";
+    private static final String PROCESSING_SUFFIX = ".processing";
+    private static final long FIRST_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    private static final PhotoWriteQueue queue = new PhotoWriteQueue(
+            LogicDoer.getPhotoWriteThreads(),
+            LogicDoer.getPhotoWriteQueueSize(),
+            LogicDoer.getPhotoWriteMaxAttempts());
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService retryExecutor;
+    private final int maxAttempts;
+    // so two uploads of the same photo are written one after the other, photos share a fixed number of
+    // locks as a lock per photo would be kept for every photo ever written
+    private final Object[] locks = new Object[64];
+
+    PhotoWriteQueue(int threads, int queueSize, int maxAttempts) {
+
+        this.maxAttempts = maxAttempts;
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> createThread(r, "photo-write-" + threadNumber.incrementAndGet()));
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> createThread(r, "photo-write-retry"));
+    }
+
+    public static PhotoWriteQueue get() {
+
+        return queue;
+    }
+
+    /**
+     * Hands an uploaded image over to be written as a JPEG. The image is on disk when this returns, so it
+     * is written even if the server stops first. A newer image for the same photo replaces one that has
+     * not been written yet.
+     *
+     * @param target where the photo is written
+     * @param image  the uploaded image in any format ImageIO reads (png, jpeg...)
+     * @throws IOException if the image can't be saved for the writer
+     */
+    public void submit(File target, byte[] image) throws IOException {
+
+        File pending = pendingFile(target);
+        File temporary = File.createTempFile(target.getName(), ".tmp", pending.getParentFile());
+        try {
+
+            Files.write(temporary.toPath(), image);
+            Files.move(temporary.toPath(), pending.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+
+            temporary.delete();
+        }
+        schedule(target, 1, 0);
+    }
+
+    /**
+     * Drops an image that has not been written yet, call before deleting the photo. If the photo is being
+     * written this waits until it is, so the photo can then be deleted.
+     */
+    public void cancel(File target) {
+
+        synchronized (lockFor(target)) {
+
+            pendingFile(target).delete();
+        }
+    }
+
+    /**
+     * Queues the images a previous run left unwritten in a folder, call once at startup.
+     *
+     * @param directory the folder photos are written to, its sub folders are searched too
+     */
+    public void recover(File directory) {
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+
+            return;
+        }
+        for (File file : files) {
+
+            if (file.isDirectory()) {
+
+                recover(file);
+                continue;
+            }
+            String name = file.getName();
+            if (name.endsWith(PROCESSING_SUFFIX)) {
+
+                // the run stopped while writing it
+                File target = new File(directory, name.substring(0, name.length() - PROCESSING_SUFFIX.length()));
+                if (pendingFile(target).exists())
+                    file.delete();
+                else
+                    file.renameTo(pendingFile(target));
+            }
+        }
+        files = directory.listFiles();
+        if (files == null) {
+
+            return;
+        }
+        for (File file : files) {
+
+            String name = file.getName();
+            if (name.endsWith(PENDING_SUFFIX)) {
+
+                schedule(new File(directory, name.substring(0, name.length() - PENDING_SUFFIX.length())), 1, 0);
+            }
+        }
+    }
+
+    /**
+     * Stops the writers, call when the application stops. Images that are not written yet stay on disk
+     * for recover.
+     */
+    public void shutdown() {
+
+        retryExecutor.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void schedule(File target, int attempt, long delayMillis) {
+
+        if (executor.isShutdown()) {
+
+            // left on disk for the next startup
+            return;
+        }
+        if (delayMillis > 0) {
+
+            retryExecutor.schedule(() -> schedule(target, attempt, 0), delayMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        try {
+
+            executor.execute(() -> write(target, attempt));
+        } catch (RejectedExecutionException ex) {
+
+            // the image is safe on disk, a full queue doesn't count as a failed attempt
+            retryExecutor.schedule(() -> schedule(target, attempt, 0), FIRST_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void retry(File target, int attempt) {
+
+        if (attempt >= maxAttempts) {
+
+            // left on disk for the next startup
+            return;
+        }
+        long delay = Math.min(MAX_RETRY_DELAY_MILLIS, FIRST_RETRY_DELAY_MILLIS << Math.min(attempt - 1, 16));
+        schedule(target, attempt + 1, delay);
+    }
+
+    private void write(File target, int attempt) {
+
+        File pending = pendingFile(target);
+        File processing = new File(target.getAbsoluteFile().getPath() + PROCESSING_SUFFIX);
+
+        synchronized (lockFor(target)) {
+
+            // claim the image, a newer upload leaves a new pending file with its own task
+            if (!pending.renameTo(processing)) {
+
+                // already written by an earlier task, or cancelled
+                return;
+            }
+            try {
+
+                BufferedImage image = ImageIO.read(processing);
+                if (image == null) {
+
+                    // not an image, trying again won't help
+                    processing.delete();
+                    return;
+                }
+
+                File temporary = File.createTempFile(target.getName(), ".tmp", processing.getParentFile());
+                try {
+
+                    if (!ImageIO.write(withoutAlpha(image), "jpg", temporary))
+                        throw new IOException("no jpeg writer");
+                    Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+
+                    temporary.delete();
+                }
+                processing.delete();
+            } catch (Exception ex) {
+
+                // give the image back unless a newer one arrived in the meantime
+                if (pending.exists())
+                    processing.delete();
+                else
+                    processing.renameTo(pending);
+                retry(target, attempt);
+            }
+        }
+    }
+
+    private Object lockFor(File target) {
+
+        // never held while taking a PhotoBlobStore lock, PhotoService takes that one first
+        return locks[Math.floorMod(target.getAbsolutePath().hashCode(), locks.length)];
+    }
+
+    private static File pendingFile(File target) {
+
+        return new File(target.getAbsoluteFile().getPath() + PENDING_SUFFIX);
+    }
+
+    /**
+     * JPEG has no alpha, cropped photos arrive as png, transparent pixels become white.
+     */
+    private static BufferedImage withoutAlpha(BufferedImage image) {
+
+        if (!image.getColorModel().hasAlpha())
+            return image;
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        graphics.drawImage(image, 0, 0, Color.WHITE, null);
+        graphics.dispose();
+        return rgb;
+    }
+
+    private static Thread createThread(Runnable runnable, String name) {
+
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.referencedata;
+
+import com.google.common.annotations.VisibleForTesting;
+import femr.business.helpers.CacheGeneration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reference lists that only change when an admin adds to them or the seeder runs (cities, diagnoses),
+ * loaded once and kept until they are invalidated. Each list has its own CacheGeneration.
+ */
+public final class ReferenceDataCache {
+
+    public static final String CITIES = "cities";
+    public static final String DIAGNOSES = "diagnoses";
+
+    private static final ReferenceDataCache INSTANCE = new ReferenceDataCache();
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    @VisibleForTesting
+    public ReferenceDataCache() {
+    }
+
+    public static ReferenceDataCache get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * @param name name of the list, e.g. CITIES
+     * @return the cached list, null if it has to be loaded
+     */
+    public synchronized <T> List<T> find(String name) {
+
+        Entry entry = entry(name);
+        if (entry.values == null) {
+            entry.misses++;
+            return null;
+        }
+        entry.hits++;
+        @SuppressWarnings("unchecked")
+        List<T> values = (List<T>) entry.values;
+        return values;
+    }
+
+    /**
+     * @param name name of the list
+     * @return the generation to hand to put once the list has been loaded, it also changes every time
+     * the list is invalidated so it can be used to tell whether anything built from the list is stale
+     */
+    public synchronized long getGeneration(String name) {
+
+        return entry(name).generation.current();
+    }
+
+    /**
+     * Keeps a list unless it was invalidated after the generation it was started in.
+     *
+     * @param name       name of the list
+     * @param values     the list that was loaded, not null, must not be modified afterwards
+     * @param generation the generation read before the list was loaded
+     */
+    public synchronized void put(String name, List<?> values, long generation) {
+
+        Entry entry = entry(name);
+        if (entry.generation.isCurrent(generation)) {
+            entry.values = Collections.unmodifiableList(values);
+            entry.loaded = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Drops a list, call after anything is added to, changed in or removed from it.
+     */
+    public synchronized void invalidate(String name) {
+
+        Entry entry = entry(name);
+        entry.generation.advance();
+        entry.invalidations++;
+        entry.values = null;
+    }
+
+    /**
+     * Drops every list, e.g. after the database was seeded.
+     */
+    public synchronized void invalidateAll() {
+
+        for (String name : new ArrayList<>(entries.keySet()))
+            invalidate(name);
+    }
+
+    /**
+     * @return how each list has been used since startup, ordered by name
+     */
+    public synchronized List<Statistics> retrieveStatistics() {
+
+        List<Statistics> statistics = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            statistics.add(new Statistics(entry.getKey(), value.values == null ? null : value.values.size(),
+                    value.generation.current(), value.hits, value.misses, value.invalidations, value.values == null ? null : value.loaded));
+        }
+        return statistics;
+    }
+
+    private Entry entry(String name) {
+
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(name, entry);
+        }
+        return entry;
+    }
+
+    private static final class Entry {
+
+        private List<?> values;
+        private final CacheGeneration generation = new CacheGeneration();
+        private long loaded;
+        private long hits;
+        private long misses;
+        private long invalidations;
+    }
+
+    /**
+     * How one list has been used since startup.
+     */
+    public static final class Statistics {
+
+        private final String name;
+        private final Integer size;
+        private final long generation;
+        private final long hits;
+        private final long misses;
+        private final long invalidations;
+        private final Long loaded;
+
+        private Statistics(String name, Integer size, long generation, long hits, long misses, long invalidations, Long loaded) {
+
+            this.name = name;
+            this.size = size;
+            this.generation = generation;
+            this.hits = hits;
+            this.misses = misses;
+            this.invalidations = invalidations;
+            this.loaded = loaded;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return number of entries in the cached list, null if it is not loaded
+         */
+        public Integer getSize() {
+            return size;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * @return lookups answered from memory
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return lookups that had to go to the database
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        /**
+         * @return when the cached list was loaded in milliseconds since the epoch, null if it is not loaded
+         */
+        public Long getLoaded() {
+            return loaded;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import com.avaje.ebean.ExpressionList;
+
+import java.util.Map;
+
+/**
+ * Age in whole years as of the triage visit.
+ */
+public class AgeDataset extends ResearchDataset {
+
+    public AgeDataset() {
+
+        super("age");
+    }
+
+    @Override
+    public String getUnitOfMeasurement() {
+
+        return "years";
+    }
+
+    @Override
+    public boolean requiresBirthDate() {
+
+        return true;
+    }
+
+    @Override
+    public void addRangePredicates(ExpressionList<?> where, Map<String, Integer> vitalIds, float rangeStart, float rangeEnd) {
+
+        // whole years between the birth date and the triage date, property names are translated by Ebean.
+        // MySQL and Joda disagree on month lengths at the end of a month, so a year either way is allowed.
+        addRange(where, "(timestampdiff(MONTH, patient.age, date(dateOfTriageVisit)) div 12)", rangeStart, rangeEnd, 1);
+    }
+
+    @Override
+    public int values(ResearchColumns columns, int row, float[] values) {
+
+        float age = columns.getAge(row);
+        if (Float.isNaN(age)) {
+
+            return 0;
+        }
+
+        values[0] = age;
+        return 1;
+    }
+
+    @Override
+    public boolean isRanged() {
+
+        return true;
+    }
+}
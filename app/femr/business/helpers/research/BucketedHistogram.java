@@ -0,0 +1,191 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import femr.common.models.ResearchResultItem;
+
+import java.util.*;
+
+/**
+ * Groups research result values into fixed width buckets. Each value is assigned to its bucket
+ * arithmetically, secondary counts are kept in a dense matrix (one row per occupied bucket, one
+ * column per secondary category) and only occupied buckets are stored, so a wide value range
+ * costs nothing for the empty buckets in between.
+ */
+public class BucketedHistogram {
+
+    // gaps are only filled with empty buckets while the whole histogram stays below this size
+    public static final int MAX_FILLED_BUCKETS = 1000;
+
+    private final int bucketWidth;
+    private final String[] categories;
+    private final Map<String, Integer> categoryColumns = new HashMap<>();
+
+    private int bucketCount;
+    private long[] buckets = new long[16];
+    private float[] totals = new float[16];
+    private float[] secondaryCounts;
+
+    /**
+     * @param bucketWidth width of each bucket, at least 1
+     * @param categories  secondary keys in display order, empty when there is no secondary data
+     */
+    public BucketedHistogram(int bucketWidth, List<String> categories) {
+
+        if (bucketWidth < 1) {
+
+            throw new IllegalArgumentException("bucketWidth must be at least 1");
+        }
+
+        this.bucketWidth = bucketWidth;
+        this.categories = categories.toArray(new String[categories.size()]);
+        for (int column = 0; column < this.categories.length; column++) {
+
+            categoryColumns.put(this.categories[column], column);
+        }
+        this.secondaryCounts = new float[16 * Math.max(1, this.categories.length)];
+    }
+
+    /**
+     * Adds the total (and secondary totals) of a value to its bucket. Adding values in ascending
+     * order, as research result sets are built, appends without searching.
+     *
+     * @param value         the value
+     * @param total         number of patients with the value
+     * @param secondaryData patients per secondary key, may be null
+     */
+    public void add(float value, float total, Map<String, Float> secondaryData) {
+
+        long bucket = (long) Math.floor((double) value / bucketWidth);
+
+        int index;
+        if (bucketCount > 0 && buckets[bucketCount - 1] == bucket) {
+
+            index = bucketCount - 1;
+        } else if (bucketCount == 0 || buckets[bucketCount - 1] < bucket) {
+
+            index = insertBucket(bucketCount, bucket);
+        } else {
+
+            index = Arrays.binarySearch(buckets, 0, bucketCount, bucket);
+            if (index < 0) {
+
+                index = insertBucket(-index - 1, bucket);
+            }
+        }
+
+        totals[index] += total;
+        if (secondaryData != null && categories.length > 0) {
+
+            int rowStart = index * categories.length;
+            for (Map.Entry<String, Float> entry : secondaryData.entrySet()) {
+
+                Integer column = categoryColumns.get(entry.getKey());
+                if (column != null && entry.getValue() != null) {
+
+                    secondaryCounts[rowStart + column] += entry.getValue();
+                }
+            }
+        }
+    }
+
+    private int insertBucket(int index, long bucket) {
+
+        int width = Math.max(1, categories.length);
+        if (bucketCount == buckets.length) {
+
+            int capacity = buckets.length * 2;
+            buckets = Arrays.copyOf(buckets, capacity);
+            totals = Arrays.copyOf(totals, capacity);
+            secondaryCounts = Arrays.copyOf(secondaryCounts, capacity * width);
+        }
+
+        if (index < bucketCount) {
+
+            System.arraycopy(buckets, index, buckets, index + 1, bucketCount - index);
+            System.arraycopy(totals, index, totals, index + 1, bucketCount - index);
+            System.arraycopy(secondaryCounts, index * width, secondaryCounts, (index + 1) * width, (bucketCount - index) * width);
+        }
+
+        buckets[index] = bucket;
+        totals[index] = 0;
+        Arrays.fill(secondaryCounts, index * width, (index + 1) * width, 0);
+        bucketCount++;
+
+        return index;
+    }
+
+    /**
+     * @return number of buckets that hold at least one value
+     */
+    public int getBucketCount() {
+
+        return bucketCount;
+    }
+
+    /**
+     * Builds one result item per bucket, named "low - high". Empty buckets between occupied ones
+     * are included as zero totals when the histogram spans at most MAX_FILLED_BUCKETS buckets.
+     */
+    public List<ResearchResultItem> toResultItems() {
+
+        List<ResearchResultItem> items = new ArrayList<>();
+        if (bucketCount == 0) {
+
+            return items;
+        }
+
+        boolean fillGaps = buckets[bucketCount - 1] - buckets[0] < MAX_FILLED_BUCKETS;
+        for (int index = 0; index < bucketCount; index++) {
+
+            if (fillGaps && index > 0) {
+
+                for (long empty = buckets[index - 1] + 1; empty < buckets[index]; empty++) {
+
+                    items.add(createItem(empty, -1));
+                }
+            }
+            items.add(createItem(buckets[index], index));
+        }
+
+        return items;
+    }
+
+    private ResearchResultItem createItem(long bucket, int index) {
+
+        long lowKey = bucket * bucketWidth;
+        long highKey = lowKey + (bucketWidth - 1);
+
+        ResearchResultItem item = new ResearchResultItem();
+        item.setPrimaryName(String.format("%d - %d", lowKey, highKey));
+        item.setPrimaryValue(index < 0 ? 0.0f : totals[index]);
+
+        if (categories.length > 0) {
+
+            Map<String, Float> secondaryData = new HashMap<>();
+            for (int column = 0; column < categories.length; column++) {
+
+                secondaryData.put(categories[column], index < 0 ? 0.0f : secondaryCounts[index * categories.length + column]);
+            }
+            item.setSecondaryData(secondaryData);
+        }
+
+        return item;
+    }
+}
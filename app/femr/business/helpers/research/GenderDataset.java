@@ -0,0 +1,57 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Patient sex: 0 male, 1 female, 2 not recorded.
+ */
+public class GenderDataset extends ResearchDataset {
+
+    public GenderDataset() {
+
+        super("gender");
+    }
+
+    @Override
+    public int values(ResearchColumns columns, int row, float[] values) {
+
+        values[0] = columns.getGender(row);
+        return 1;
+    }
+
+    @Override
+    public int getCategoryCount() {
+
+        return 3;
+    }
+
+    @Override
+    public Map<Float, String> createValueMap(ResearchColumns columns) {
+
+        Map<Float, String> valueMap = new HashMap<>();
+        valueMap.put((float) ResearchColumns.MALE, "Male");
+        valueMap.put((float) ResearchColumns.FEMALE, "Female");
+        valueMap.put((float) ResearchColumns.NO_SEX, "N/A");
+
+        return valueMap;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import com.avaje.ebean.ExpressionList;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Height in inches, combined from the heightFeet and heightInches vitals.
+ */
+public class HeightDataset extends ResearchDataset {
+
+    private final String unitOfMeasurement;
+    private float[] feet;
+    private float[] inches;
+
+    public HeightDataset(String unitOfMeasurement) {
+
+        super("height");
+        this.unitOfMeasurement = unitOfMeasurement;
+    }
+
+    @Override
+    public String getUnitOfMeasurement() {
+
+        return unitOfMeasurement;
+    }
+
+    @Override
+    public List<String> getVitalNames() {
+
+        return Arrays.asList("heightFeet", "heightInches");
+    }
+
+    @Override
+    public void addRangePredicates(ExpressionList<?> where, Map<String, Integer> vitalIds, float rangeStart, float rangeEnd) {
+
+        Integer feetId = vitalIds.get("heightFeet");
+        Integer inchesId = vitalIds.get("heightInches");
+        if (feetId == null || inchesId == null) {
+
+            return;
+        }
+
+        // either part may be missing, the height is null only when both are
+        String inchesSql = latestVitalSql(inchesId);
+        String heightSql = "coalesce(" + latestVitalSql(feetId) + " * 12 + coalesce(" + inchesSql + ", 0), " + inchesSql + ")";
+        // MySQL adds in double precision, Java in float
+        if (!addRange(where, heightSql, rangeStart, rangeEnd, 0.01)) {
+
+            where.raw(heightSql + " is not null");
+        }
+    }
+
+    @Override
+    public void bind(ResearchColumns columns) {
+
+        feet = columns.getVitalValues(columns.getVitalColumn("heightFeet"));
+        inches = columns.getVitalValues(columns.getVitalColumn("heightInches"));
+    }
+
+    @Override
+    public int values(ResearchColumns columns, int row, float[] values) {
+
+        // either part may be missing
+        float height = 0.0f;
+        if (!Float.isNaN(feet[row])) {
+
+            height += feet[row] * 12;
+        }
+        if (!Float.isNaN(inches[row])) {
+
+            height += inches[row];
+        }
+
+        if (height == 0.0f) {
+
+            return 0;
+        }
+
+        values[0] = height;
+        return 1;
+    }
+
+    @Override
+    public boolean isRanged() {
+
+        return true;
+    }
+}
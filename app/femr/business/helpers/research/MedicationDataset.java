@@ -0,0 +1,83 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Medications prescribed or dispensed during the encounter, graphed by medication id.
+ */
+public class MedicationDataset extends ResearchDataset {
+
+    private final MedicationSource medicationSource;
+
+    public MedicationDataset(String name, MedicationSource medicationSource) {
+
+        super(name);
+        this.medicationSource = medicationSource;
+    }
+
+    @Override
+    public MedicationSource getMedicationSource() {
+
+        return medicationSource;
+    }
+
+    @Override
+    public int values(ResearchColumns columns, int row, float[] values) {
+
+        int start = columns.getMedicationStart(row);
+        int end = columns.getMedicationEnd(row);
+        for (int i = start; i < end; i++) {
+
+            values[i - start] = columns.getMedicationId(i);
+        }
+
+        return end - start;
+    }
+
+    @Override
+    public int getMaxValues(ResearchColumns columns) {
+
+        return columns.getMaxMedicationsPerRow();
+    }
+
+    @Override
+    public boolean countsPatientsWithoutValues() {
+
+        return true;
+    }
+
+    @Override
+    public Map<Float, String> createValueMap(ResearchColumns columns) {
+
+        Map<Float, String> valueMap = new HashMap<>();
+        for (int row = 0; row < columns.size(); row++) {
+
+            for (int i = columns.getMedicationStart(row); i < columns.getMedicationEnd(row); i++) {
+
+                int medicationId = columns.getMedicationId(i);
+                valueMap.putIfAbsent((float) medicationId, columns.getMedicationName(medicationId));
+            }
+        }
+
+        return valueMap;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Whether the patient was pregnant at triage: 0 no, 1 yes.
+ */
+public class PregnancyStatusDataset extends ResearchDataset {
+
+    private float[] weeksPregnant;
+
+    public PregnancyStatusDataset() {
+
+        super("pregnancyStatus");
+    }
+
+    @Override
+    public List<String> getVitalNames() {
+
+        return Collections.singletonList("weeksPregnant");
+    }
+
+    @Override
+    public void bind(ResearchColumns columns) {
+
+        weeksPregnant = columns.getVitalValues(columns.getVitalColumn("weeksPregnant"));
+    }
+
+    @Override
+    public int values(ResearchColumns columns, int row, float[] values) {
+
+        values[0] = PregnancyTimeDataset.roundWeeks(weeksPregnant[row]) > 0 ? 1.0f : 0.0f;
+        return 1;
+    }
+
+    @Override
+    public int getCategoryCount() {
+
+        return 2;
+    }
+
+    @Override
+    public Map<Float, String> createValueMap(ResearchColumns columns) {
+
+        Map<Float, String> valueMap = new HashMap<>();
+        valueMap.put(0.0f, "No");
+        valueMap.put(1.0f, "Yes");
+
+        return valueMap;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Weeks pregnant, only for patients who were pregnant at triage.
+ */
+public class PregnancyTimeDataset extends ResearchDataset {
+
+    private float[] weeksPregnant;
+
+    public PregnancyTimeDataset() {
+
+        super("pregnancyTime");
+    }
+
+    /**
+     * @return whole weeks pregnant or 0 when the vital is missing or not positive
+     */
+    static int roundWeeks(float weeksPregnant) {
+
+        if (Float.isNaN(weeksPregnant) || weeksPregnant <= 0) {
+
+            return 0;
+        }
+
+        return Math.round(weeksPregnant);
+    }
+
+    @Override
+    public String getUnitOfMeasurement() {
+
+        return "weeks";
+    }
+
+    @Override
+    public List<String> getVitalNames() {
+
+        return Collections.singletonList("weeksPregnant");
+    }
+
+    @Override
+    public void bind(ResearchColumns columns) {
+
+        weeksPregnant = columns.getVitalValues(columns.getVitalColumn("weeksPregnant"));
+    }
+
+    @Override
+    public int values(ResearchColumns columns, int row, float[] values) {
+
+        int weeks = roundWeeks(weeksPregnant[row]);
+        if (weeks == 0) {
+
+            return 0;
+        }
+
+        values[0] = weeks;
+        return 1;
+    }
+
+    @Override
+    public boolean hasStatistics() {
+
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import femr.business.helpers.LogicDoer;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The fork-join pool research graphs are built on, loading included. It is separate from Play's
+ * dispatcher and from the common pool, so graphs never hold the threads that serve the other pages,
+ * and its size (research.parallelism) caps how many threads research graphs use at once no matter
+ * how many are requested.
+ */
+public class ResearchAggregationPool {
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            LogicDoer.getResearchParallelism(),
+            p -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                thread.setName("research-aggregation-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            null,
+            false);
+
+    public static ForkJoinPool get() {
+
+        return pool;
+    }
+
+    /**
+     * Stops the pool, call when the application stops.
+     */
+    public static void shutdown() {
+
+        pool.shutdownNow();
+    }
+}
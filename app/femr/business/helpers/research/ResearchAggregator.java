@@ -0,0 +1,422 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import femr.common.models.ResearchResultItem;
+import femr.common.models.ResearchResultSetItem;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds research graph data from ResearchColumns. Values are packed with their secondary
+ * category into primitive longs and sorted, so no boxed keys or per value maps are created
+ * while rows are read.
+ *
+ * Large column sets are split into chunks on a fork-join pool: chunks filter rows and build
+ * sorted partial histograms in parallel, and partial histograms are combined by merging. Only
+ * the patient de-duplication runs in row order, as the first encounter of a patient is the
+ * one that counts.
+ */
+public class ResearchAggregator {
+
+    // rows handled by one fork-join leaf
+    private static final int CHUNK_SIZE = 8192;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param pool the pool large aggregations are split over, null to always run on the calling thread
+     */
+    public ResearchAggregator(ForkJoinPool pool) {
+
+        this.pool = pool;
+    }
+
+    /**
+     * Aggregates a primary dataset, optionally broken down by a categorical secondary dataset.
+     * Datasets must not change state in values(), it is called from several threads.
+     *
+     * @param columns    loaded encounter columns, not null
+     * @param primary    dataset to graph, not null
+     * @param secondary  categorical dataset to break the primary down by, may be null
+     * @param rangeStart lowest value kept for ranged datasets
+     * @param rangeEnd   highest value kept for ranged datasets
+     * @return the graph data
+     */
+    public ResearchResultSetItem aggregate(ResearchColumns columns, ResearchDataset primary, ResearchDataset secondary, float rangeStart, float rangeEnd) {
+
+        // do nothing if there are no encounters
+        if (columns.size() == 0) return new ResearchResultSetItem();
+
+        boolean useSecondary = secondary != null && secondary.getCategoryCount() > 0 && primary.supportsSecondary();
+        int categoryCount = useSecondary ? secondary.getCategoryCount() : 1;
+
+        primary.bind(columns);
+        if (useSecondary) {
+
+            secondary.bind(columns);
+        }
+
+        // values per row, -1 when the row doesn't count as an encounter
+        int[] valueCounts = new int[columns.size()];
+        float encountersTotal = run(new CountTask(columns, primary, rangeStart, rangeEnd, valueCounts, 0, columns.size()));
+
+        // patient ids are dense auto increment keys, a bit per id is enough to de-duplicate.
+        // this has to see rows in order, which is a cheap bit test per row
+        BitSet countedPatients = new BitSet();
+        boolean[] counted = new boolean[columns.size()];
+        float patientsTotal = 0;
+        for (int row = 0; row < columns.size(); row++) {
+
+            if (valueCounts[row] < 0) continue;
+
+            // only the first encounter of a patient is counted
+            int patientId = columns.getPatientId(row);
+            if (countedPatients.get(patientId)) continue;
+            countedPatients.set(patientId);
+
+            if (valueCounts[row] == 0 && !primary.countsPatientsWithoutValues()) continue;
+            patientsTotal++;
+            counted[row] = valueCounts[row] > 0;
+        }
+
+        Partial partial = run(new HistogramTask(columns, primary, useSecondary ? secondary : null, valueCounts, counted, 0, columns.size()));
+
+        ResearchResultSetItem resultSet = new ResearchResultSetItem();
+        resultSet.setDataType(primary.getName());
+        resultSet.setUnitOfMeasurement(primary.getUnitOfMeasurement());
+        resultSet.setPrimaryValueMap(primary.createValueMap(columns));
+        if (useSecondary) {
+
+            resultSet.setSecondaryValueMap(secondary.createValueMap(columns));
+        }
+        resultSet.setDataset(buildDataset(partial.keys, partial.keyCount, useSecondary, categoryCount));
+        resultSet.setTotalPatients(patientsTotal);
+        resultSet.setTotalEncounters(encountersTotal);
+
+        if (primary.hasStatistics() && partial.keyCount > 0) {
+
+            float average = (float) (partial.totalForAvg / patientsTotal);
+            resultSet.setAverage(average);
+            resultSet.setDataRangeLow(partial.rangeLow);
+            resultSet.setDataRangeHigh(partial.rangeHigh);
+
+            if (primary.hasStandardDeviation()) {
+
+                // spread of the per value patient totals around the average
+                double devSum = 0.0;
+                for (ResearchResultItem item : resultSet.getDataset()) {
+
+                    devSum += Math.pow(item.getPrimaryValue() - average, 2);
+                }
+                resultSet.setStandardDeviation(Math.sqrt(devSum));
+            }
+        }
+
+        return resultSet;
+    }
+
+    /**
+     * Runs small inputs on the calling thread and splits large ones over the pool.
+     */
+    private <T> T run(ChunkedTask<T> task) {
+
+        if (pool == null || task.to - task.from <= CHUNK_SIZE) {
+
+            return task.computeChunk();
+        }
+
+        if (ForkJoinTask.getPool() == pool) {
+
+            // already on one of the pool's workers, which forks the chunks to the others
+            return task.invoke();
+        }
+        return pool.invoke(task);
+    }
+
+    /**
+     * Splits a row range in half until it is at most CHUNK_SIZE rows, then combines the halves.
+     */
+    private static abstract class ChunkedTask<T> extends RecursiveTask<T> {
+
+        protected final int from;
+        protected final int to;
+
+        ChunkedTask(int from, int to) {
+
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected T compute() {
+
+            if (to - from <= CHUNK_SIZE) {
+
+                return computeChunk();
+            }
+
+            int middle = (from + to) >>> 1;
+            ChunkedTask<T> left = split(from, middle);
+            ChunkedTask<T> right = split(middle, to);
+            left.fork();
+            T rightResult = right.compute();
+
+            return combine(left.join(), rightResult);
+        }
+
+        abstract T computeChunk();
+
+        abstract ChunkedTask<T> split(int from, int to);
+
+        abstract T combine(T left, T right);
+    }
+
+    /**
+     * Works out how many values each row has and counts the rows that are encounters.
+     */
+    private static class CountTask extends ChunkedTask<Integer> {
+
+        private final ResearchColumns columns;
+        private final ResearchDataset primary;
+        private final float rangeStart;
+        private final float rangeEnd;
+        private final int[] valueCounts;
+
+        CountTask(ResearchColumns columns, ResearchDataset primary, float rangeStart, float rangeEnd, int[] valueCounts, int from, int to) {
+
+            super(from, to);
+            this.columns = columns;
+            this.primary = primary;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+            this.valueCounts = valueCounts;
+        }
+
+        @Override
+        Integer computeChunk() {
+
+            float[] values = new float[Math.max(1, primary.getMaxValues(columns))];
+            int encounters = 0;
+            for (int row = from; row < to; row++) {
+
+                int valueCount = primary.values(columns, row, values);
+
+                // continuous values outside the range, or missing, don't count as an encounter
+                if (primary.isRanged() && (valueCount == 0 || values[0] < rangeStart || values[0] > rangeEnd)) {
+
+                    valueCounts[row] = -1;
+                    continue;
+                }
+
+                valueCounts[row] = valueCount;
+                encounters++;
+            }
+
+            return encounters;
+        }
+
+        @Override
+        ChunkedTask<Integer> split(int from, int to) {
+
+            return new CountTask(columns, primary, rangeStart, rangeEnd, valueCounts, from, to);
+        }
+
+        @Override
+        Integer combine(Integer left, Integer right) {
+
+            return left + right;
+        }
+    }
+
+    /**
+     * Packs the values of the counted rows into a sorted partial histogram.
+     */
+    private static class HistogramTask extends ChunkedTask<Partial> {
+
+        private final ResearchColumns columns;
+        private final ResearchDataset primary;
+        private final ResearchDataset secondary;
+        private final int[] valueCounts;
+        private final boolean[] counted;
+
+        HistogramTask(ResearchColumns columns, ResearchDataset primary, ResearchDataset secondary, int[] valueCounts, boolean[] counted, int from, int to) {
+
+            super(from, to);
+            this.columns = columns;
+            this.primary = primary;
+            this.secondary = secondary;
+            this.valueCounts = valueCounts;
+            this.counted = counted;
+        }
+
+        @Override
+        Partial computeChunk() {
+
+            int keyCount = 0;
+            for (int row = from; row < to; row++) {
+
+                if (counted[row]) keyCount += valueCounts[row];
+            }
+
+            Partial partial = new Partial(keyCount);
+            float[] values = new float[Math.max(1, primary.getMaxValues(columns))];
+            float[] category = new float[1];
+            for (int row = from; row < to; row++) {
+
+                if (!counted[row]) continue;
+
+                int valueCount = primary.values(columns, row, values);
+                int secondaryCategory = 0;
+                if (secondary != null && secondary.values(columns, row, category) > 0) {
+
+                    secondaryCategory = (int) category[0];
+                }
+
+                for (int i = 0; i < valueCount; i++) {
+
+                    partial.add(values[i], secondaryCategory);
+                }
+            }
+            Arrays.sort(partial.keys, 0, partial.keyCount);
+
+            return partial;
+        }
+
+        @Override
+        ChunkedTask<Partial> split(int from, int to) {
+
+            return new HistogramTask(columns, primary, secondary, valueCounts, counted, from, to);
+        }
+
+        @Override
+        Partial combine(Partial left, Partial right) {
+
+            return Partial.merge(left, right);
+        }
+    }
+
+    /**
+     * Sorted packed values and running statistics for a range of rows.
+     */
+    private static class Partial {
+
+        private long[] keys;
+        private int keyCount;
+        private double totalForAvg;
+        private float rangeLow = Float.MAX_VALUE;
+        private float rangeHigh = -1 * Float.MAX_VALUE;
+
+        Partial(int capacity) {
+
+            keys = new long[capacity];
+        }
+
+        void add(float value, int category) {
+
+            keys[keyCount++] = pack(value, category);
+            totalForAvg += value;
+            rangeLow = Math.min(rangeLow, value);
+            rangeHigh = Math.max(rangeHigh, value);
+        }
+
+        static Partial merge(Partial left, Partial right) {
+
+            Partial merged = new Partial(left.keyCount + right.keyCount);
+            int l = 0;
+            int r = 0;
+            while (l < left.keyCount && r < right.keyCount) {
+
+                merged.keys[merged.keyCount++] = left.keys[l] <= right.keys[r] ? left.keys[l++] : right.keys[r++];
+            }
+            while (l < left.keyCount) merged.keys[merged.keyCount++] = left.keys[l++];
+            while (r < right.keyCount) merged.keys[merged.keyCount++] = right.keys[r++];
+
+            merged.totalForAvg = left.totalForAvg + right.totalForAvg;
+            merged.rangeLow = Math.min(left.rangeLow, right.rangeLow);
+            merged.rangeHigh = Math.max(left.rangeHigh, right.rangeHigh);
+
+            return merged;
+        }
+    }
+
+    /**
+     * Turns each run of equal values in the sorted packed values into a result item.
+     */
+    private List<ResearchResultItem> buildDataset(long[] keys, int keyCount, boolean useSecondary, int categoryCount) {
+
+        String[] categoryNames = new String[categoryCount];
+        for (int c = 0; c < categoryCount; c++) {
+
+            categoryNames[c] = Float.toString((float) c);
+        }
+
+        List<ResearchResultItem> dataset = new ArrayList<>();
+        int[] categoryTotals = new int[categoryCount];
+        int i = 0;
+        while (i < keyCount) {
+
+            int sortableBits = (int) (keys[i] >> 32);
+            Arrays.fill(categoryTotals, 0);
+            int total = 0;
+            while (i < keyCount && (int) (keys[i] >> 32) == sortableBits) {
+
+                categoryTotals[(int) keys[i]]++;
+                total++;
+                i++;
+            }
+
+            ResearchResultItem item = new ResearchResultItem();
+            item.setPrimaryName(Float.toString(unpack(sortableBits)));
+            item.setPrimaryValue(total);
+            if (useSecondary) {
+
+                Map<String, Float> secondaryData = new HashMap<>();
+                for (int c = 0; c < categoryCount; c++) {
+
+                    secondaryData.put(categoryNames[c], (float) categoryTotals[c]);
+                }
+                item.setSecondaryData(secondaryData);
+            }
+            dataset.add(item);
+        }
+
+        return dataset;
+    }
+
+    /**
+     * Packs a value and category so that signed long order matches float order, then category.
+     */
+    static long pack(float value, int category) {
+
+        int bits = Float.floatToIntBits(value);
+        // flip the magnitude of negative values so they sort below positive ones
+        bits ^= (bits >> 31) & 0x7fffffff;
+
+        return ((long) bits << 32) | (category & 0xffffffffL);
+    }
+
+    static float unpack(int sortableBits) {
+
+        return Float.intBitsToFloat(sortableBits ^ ((sortableBits >> 31) & 0x7fffffff));
+    }
+}
@@ -0,0 +1,290 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column store for the handful of values research graphs read from each encounter. Rows are kept
+ * in the order encounters were loaded so patient de-duplication keeps the first encounter seen.
+ */
+public class ResearchColumns {
+
+    public static final byte MALE = 0;
+    public static final byte FEMALE = 1;
+    public static final byte NO_SEX = 2;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int size;
+    private int[] encounterIds;
+    private int[] patientIds;
+    private byte[] genders;
+    private float[] ages;
+
+    private final Map<String, Integer> vitalColumns = new HashMap<>();
+    private final float[][] vitals;
+
+    // encounter id in the high half, row in the low half, sorted for binary search
+    private long[] rowIndex;
+
+    // medications of row r are medicationIds[medicationOffsets[r]] up to medicationIds[medicationOffsets[r + 1]]
+    private int[] medicationOffsets;
+    private int[] medicationIds;
+    private int[] pendingMedicationRows = new int[INITIAL_CAPACITY];
+    private int[] pendingMedicationIds = new int[INITIAL_CAPACITY];
+    private int medicationCount;
+    private int maxMedicationsPerRow;
+    private final Map<Integer, String> medicationNames = new HashMap<>();
+
+    /**
+     * @param vitalNames names of the vitals to keep a column for, not null
+     */
+    public ResearchColumns(List<String> vitalNames) {
+
+        encounterIds = new int[INITIAL_CAPACITY];
+        patientIds = new int[INITIAL_CAPACITY];
+        genders = new byte[INITIAL_CAPACITY];
+        ages = new float[INITIAL_CAPACITY];
+
+        vitals = new float[vitalNames.size()][];
+        for (int column = 0; column < vitalNames.size(); column++) {
+
+            vitalColumns.put(vitalNames.get(column), column);
+            vitals[column] = new float[INITIAL_CAPACITY];
+            Arrays.fill(vitals[column], Float.NaN);
+        }
+    }
+
+    /**
+     * Maps a patient's sex onto MALE, FEMALE or NO_SEX without a regular expression.
+     */
+    public static byte toGender(String sex) {
+
+        if ("Male".equalsIgnoreCase(sex)) {
+
+            return MALE;
+        } else if ("Female".equalsIgnoreCase(sex)) {
+
+            return FEMALE;
+        }
+
+        return NO_SEX;
+    }
+
+    /**
+     * Appends an encounter.
+     *
+     * @param encounterId id of the encounter
+     * @param patientId   id of the patient
+     * @param gender      one of MALE, FEMALE or NO_SEX
+     * @param age         floored age at triage, NaN when the birth date is unknown
+     * @return the row of the encounter
+     */
+    public int addEncounter(int encounterId, int patientId, byte gender, float age) {
+
+        if (size == encounterIds.length) {
+
+            grow();
+        }
+
+        encounterIds[size] = encounterId;
+        patientIds[size] = patientId;
+        genders[size] = gender;
+        ages[size] = age;
+        rowIndex = null;
+
+        return size++;
+    }
+
+    private void grow() {
+
+        int capacity = encounterIds.length * 2;
+        encounterIds = Arrays.copyOf(encounterIds, capacity);
+        patientIds = Arrays.copyOf(patientIds, capacity);
+        genders = Arrays.copyOf(genders, capacity);
+        ages = Arrays.copyOf(ages, capacity);
+        for (int column = 0; column < vitals.length; column++) {
+
+            int oldCapacity = vitals[column].length;
+            vitals[column] = Arrays.copyOf(vitals[column], capacity);
+            Arrays.fill(vitals[column], oldCapacity, capacity, Float.NaN);
+        }
+    }
+
+    /**
+     * Finds the row of an encounter.
+     *
+     * @param encounterId id of the encounter
+     * @return the row or -1 if the encounter was not loaded
+     */
+    public int findRow(int encounterId) {
+
+        if (rowIndex == null) {
+
+            rowIndex = new long[size];
+            for (int row = 0; row < size; row++) {
+
+                rowIndex[row] = ((long) encounterIds[row] << 32) | row;
+            }
+            Arrays.sort(rowIndex);
+        }
+
+        int low = 0;
+        int high = rowIndex.length - 1;
+        while (low <= high) {
+
+            int middle = (low + high) >>> 1;
+            int middleId = (int) (rowIndex[middle] >> 32);
+            if (middleId < encounterId) {
+
+                low = middle + 1;
+            } else if (middleId > encounterId) {
+
+                high = middle - 1;
+            } else {
+
+                return (int) rowIndex[middle];
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the column index of a vital or -1 if the vital was not requested
+     */
+    public int getVitalColumn(String vitalName) {
+
+        Integer column = vitalColumns.get(vitalName);
+        return column == null ? -1 : column;
+    }
+
+    public void setVital(int row, int column, float value) {
+
+        vitals[column][row] = value;
+    }
+
+    /**
+     * @return the values of a vital column, NaN where the encounter has no value
+     */
+    public float[] getVitalValues(int column) {
+
+        return vitals[column];
+    }
+
+    /**
+     * Records a medication for a row. Call finishMedications once every medication is added.
+     */
+    public void addMedication(int row, int medicationId, String medicationName) {
+
+        if (medicationCount == pendingMedicationRows.length) {
+
+            pendingMedicationRows = Arrays.copyOf(pendingMedicationRows, medicationCount * 2);
+            pendingMedicationIds = Arrays.copyOf(pendingMedicationIds, medicationCount * 2);
+        }
+
+        pendingMedicationRows[medicationCount] = row;
+        pendingMedicationIds[medicationCount] = medicationId;
+        medicationCount++;
+        medicationNames.putIfAbsent(medicationId, medicationName);
+    }
+
+    /**
+     * Groups the added medications by row with a counting sort.
+     */
+    public void finishMedications() {
+
+        medicationOffsets = new int[size + 1];
+        for (int i = 0; i < medicationCount; i++) {
+
+            medicationOffsets[pendingMedicationRows[i] + 1]++;
+        }
+
+        maxMedicationsPerRow = 0;
+        for (int row = 0; row < size; row++) {
+
+            maxMedicationsPerRow = Math.max(maxMedicationsPerRow, medicationOffsets[row + 1]);
+            medicationOffsets[row + 1] += medicationOffsets[row];
+        }
+
+        medicationIds = new int[medicationCount];
+        int[] next = Arrays.copyOf(medicationOffsets, size);
+        for (int i = 0; i < medicationCount; i++) {
+
+            medicationIds[next[pendingMedicationRows[i]]++] = pendingMedicationIds[i];
+        }
+
+        pendingMedicationRows = null;
+        pendingMedicationIds = null;
+    }
+
+    public int size() {
+
+        return size;
+    }
+
+    public int getEncounterId(int row) {
+
+        return encounterIds[row];
+    }
+
+    public int getPatientId(int row) {
+
+        return patientIds[row];
+    }
+
+    public byte getGender(int row) {
+
+        return genders[row];
+    }
+
+    public float getAge(int row) {
+
+        return ages[row];
+    }
+
+    public int getMedicationStart(int row) {
+
+        return medicationOffsets == null ? 0 : medicationOffsets[row];
+    }
+
+    public int getMedicationEnd(int row) {
+
+        return medicationOffsets == null ? 0 : medicationOffsets[row + 1];
+    }
+
+    public int getMedicationId(int index) {
+
+        return medicationIds[index];
+    }
+
+    public int getMaxMedicationsPerRow() {
+
+        return maxMedicationsPerRow;
+    }
+
+    public String getMedicationName(int medicationId) {
+
+        return medicationNames.get(medicationId);
+    }
+}
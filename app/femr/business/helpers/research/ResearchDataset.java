@@ -0,0 +1,203 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import com.avaje.ebean.ExpressionList;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A dataset that can be graphed on the research page. Each dataset tells the loader which
+ * columns it reads and turns a row of ResearchColumns into zero or more values for the
+ * ResearchAggregator.
+ */
+public abstract class ResearchDataset {
+
+    /**
+     * Which prescriptions the loader should put in the medication column.
+     */
+    public enum MedicationSource {
+        NONE,
+        PRESCRIBED,
+        DISPENSED
+    }
+
+    private final String name;
+
+    protected ResearchDataset(String name) {
+
+        this.name = name;
+    }
+
+    public String getName() {
+
+        return name;
+    }
+
+    public String getUnitOfMeasurement() {
+
+        return null;
+    }
+
+    /**
+     * @return names of the vitals this dataset reads
+     */
+    public List<String> getVitalNames() {
+
+        return Collections.emptyList();
+    }
+
+    public MedicationSource getMedicationSource() {
+
+        return MedicationSource.NONE;
+    }
+
+    /**
+     * @return true if only encounters with a known birth date should be loaded
+     */
+    public boolean requiresBirthDate() {
+
+        return false;
+    }
+
+    /**
+     * Adds predicates to the encounter query so the database can skip rows that this dataset would leave
+     * out for the filter range. Values are range checked again when they are aggregated or exported, so the
+     * predicates only have to keep every row that could match.
+     *
+     * @param where    predicates of the encounter query
+     * @param vitalIds ids of the vitals in getVitalNames, by name
+     */
+    public void addRangePredicates(ExpressionList<?> where, Map<String, Integer> vitalIds, float rangeStart, float rangeEnd) {
+    }
+
+    /**
+     * Called once loading is finished and before any values are read, so columns can be looked up once.
+     */
+    public void bind(ResearchColumns columns) {
+    }
+
+    /**
+     * Writes the values of a row into the buffer.
+     *
+     * @param columns the loaded columns
+     * @param row     row to read
+     * @param values  buffer of at least getMaxValues entries
+     * @return the number of values written, 0 when the row has no value for this dataset
+     */
+    public abstract int values(ResearchColumns columns, int row, float[] values);
+
+    /**
+     * @return the most values a single row can produce
+     */
+    public int getMaxValues(ResearchColumns columns) {
+
+        return 1;
+    }
+
+    /**
+     * Ranged datasets are continuous: the filter range applies to them and rows without a
+     * value are not counted as encounters.
+     */
+    public boolean isRanged() {
+
+        return false;
+    }
+
+    /**
+     * @return true if the average and range low/high should be reported
+     */
+    public boolean hasStatistics() {
+
+        return isRanged();
+    }
+
+    public boolean hasStandardDeviation() {
+
+        return false;
+    }
+
+    /**
+     * @return true if a patient is counted even when their encounter has no value
+     */
+    public boolean countsPatientsWithoutValues() {
+
+        return false;
+    }
+
+    /**
+     * @return true if a secondary dataset can break this dataset down
+     */
+    public boolean supportsSecondary() {
+
+        return isRanged();
+    }
+
+    /**
+     * Categorical datasets have values 0 to getCategoryCount() - 1 and can be used as a secondary dataset.
+     *
+     * @return the number of categories or 0 if the dataset is not categorical
+     */
+    public int getCategoryCount() {
+
+        return 0;
+    }
+
+    /**
+     * @return names for non-numeric values or null if the values are numbers
+     */
+    public Map<Float, String> createValueMap(ResearchColumns columns) {
+
+        return null;
+    }
+
+    /**
+     * SQL for the most recently recorded value of a vital on the encounter being queried, the same value the
+     * loader keeps. The bare id is the encounter id property so Ebean qualifies it with the encounter table alias.
+     */
+    protected static String latestVitalSql(int vitalId) {
+
+        return "(select pev.vital_value from patient_encounter_vitals pev" +
+                " where pev.patient_encounter_id = id and pev.vital_id = " + vitalId +
+                " and pev.vital_value is not null order by pev.id desc limit 1)";
+    }
+
+    /**
+     * Limits valueSql to the range with a single between, so a value that is a subquery is only worked out once
+     * per row. An unset bound is left open and a null value never matches.
+     *
+     * @param slack how far each bound is widened to cover rounding differences between MySQL and Java
+     * @return false if neither bound is set and nothing was added
+     */
+    protected static boolean addRange(ExpressionList<?> where, String valueSql, float rangeStart, float rangeEnd, double slack) {
+
+        if (rangeStart <= -1 * Float.MAX_VALUE && rangeEnd >= Float.MAX_VALUE) {
+
+            return false;
+        }
+
+        // float to double is exact, so a stored FLOAT compares the same way it does in Java
+        double low = rangeStart > -1 * Float.MAX_VALUE ? rangeStart - slack : -1 * Double.MAX_VALUE;
+        double high = rangeEnd < Float.MAX_VALUE ? rangeEnd + slack : Double.MAX_VALUE;
+        where.raw(valueSql + " between ? and ?", new Object[]{ low, high });
+        return true;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import femr.common.models.ResearchExportJobItem;
+import femr.common.models.ResearchFilterItem;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A research CSV export queued on the ResearchExportQueue. The export updates the progress
+ * from its worker thread while requests read it.
+ */
+public class ResearchExportJob {
+
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        FINISHED,
+        FAILED
+    }
+
+    private final String id;
+    private final int userId;
+    private final ResearchFilterItem filters;
+    private final File file;
+
+    private volatile Status status = Status.QUEUED;
+    private volatile int totalEncounters = -1;
+    private final AtomicInteger processedEncounters = new AtomicInteger();
+    private volatile String error;
+    // when the job finished or failed, 0 while it is queued or running
+    private volatile long completedAt;
+
+    ResearchExportJob(String id, int userId, ResearchFilterItem filters, File file) {
+
+        this.id = id;
+        this.userId = userId;
+        this.filters = filters;
+        this.file = file;
+    }
+
+    public String getId() {
+
+        return id;
+    }
+
+    public int getUserId() {
+
+        return userId;
+    }
+
+    public ResearchFilterItem getFilters() {
+
+        return filters;
+    }
+
+    public File getFile() {
+
+        return file;
+    }
+
+    public Status getStatus() {
+
+        return status;
+    }
+
+    public long getCompletedAt() {
+
+        return completedAt;
+    }
+
+    public boolean isCompleted() {
+
+        return status == Status.FINISHED || status == Status.FAILED;
+    }
+
+    /**
+     * @param totalEncounters the number of encounters the export will read, an upper bound on the rows written
+     */
+    public void setTotalEncounters(int totalEncounters) {
+
+        this.totalEncounters = totalEncounters;
+    }
+
+    public void encounterProcessed() {
+
+        processedEncounters.incrementAndGet();
+    }
+
+    void start() {
+
+        status = Status.RUNNING;
+    }
+
+    void finish() {
+
+        completedAt = System.currentTimeMillis();
+        status = Status.FINISHED;
+    }
+
+    void fail(String error) {
+
+        this.error = error;
+        completedAt = System.currentTimeMillis();
+        status = Status.FAILED;
+    }
+
+    public ResearchExportJobItem toItem() {
+
+        ResearchExportJobItem item = new ResearchExportJobItem();
+        item.setJobId(id);
+        item.setStatus(status.name());
+        item.setProcessedEncounters(processedEncounters.get());
+        item.setTotalEncounters(totalEncounters);
+        item.setError(error);
+        return item;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import femr.business.helpers.LogicDoer;
+import femr.common.dtos.ServiceResponse;
+import femr.common.models.ResearchFilterItem;
+import femr.util.stringhelpers.CSVSpool;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs research CSV exports in the background so they don't hold a request thread. Only
+ * research.export.threads exports read from the database at once and at most
+ * research.export.queueSize wait for a worker. Exports are written to the jobs folder inside the
+ * CSV folder and are deleted once they are older than research.export.retentionMinutes.
+ */
+public class ResearchExportQueue {
+
+    private static final String JOBS_FOLDER = "jobs";
+    private static final String FILE_PREFIX = "export-";
+    private static final String FILE_SUFFIX = ".csv";
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    private static final ResearchExportQueue queue = new ResearchExportQueue(
+            LogicDoer.getResearchExportThreads(),
+            LogicDoer.getResearchExportQueueSize(),
+            TimeUnit.MINUTES.toMillis(LogicDoer.getResearchExportRetentionMinutes()));
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService purgeExecutor;
+    private final long retentionMillis;
+    private final Map<String, ResearchExportJob> jobs = new ConcurrentHashMap<>();
+
+    private ResearchExportQueue(int threads, int queueSize, long retentionMillis) {
+
+        this.retentionMillis = retentionMillis;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> createThread(r, "research-export-" + threadNumber.incrementAndGet()));
+        this.purgeExecutor = Executors.newSingleThreadScheduledExecutor(r -> createThread(r, "research-export-purge"));
+
+        long purgeInterval = Math.max(1, retentionMillis / 4);
+        purgeExecutor.scheduleWithFixedDelay(this::purge, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public static ResearchExportQueue get() {
+
+        return queue;
+    }
+
+    /**
+     * Queues an export.
+     *
+     * @param userId  the user the export belongs to
+     * @param filters filters to export
+     * @param export  writes the job's file, reporting progress on the job
+     * @return the queued job
+     * @throws RejectedExecutionException if too many exports are already waiting
+     */
+    public ResearchExportJob submit(int userId, ResearchFilterItem filters, Function<ResearchExportJob, ServiceResponse<File>> export) {
+
+        String jobId = UUID.randomUUID().toString();
+        File file = new File(jobsFolder(), FILE_PREFIX + jobId + FILE_SUFFIX);
+        ResearchExportJob job = new ResearchExportJob(jobId, userId, filters, file);
+
+        jobs.put(jobId, job);
+        try {
+
+            executor.execute(() -> run(job, export));
+        } catch (RejectedExecutionException ex) {
+
+            jobs.remove(jobId);
+            throw ex;
+        }
+
+        return job;
+    }
+
+    /**
+     * @return the job, or null if there is no such job or it has been purged
+     */
+    public ResearchExportJob find(String jobId) {
+
+        if (jobId == null) {
+
+            return null;
+        }
+        return jobs.get(jobId);
+    }
+
+    /**
+     * Forgets completed jobs older than the retention and deletes old export files, along with the
+     * spool files exports that stopped midway left behind.
+     */
+    public void purge() {
+
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+
+        Iterator<ResearchExportJob> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+
+            ResearchExportJob job = iterator.next();
+            if (job.isCompleted() && job.getCompletedAt() < cutoff) {
+
+                iterator.remove();
+                job.getFile().delete();
+            }
+        }
+
+        // files left by jobs from before a restart, and the spool files of exports that were interrupted
+        File[] files = jobsFolder().listFiles();
+        if (files == null) {
+
+            return;
+        }
+        for (File file : files) {
+
+            String name = file.getName();
+            if (file.lastModified() >= cutoff) {
+
+                continue;
+            }
+
+            if (name.startsWith(CSVSpool.FILE_PREFIX) && name.endsWith(CSVSpool.FILE_SUFFIX)) {
+
+                // a running export only stops writing its spool while it copies it into the export file
+                if (!isExporting()) {
+
+                    file.delete();
+                }
+                continue;
+            }
+
+            if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) {
+
+                continue;
+            }
+
+            String jobId = name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length());
+            if (!jobs.containsKey(jobId)) {
+
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Stops the workers, call when the application stops. Running exports are interrupted and
+     * their files are purged by the next run.
+     */
+    public void shutdown() {
+
+        purgeExecutor.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void run(ResearchExportJob job, Function<ResearchExportJob, ServiceResponse<File>> export) {
+
+        job.start();
+        try {
+
+            ServiceResponse<File> response = export.apply(job);
+            if (response.hasErrors()) {
+
+                job.fail(String.join(", ", response.getErrors().values()));
+            } else {
+
+                job.finish();
+            }
+        } catch (Exception ex) {
+
+            job.fail(ex.getMessage());
+        }
+
+        if (job.getStatus() == ResearchExportJob.Status.FAILED) {
+
+            // don't leave a partial file to be downloaded
+            job.getFile().delete();
+        }
+    }
+
+    private boolean isExporting() {
+
+        for (ResearchExportJob job : jobs.values()) {
+
+            if (job.getStatus() == ResearchExportJob.Status.RUNNING) {
+
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static File jobsFolder() {
+
+        return new File(LogicDoer.getCsvFilePath(), JOBS_FOLDER);
+    }
+
+    private static Thread createThread(Runnable runnable, String name) {
+
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import femr.business.helpers.CacheGeneration;
+import femr.business.helpers.LogicDoer;
+import femr.common.models.ResearchFilterItem;
+import femr.common.models.ResearchResultItem;
+import femr.common.models.ResearchResultSetItem;
+import org.joda.time.DateTime;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Research graphs that have already been built, keyed by the filters that change the graph. Grouping and
+ * graph type are applied after a graph is built, so they are not part of the key. Entries are evicted
+ * least recently used first when there are too many or when they hold too many data points in total,
+ * and are dropped when an encounter inside their date range changes.
+ */
+public class ResearchResultCache {
+
+    private static final ResearchResultCache cache = new ResearchResultCache(
+            LogicDoer.getResearchCacheEntries(),
+            LogicDoer.getResearchCacheDataPoints());
+
+    private final int maxEntries;
+    private final long maxDataPoints;
+    // access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Key, ResearchResultSetItem> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long dataPoints;
+    private final CacheGeneration version = new CacheGeneration();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    public ResearchResultCache(int maxEntries, long maxDataPoints) {
+
+        this.maxEntries = maxEntries;
+        this.maxDataPoints = maxDataPoints;
+    }
+
+    public static ResearchResultCache get() {
+
+        return cache;
+    }
+
+    /**
+     * @return a copy of the cached graph for the filters, or null if it isn't cached
+     */
+    public ResearchResultSetItem find(ResearchFilterItem filters) {
+
+        Key key = new Key(filters);
+        ResearchResultSetItem results;
+        synchronized (this) {
+
+            results = entries.get(key);
+        }
+
+        if (results == null) {
+
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return copy(results);
+    }
+
+    /**
+     * @return the version to pass to put once the graph has been built
+     */
+    public synchronized long getVersion() {
+
+        return version.current();
+    }
+
+    /**
+     * Caches an ungrouped graph, evicting the least recently used graphs to make room.
+     *
+     * @param version the version from before the graph was built, the graph isn't cached if anything was
+     *                invalidated since
+     */
+    public void put(ResearchFilterItem filters, ResearchResultSetItem results, long version) {
+
+        long size = countDataPoints(results);
+        if (maxEntries == 0 || size > maxDataPoints) {
+
+            return;
+        }
+
+        Key key = new Key(filters);
+        synchronized (this) {
+
+            if (!this.version.isCurrent(version)) {
+
+                return;
+            }
+
+            ResearchResultSetItem replaced = entries.put(key, copy(results));
+            if (replaced != null) {
+
+                dataPoints -= countDataPoints(replaced);
+            }
+            dataPoints += size;
+
+            Iterator<ResearchResultSetItem> iterator = entries.values().iterator();
+            while ((entries.size() > maxEntries || dataPoints > maxDataPoints) && iterator.hasNext()) {
+
+                dataPoints -= countDataPoints(iterator.next());
+                iterator.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops every graph whose date range contains the triage date of a changed encounter.
+     *
+     * @param dateOfTriageVisit the triage date, null to drop every graph
+     */
+    public void invalidate(DateTime dateOfTriageVisit) {
+
+        Date date = dateOfTriageVisit == null ? null : dateOfTriageVisit.toDate();
+        synchronized (this) {
+
+            version.advance();
+            Iterator<Map.Entry<Key, ResearchResultSetItem>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+
+                Map.Entry<Key, ResearchResultSetItem> entry = iterator.next();
+                if (entry.getKey().covers(date)) {
+
+                    dataPoints -= countDataPoints(entry.getValue());
+                    iterator.remove();
+                    invalidationCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+
+        version.advance();
+        entries.clear();
+        dataPoints = 0;
+    }
+
+    public synchronized int size() {
+
+        return entries.size();
+    }
+
+    /**
+     * @return how the cache has been used since startup
+     */
+    public synchronized Statistics retrieveStatistics() {
+
+        return new Statistics(entries.size(), dataPoints, hitCount.get(), missCount.get(),
+                evictionCount.get(), invalidationCount.get());
+    }
+
+    private static long countDataPoints(ResearchResultSetItem results) {
+
+        long count = 1;
+        if (results.getDataset() != null) {
+
+            for (ResearchResultItem item : results.getDataset()) {
+
+                count += 1 + (item.getSecondaryData() == null ? 0 : item.getSecondaryData().size());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Grouping replaces the dataset of the graph it is given, so callers get their own set item.
+     * The items themselves are never modified.
+     */
+    private static ResearchResultSetItem copy(ResearchResultSetItem results) {
+
+        ResearchResultSetItem copy = new ResearchResultSetItem();
+        copy.setAverage(results.getAverage());
+        copy.setDataRangeLow(results.getDataRangeLow());
+        copy.setDataRangeHigh(results.getDataRangeHigh());
+        copy.setTotalPatients(results.getTotalPatients());
+        copy.setTotalEncounters(results.getTotalEncounters());
+        copy.setStandardDeviation(results.getStandardDeviation());
+        copy.setDataType(results.getDataType());
+        copy.setUnitOfMeasurement(results.getUnitOfMeasurement());
+        copy.setDataset(results.getDataset());
+        copy.setPrimaryValueMap(results.getPrimaryValueMap());
+        copy.setSecondaryValueMap(results.getSecondaryValueMap());
+        return copy;
+    }
+
+    /**
+     * How the cache has been used since startup.
+     */
+    public static final class Statistics {
+
+        private final int size;
+        private final long dataPoints;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long invalidations;
+
+        private Statistics(int size, long dataPoints, long hits, long misses, long evictions, long invalidations) {
+
+            this.size = size;
+            this.dataPoints = dataPoints;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+        }
+
+        /**
+         * @return number of cached graphs
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return data points held by the cached graphs, limited by research.cache.dataPoints
+         */
+        public long getDataPoints() {
+            return dataPoints;
+        }
+
+        /**
+         * @return graphs answered from memory
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return graphs that had to be built
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return graphs dropped to make room
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * @return graphs dropped because an encounter in their date range changed
+         */
+        public long getInvalidations() {
+            return invalidations;
+        }
+    }
+
+    /**
+     * The filters that change a graph, normalized so equivalent requests share an entry.
+     */
+    private static class Key {
+
+        private final String primaryDataset;
+        private final String secondaryDataset;
+        // start of the first day and start of the day after the last day, null when not filtered by date
+        private final Date startDate;
+        private final Date endDate;
+        private final float filterRangeStart;
+        private final float filterRangeEnd;
+        private final String medicationName;
+        private final Integer missionTripId;
+
+        Key(ResearchFilterItem filters) {
+
+            this.primaryDataset = normalize(filters.getPrimaryDataset());
+            this.secondaryDataset = normalize(filters.getSecondaryDataset());
+
+            // parsed the same way as the research query, which ignores the dates unless both parse
+            Date start = parseDate(filters.getStartDate());
+            Date end = parseDate(filters.getEndDate());
+            if (start == null || end == null) {
+
+                start = null;
+                end = null;
+            } else {
+
+                end = new DateTime(end).plusDays(1).toDate();
+            }
+            this.startDate = start;
+            this.endDate = end;
+
+            this.filterRangeStart = filters.getFilterRangeStart() == null ? -1 * Float.MAX_VALUE : filters.getFilterRangeStart();
+            this.filterRangeEnd = filters.getFilterRangeEnd() == null ? Float.MAX_VALUE : filters.getFilterRangeEnd();
+            // medication names are matched with a case insensitive like
+            String medication = normalize(filters.getMedicationName());
+            this.medicationName = medication == null ? null : medication.toLowerCase();
+            this.missionTripId = filters.getMissionTripId();
+        }
+
+        boolean covers(Date date) {
+
+            if (date == null || startDate == null) {
+
+                return true;
+            }
+            return !date.before(startDate) && date.before(endDate);
+        }
+
+        private static String normalize(String value) {
+
+            if (value == null || value.trim().isEmpty()) {
+
+                return null;
+            }
+            return value.trim();
+        }
+
+        private static Date parseDate(String date) {
+
+            if (date == null) {
+
+                return null;
+            }
+            try {
+
+                return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(date + " 00:00:00");
+            } catch (ParseException e) {
+
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return Float.compare(key.filterRangeStart, filterRangeStart) == 0 &&
+                    Float.compare(key.filterRangeEnd, filterRangeEnd) == 0 &&
+                    Objects.equals(primaryDataset, key.primaryDataset) &&
+                    Objects.equals(secondaryDataset, key.secondaryDataset) &&
+                    Objects.equals(startDate, key.startDate) &&
+                    Objects.equals(endDate, key.endDate) &&
+                    Objects.equals(medicationName, key.medicationName) &&
+                    Objects.equals(missionTripId, key.missionTripId);
+        }
+
+        @Override
+        public int hashCode() {
+
+            return Objects.hash(primaryDataset, secondaryDataset, startDate, endDate, filterRangeStart, filterRangeEnd,
+                    medicationName, missionTripId);
+        }
+    }
+}
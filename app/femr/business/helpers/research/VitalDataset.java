@@ -0,0 +1,99 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.research;
+
+import com.avaje.ebean.ExpressionList;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Any vital recorded at triage, graphed by its value.
+ */
+public class VitalDataset extends ResearchDataset {
+
+    private final String unitOfMeasurement;
+    private float[] vitalValues;
+
+    public VitalDataset(String vitalName, String unitOfMeasurement) {
+
+        super(vitalName);
+        this.unitOfMeasurement = unitOfMeasurement;
+    }
+
+    @Override
+    public String getUnitOfMeasurement() {
+
+        return unitOfMeasurement;
+    }
+
+    @Override
+    public List<String> getVitalNames() {
+
+        return Collections.singletonList(getName());
+    }
+
+    @Override
+    public void addRangePredicates(ExpressionList<?> where, Map<String, Integer> vitalIds, float rangeStart, float rangeEnd) {
+
+        Integer vitalId = vitalIds.get(getName());
+        if (vitalId == null) {
+
+            return;
+        }
+
+        // encounters without the vital are never counted
+        String valueSql = latestVitalSql(vitalId);
+        if (!addRange(where, valueSql, rangeStart, rangeEnd, 0)) {
+
+            where.raw(valueSql + " is not null");
+        }
+    }
+
+    @Override
+    public void bind(ResearchColumns columns) {
+
+        vitalValues = columns.getVitalValues(columns.getVitalColumn(getName()));
+    }
+
+    @Override
+    public int values(ResearchColumns columns, int row, float[] values) {
+
+        if (Float.isNaN(vitalValues[row])) {
+
+            return 0;
+        }
+
+        values[0] = vitalValues[row];
+        return 1;
+    }
+
+    @Override
+    public boolean isRanged() {
+
+        return true;
+    }
+
+    @Override
+    public boolean hasStandardDeviation() {
+
+        return true;
+    }
+}
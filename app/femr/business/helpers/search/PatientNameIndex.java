@@ -0,0 +1,760 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.business.helpers.search;
+
+import org.apache.commons.codec.language.DoubleMetaphone;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Resident index of the patients that can be searched for, so the patient typeahead doesn't have to
+ * load every patient on each request. Words from the first name, last name and the patient id are kept
+ * in a sorted map, so every patient with a word starting with a prefix is found with one range lookup.
+ * Name words are also kept by their Double Metaphone keys so names that are spelled differently but
+ * sound the same can be found, see searchFuzzy.
+ *
+ * The index is loaded the first time it is needed. Changes made while it is loading are kept, the load
+ * only adds patients it hasn't already been told about.
+ */
+public class PatientNameIndex {
+
+    private static final PatientNameIndex index = new PatientNameIndex();
+
+    private static final DoubleMetaphone METAPHONE = new DoubleMetaphone();
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    // scores of a query word against a patient's word, a patient's score is the sum over the query words
+    private static final float EXACT_SCORE = 3.0f;
+    private static final float PREFIX_SCORE = 2.5f;
+    private static final float EDIT_SCORE = 3.0f;
+    private static final float EDIT_PENALTY = 0.75f;
+    private static final float PHONETIC_SCORE = 2.0f;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    // lower case word -> ids of the patients with that word
+    private final TreeMap<String, Set<Integer>> words = new TreeMap<>();
+    // phonetic key -> name words with that key
+    private final Map<String, Set<String>> phoneticWords = new HashMap<>();
+    // first letter and length -> name words, the only words worth an edit distance comparison
+    private final Map<String, Set<String>> wordsByShape = new HashMap<>();
+    // patients deleted while the index was loading
+    private final Set<Integer> deletedWhileLoading = new HashSet<>();
+    private volatile boolean loaded;
+    private boolean loading;
+    // changes whenever a patient is added, removed or changed, see getGeneration
+    private long generation;
+
+    public static PatientNameIndex get() {
+
+        return index;
+    }
+
+    public boolean isLoaded() {
+
+        return loaded;
+    }
+
+    /**
+     * @return a number that changes whenever a patient is added, removed or changed, whether or not the
+     * index is loaded, so lists of patients built from the database can be kept until it changes
+     */
+    public long getGeneration() {
+
+        lock.readLock().lock();
+        try {
+
+            return generation;
+        } finally {
+
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Changes the generation without changing the index, call when something outside of the patients
+     * changes which patients are listed, e.g. the country filter setting.
+     */
+    public void invalidateLists() {
+
+        lock.writeLock().lock();
+        try {
+
+            generation++;
+        } finally {
+
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks the index as loading. Only one caller is told to load it.
+     *
+     * @return true if the caller should load the index and then call finishLoading
+     */
+    public boolean startLoading() {
+
+        lock.writeLock().lock();
+        try {
+
+            if (loaded || loading) {
+
+                return false;
+            }
+            loading = true;
+            deletedWhileLoading.clear();
+            return true;
+        } finally {
+
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a patient read by the loader, unless it changed since the load started.
+     */
+    public void load(Entry entry) {
+
+        lock.writeLock().lock();
+        try {
+
+            if (deletedWhileLoading.contains(entry.getId())) {
+
+                return;
+            }
+            Entry existing = entries.get(entry.getId());
+            if (existing == null) {
+
+                put(entry);
+            } else {
+
+                // keep what was added since the load started and the countries the load found
+                Set<String> countries = new HashSet<>(existing.countries);
+                countries.addAll(entry.countries);
+                put(existing.withCountries(countries));
+            }
+        } finally {
+
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param successful false if loading failed and should be retried by the next caller
+     */
+    public void finishLoading(boolean successful) {
+
+        lock.writeLock().lock();
+        try {
+
+            loading = false;
+            deletedWhileLoading.clear();
+            if (successful) {
+
+                loaded = true;
+            } else {
+
+                entries.clear();
+                words.clear();
+                phoneticWords.clear();
+                wordsByShape.clear();
+            }
+        } finally {
+
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void add(Entry entry) {
+
+        lock.writeLock().lock();
+        try {
+
+            Entry existing = entries.get(entry.getId());
+            if (existing != null) {
+
+                Set<String> countries = new HashSet<>(existing.countries);
+                countries.addAll(entry.countries);
+                entry = entry.withCountries(countries);
+            }
+            deletedWhileLoading.remove(entry.getId());
+            put(entry);
+            generation++;
+        } finally {
+
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int patientId) {
+
+        lock.writeLock().lock();
+        try {
+
+            if (loading) {
+
+                deletedWhileLoading.add(patientId);
+            }
+            Entry existing = entries.remove(patientId);
+            if (existing != null) {
+
+                removeWords(existing);
+            }
+            generation++;
+        } finally {
+
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Records that the patient has an encounter in a country.
+     */
+    public void addCountry(int patientId, String country) {
+
+        if (country == null) {
+
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+
+            Entry existing = entries.get(patientId);
+            if (existing != null && !existing.countries.contains(normalize(country))) {
+
+                Set<String> countries = new HashSet<>(existing.countries);
+                countries.add(normalize(country));
+                entries.put(patientId, existing.withCountries(countries));
+            }
+            generation++;
+        } finally {
+
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void setHasPhoto(int patientId, boolean hasPhoto) {
+
+        lock.writeLock().lock();
+        try {
+
+            Entry existing = entries.get(patientId);
+            if (existing != null) {
+
+                entries.put(patientId, new Entry(existing.id, existing.firstName, existing.lastName, existing.birth, hasPhoto, existing.countries));
+            }
+            generation++;
+        } finally {
+
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the patients where every word of the query starts one of their words. Patients with a word
+     * equal to a query word come first, then the most recently registered.
+     *
+     * @param query   words to search for
+     * @param country only include patients with an encounter in this country, null for all patients
+     * @param limit   the most patients to return
+     * @return the best matches, best first
+     */
+    public List<Entry> search(String query, String country, int limit) {
+
+        List<String> queryWords = split(query);
+        if (queryWords.isEmpty() || limit < 1) {
+
+            return new ArrayList<>();
+        }
+        String normalizedCountry = country == null ? null : normalize(country);
+
+        // the longest word has the fewest candidates
+        String firstWord = Collections.max(queryWords, Comparator.comparingInt(String::length));
+
+        PriorityQueue<Match> best = new PriorityQueue<>(limit + 1);
+        lock.readLock().lock();
+        try {
+
+            Set<Integer> candidates = new HashSet<>();
+            for (Set<Integer> ids : prefixRange(firstWord).values()) {
+
+                candidates.addAll(ids);
+            }
+
+            for (Integer id : candidates) {
+
+                Entry entry = entries.get(id);
+                if (normalizedCountry != null && !entry.countries.contains(normalizedCountry)) {
+
+                    continue;
+                }
+
+                int score = score(entry, queryWords);
+                if (score < 0) {
+
+                    continue;
+                }
+
+                best.add(new Match(entry, score));
+                if (best.size() > limit) {
+
+                    best.poll();
+                }
+            }
+        } finally {
+
+            lock.readLock().unlock();
+        }
+
+        List<Entry> results = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+
+            results.add(best.poll().entry);
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    /**
+     * Finds patients whose name sounds like or is spelled close to the query, for names that are
+     * transliterated differently from visit to visit. Every query word has to match one of the patient's
+     * words exactly, as a prefix, within a small edit distance (1, or 2 for words longer than 4 letters) or
+     * by Double Metaphone key. Numbers only match patient ids. Patients are ranked by how closely their words
+     * match, then the most recently registered first.
+     *
+     * @param country only include patients with an encounter in this country, null for all patients
+     * @param offset  number of ranked patients to skip
+     * @param limit   the most patients to return
+     * @return ids of the matching patients, best first
+     */
+    public List<Integer> searchFuzzy(String query, String country, int offset, int limit) {
+
+        List<String> queryWords = split(query);
+        if (queryWords.isEmpty() || limit < 1) {
+
+            return new ArrayList<>();
+        }
+        String normalizedCountry = country == null ? null : normalize(country);
+
+        // patient id -> best score for each query word
+        Map<Integer, float[]> scores = new HashMap<>();
+        lock.readLock().lock();
+        try {
+
+            for (int i = 0; i < queryWords.size(); i++) {
+
+                for (Map.Entry<String, Float> match : matchWords(queryWords.get(i)).entrySet()) {
+
+                    Set<Integer> ids = words.get(match.getKey());
+                    if (ids == null) {
+
+                        continue;
+                    }
+                    for (Integer id : ids) {
+
+                        if (normalizedCountry != null && !entries.get(id).countries.contains(normalizedCountry)) {
+
+                            continue;
+                        }
+                        float[] patientScores = scores.computeIfAbsent(id, k -> new float[queryWords.size()]);
+                        patientScores[i] = Math.max(patientScores[i], match.getValue());
+                    }
+                }
+            }
+        } finally {
+
+            lock.readLock().unlock();
+        }
+
+        List<Map.Entry<Integer, Float>> ranked = new ArrayList<>();
+        for (Map.Entry<Integer, float[]> patientScores : scores.entrySet()) {
+
+            float total = 0;
+            boolean allMatched = true;
+            for (float score : patientScores.getValue()) {
+
+                allMatched &= score > 0;
+                total += score;
+            }
+            if (allMatched) {
+
+                ranked.add(new AbstractMap.SimpleEntry<>(patientScores.getKey(), total));
+            }
+        }
+        ranked.sort((a, b) -> a.getValue().equals(b.getValue())
+                ? Integer.compare(b.getKey(), a.getKey())
+                : Float.compare(b.getValue(), a.getValue()));
+
+        List<Integer> results = new ArrayList<>();
+        for (int i = Math.max(0, offset); i < ranked.size() && results.size() < limit; i++) {
+
+            results.add(ranked.get(i).getKey());
+        }
+        return results;
+    }
+
+    /**
+     * @return the indexed words a query word matches and how well. Must hold the read lock.
+     */
+    private Map<String, Float> matchWords(String queryWord) {
+
+        Map<String, Float> matches = new HashMap<>();
+        if (!Character.isLetter(queryWord.charAt(0))) {
+
+            if (words.containsKey(queryWord)) {
+
+                matches.put(queryWord, EXACT_SCORE);
+            }
+            return matches;
+        }
+
+        for (String word : prefixRange(queryWord).keySet()) {
+
+            matches.put(word, word.length() == queryWord.length() ? EXACT_SCORE : PREFIX_SCORE);
+        }
+
+        for (String key : phoneticKeys(queryWord)) {
+
+            for (String word : phoneticWords.getOrDefault(key, Collections.emptySet())) {
+
+                matches.merge(word, PHONETIC_SCORE, Math::max);
+            }
+        }
+
+        // misspellings rarely change the first letter, so only words starting with it and close
+        // enough in length are compared
+        int maxDistance = queryWord.length() > 4 ? 2 : 1;
+        for (int length = queryWord.length() - maxDistance; length <= queryWord.length() + maxDistance; length++) {
+
+            for (String word : wordsByShape.getOrDefault(shape(queryWord.charAt(0), length), Collections.emptySet())) {
+
+                int distance = editDistance(queryWord, word, maxDistance);
+                if (distance <= maxDistance) {
+
+                    matches.merge(word, EDIT_SCORE - distance * EDIT_PENALTY, Math::max);
+                }
+            }
+        }
+
+        return matches;
+    }
+
+    public int size() {
+
+        lock.readLock().lock();
+        try {
+
+            return entries.size();
+        } finally {
+
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return -1 if a query word doesn't start any of the patient's words, otherwise the number of
+     * query words equal to one of the patient's words
+     */
+    private static int score(Entry entry, List<String> queryWords) {
+
+        List<String> entryWords = entry.words();
+        int score = 0;
+        for (String queryWord : queryWords) {
+
+            boolean matched = false;
+            for (String entryWord : entryWords) {
+
+                if (entryWord.startsWith(queryWord)) {
+
+                    matched = true;
+                    if (entryWord.length() == queryWord.length()) {
+
+                        score++;
+                        break;
+                    }
+                }
+            }
+            if (!matched) {
+
+                return -1;
+            }
+        }
+        return score;
+    }
+
+    private SortedMap<String, Set<Integer>> prefixRange(String prefix) {
+
+        return words.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private void put(Entry entry) {
+
+        Entry replaced = entries.put(entry.getId(), entry);
+        if (replaced != null) {
+
+            removeWords(replaced);
+        }
+        for (String word : entry.words()) {
+
+            Set<Integer> ids = words.get(word);
+            if (ids == null) {
+
+                ids = new HashSet<>();
+                words.put(word, ids);
+                for (String key : phoneticKeys(word)) {
+
+                    phoneticWords.computeIfAbsent(key, k -> new HashSet<>()).add(word);
+                }
+                wordsByShape.computeIfAbsent(shape(word.charAt(0), word.length()), k -> new HashSet<>()).add(word);
+            }
+            ids.add(entry.getId());
+        }
+    }
+
+    private void removeWords(Entry entry) {
+
+        for (String word : entry.words()) {
+
+            Set<Integer> ids = words.get(word);
+            if (ids != null) {
+
+                ids.remove(entry.getId());
+                if (ids.isEmpty()) {
+
+                    words.remove(word);
+                    for (String key : phoneticKeys(word)) {
+
+                        Set<String> keyWords = phoneticWords.get(key);
+                        if (keyWords != null) {
+
+                            keyWords.remove(word);
+                            if (keyWords.isEmpty()) {
+
+                                phoneticWords.remove(key);
+                            }
+                        }
+                    }
+                    String shape = shape(word.charAt(0), word.length());
+                    Set<String> shapeWords = wordsByShape.get(shape);
+                    if (shapeWords != null) {
+
+                        shapeWords.remove(word);
+                        if (shapeWords.isEmpty()) {
+
+                            wordsByShape.remove(shape);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<String> split(String value) {
+
+        List<String> result = new ArrayList<>();
+        if (value == null) {
+
+            return result;
+        }
+        for (String word : value.trim().split("\\s+")) {
+
+            if (!word.isEmpty()) {
+
+                result.add(normalize(word));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lower case without accents, so an accented name matches the same name typed without them.
+     */
+    private static String normalize(String value) {
+
+        String decomposed = Normalizer.normalize(value.trim(), Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    private static String shape(char firstLetter, int length) {
+
+        return firstLetter + ":" + length;
+    }
+
+    /**
+     * @return the primary and alternate Double Metaphone keys of a name word, none for numbers
+     */
+    private static Set<String> phoneticKeys(String word) {
+
+        Set<String> keys = new HashSet<>(2);
+        if (!Character.isLetter(word.charAt(0))) {
+
+            return keys;
+        }
+        String primary = METAPHONE.doubleMetaphone(word, false);
+        String alternate = METAPHONE.doubleMetaphone(word, true);
+        if (primary != null && !primary.isEmpty()) {
+
+            keys.add(primary);
+        }
+        if (alternate != null && !alternate.isEmpty()) {
+
+            keys.add(alternate);
+        }
+        return keys;
+    }
+
+    /**
+     * Levenshtein distance that gives up once it is more than maxDistance.
+     *
+     * @return the distance, or maxDistance + 1 if it is larger than maxDistance
+     */
+    static int editDistance(String a, String b, int maxDistance) {
+
+        if (Math.abs(a.length() - b.length()) > maxDistance) {
+
+            return maxDistance + 1;
+        }
+
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= a.length(); i++) {
+
+            current[0] = i;
+            int rowMinimum = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+
+                int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+                rowMinimum = Math.min(rowMinimum, current[j]);
+            }
+            if (rowMinimum > maxDistance) {
+
+                return maxDistance + 1;
+            }
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        return Math.min(previous[b.length()], maxDistance + 1);
+    }
+
+    /**
+     * A patient as the typeahead shows them. Entries are never changed once they are in the index.
+     */
+    public static class Entry {
+
+        private final int id;
+        private final String firstName;
+        private final String lastName;
+        private final Date birth;
+        private final boolean hasPhoto;
+        // lower case names of the countries the patient has encounters in
+        private final Set<String> countries;
+
+        public Entry(int id, String firstName, String lastName, Date birth, boolean hasPhoto, Collection<String> countries) {
+
+            this.id = id;
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.birth = birth == null ? null : new Date(birth.getTime());
+            this.hasPhoto = hasPhoto;
+            Set<String> normalized = new HashSet<>();
+            for (String country : countries) {
+
+                normalized.add(normalize(country));
+            }
+            this.countries = Collections.unmodifiableSet(normalized);
+        }
+
+        public int getId() {
+
+            return id;
+        }
+
+        public String getFirstName() {
+
+            return firstName;
+        }
+
+        public String getLastName() {
+
+            return lastName;
+        }
+
+        public Date getBirth() {
+
+            return birth == null ? null : new Date(birth.getTime());
+        }
+
+        public boolean hasPhoto() {
+
+            return hasPhoto;
+        }
+
+        private Entry withCountries(Set<String> countries) {
+
+            return new Entry(id, firstName, lastName, birth, hasPhoto, countries);
+        }
+
+        private List<String> words() {
+
+            List<String> result = split(firstName);
+            result.addAll(split(lastName));
+            result.add(Integer.toString(id));
+            return result;
+        }
+    }
+
+    private static class Match implements Comparable<Match> {
+
+        private final Entry entry;
+        private final int score;
+
+        Match(Entry entry, int score) {
+
+            this.entry = entry;
+            this.score = score;
+        }
+
+        /**
+         * worst match first, so the priority queue drops it
+         */
+        @Override
+        public int compareTo(Match other) {
+
+            if (score != other.score) {
+
+                return Integer.compare(score, other.score);
+            }
+            return Integer.compare(entry.id, other.entry.id);
+        }
+    }
+}
@@ -77,4 +77,14 @@ public interface IPhotoService {
      * and/or errors if they exist.
      * */
     ServiceResponse<String> retrievePhotoPath(int photoId);
+
+    /**
+     * Gets the filesystem path to a smaller copy of a photo, the copy is made the first time it is asked for.
+     *
+     * @param pathToPhoto filesystem path of the photo, not null
+     * @param size "thumbnail" or "medium", any other size gets the photo itself, may be null
+     * @return a service response that contains a string to the copy's file location, or to the photo
+     * itself if a copy can't be made
+     * */
+    ServiceResponse<String> retrievePhotoDerivativePath(String pathToPhoto, String size);
 }
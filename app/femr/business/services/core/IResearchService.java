@@ -40,5 +40,33 @@ public interface IResearchService {
      */
      ServiceResponse<ResearchResultSetItem> retrieveGraphData(ResearchFilterItem filterItem);
 
-     ServiceResponse<File> retrieveCsvExportFile(ResearchFilterItem filters);
+    /**
+     * Queue a csv export to be written in the background.
+     *
+     * @param filters object representing chosen filters, not null
+     * @param userId id of the user requesting the export
+     * @return a service response that contains the queued export job
+     * and/or errors if too many exports are waiting.
+     */
+     ServiceResponse<ResearchExportJobItem> createCsvExportJob(ResearchFilterItem filters, int userId);
+
+    /**
+     * Retrieve the progress of a csv export job.
+     *
+     * @param jobId id of the export job
+     * @param userId id of the user that requested the export
+     * @return a service response that contains the export job
+     * and/or errors if the job doesn't exist or belongs to another user.
+     */
+     ServiceResponse<ResearchExportJobItem> retrieveCsvExportJob(String jobId, int userId);
+
+    /**
+     * Retrieve the file written by a finished csv export job.
+     *
+     * @param jobId id of the export job
+     * @param userId id of the user that requested the export
+     * @return a service response that contains the csv file
+     * and/or errors if the job doesn't exist or hasn't finished.
+     */
+     ServiceResponse<File> retrieveCsvExportJobFile(String jobId, int userId);
 }
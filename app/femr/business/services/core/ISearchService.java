@@ -20,6 +20,7 @@ package femr.business.services.core;
 
 import femr.common.dtos.ServiceResponse;
 import femr.common.models.*;
+import java.util.Date;
 import java.util.List;
 
 public interface ISearchService {
@@ -106,6 +107,46 @@ public interface ISearchService {
      */
     ServiceResponse<List<PatientItem>> retrievePatientsFromQueryString(String patientSearchQuery);
 
+    /**
+     * Takes a query string with patient info and returns the patients whose names are spelled close to
+     * or sound like the words in it, best match first. Words that are numbers match patient ids.
+     *
+     * @param patientSearchQuery search query for a patient, not null
+     * @param pageNumber page of results to return, starting at 1
+     * @param pageSize number of patients on a page
+     * @return a service response that contains a list of PatientItems
+     * and/or errors if they exist.
+     */
+    ServiceResponse<List<PatientItem>> retrievePatientsFromFuzzyQuery(String patientSearchQuery, int pageNumber, int pageSize);
+
+    /**
+     * Takes a query string with patient info and returns one page of the matching patients, newest first.
+     * Pages are found by their position after the previous page (keyset) instead of an offset, so later
+     * pages cost the same as the first. Falls back to close and sound-alike names the same way
+     * retrievePatientsFromQueryString does, those pages are ranked by how well they match.
+     *
+     * @param patientSearchQuery search query for a patient, not null
+     * @param cursor nextCursor of the previous page, null for the first page
+     * @param pageSize number of patients on a page
+     * @return a service response that contains a PatientSearchPageItem
+     * and/or errors if they exist.
+     */
+    ServiceResponse<PatientSearchPageItem> retrievePatientPageFromQueryString(String patientSearchQuery, String cursor, int pageSize);
+
+    /**
+     * Takes a full-text query and returns the encounters whose notes (tab field values like hpi, assessment,
+     * treatment, problems and custom fields) mention it, best match first.
+     *
+     * @param noteSearchQuery words to search for, not null
+     * @param tripId only encounters from this trip, may be null
+     * @param from only encounters triaged at or after this time, may be null
+     * @param to only encounters triaged before this time, may be null
+     * @param limit the most encounters to return
+     * @return a service response that contains a list of EncounterNoteMatchItems
+     * and/or errors if they exist.
+     */
+    ServiceResponse<List<EncounterNoteMatchItem>> retrieveEncountersFromNoteQuery(String noteSearchQuery, Integer tripId, Date from, Date to, int limit);
+
     /**
      * Get all current system setting values, only works for one right now.
      * Will need to be expanded later
@@ -124,6 +165,17 @@ public interface ISearchService {
      */
     ServiceResponse<List<PatientItem>> retrievePatientsForSearch(Integer tripId);
 
+    /**
+     * Get the patients best matching what has been typed into a patient search, without loading every patient.
+     *
+     * @param tripId id of the current trip. If this is null then patients will be matched regardless of country, may be null
+     * @param query words typed so far, each has to start a word of the patient's name or id, not null
+     * @param limit the most patients to return
+     * @return a service response that contains a list of PatientItems with the id, name, age and photo path set
+     * and/or errors if they exist.
+     */
+    ServiceResponse<List<PatientItem>> retrievePatientsForTypeahead(Integer tripId, String query, int limit);
+
     /**
      * Get all diagnosis for help on problem input fields in medical
      *
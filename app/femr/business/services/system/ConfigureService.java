@@ -19,6 +19,8 @@
 package femr.business.services.system;
 
 import com.google.inject.Inject;
+import femr.business.helpers.QueryProvider;
+import femr.business.helpers.search.PatientNameIndex;
 import femr.business.services.core.IConfigureService;
 import femr.common.dtos.ServiceResponse;
 import femr.data.daos.IRepository;
@@ -58,7 +60,8 @@ public class ConfigureService implements IConfigureService {
     @Override
     public ServiceResponse<List<? extends ISystemSetting>> updateSystemSettings(List<String> systemSettings) {
         ServiceResponse<List<? extends ISystemSetting>> response = new ServiceResponse<>();
-        List<? extends ISystemSetting> allSystemSettings = systemSettingRepository.findAll(SystemSetting.class);
+        //findAll shares read-only settings with the rest of the request
+        List<? extends ISystemSetting> allSystemSettings = systemSettingRepository.find(QueryProvider.getSystemSettingQuery());
 
         try {
             for (ISystemSetting ss : allSystemSettings) {
@@ -70,6 +73,8 @@ public class ConfigureService implements IConfigureService {
                     systemSettingRepository.update(ss);
                 }
             }
+            //the country filter setting changes which patients the typeahead lists
+            PatientNameIndex.get().invalidateLists();
 
 
             response.setResponseObject(allSystemSettings);
@@ -23,6 +23,8 @@ import com.avaje.ebean.Query;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import femr.business.helpers.QueryProvider;
+import femr.business.helpers.research.ResearchResultCache;
+import femr.business.helpers.search.PatientNameIndex;
 import femr.business.services.core.IEncounterService;
 import femr.business.services.core.IMissionTripService;
 import femr.common.IItemModelMapper;
@@ -35,7 +37,10 @@ import femr.data.models.mysql.*;
 import femr.util.calculations.dateUtils;
 import femr.util.stringhelpers.StringUtils;
 import org.joda.time.DateTime;
+import play.Logger;
 
+import javax.persistence.PersistenceException;
+import java.sql.SQLException;
 import java.util.*;
 
 public class EncounterService implements IEncounterService {
@@ -43,6 +48,7 @@ public class EncounterService implements IEncounterService {
     private IMissionTripService missionTripService;
     private final IRepository<IChiefComplaint> chiefComplaintRepository;
     private final IRepository<IPatientAgeClassification> patientAgeClassificationRepository;
+    private final IRepository<IPatientCountry> patientCountryRepository;
     private final IRepository<IPatientEncounter> patientEncounterRepository;
     private final IRepository<IPatientEncounterTabField> patientEncounterTabFieldRepository;
     private final IRepository<ITabField> tabFieldRepository;
@@ -54,6 +60,7 @@ public class EncounterService implements IEncounterService {
     public EncounterService(IMissionTripService missionTripService,
                             IRepository<IChiefComplaint> chiefComplaintRepository,
                             IRepository<IPatientAgeClassification> patientAgeClassificationRepository,
+                            IRepository<IPatientCountry> patientCountryRepository,
                             IRepository<IPatientEncounter> patientEncounterRepository,
                             IRepository<IPatientEncounterTabField> patientEncounterTabFieldRepository,
                             IRepository<ITabField> tabFieldRepository,
@@ -64,6 +71,7 @@ public class EncounterService implements IEncounterService {
         this.missionTripService = missionTripService;
         this.chiefComplaintRepository = chiefComplaintRepository;
         this.patientAgeClassificationRepository = patientAgeClassificationRepository;
+        this.patientCountryRepository = patientCountryRepository;
         this.patientEncounterRepository = patientEncounterRepository;
         this.patientEncounterTabFieldRepository = patientEncounterTabFieldRepository;
         this.tabFieldRepository = tabFieldRepository;
@@ -112,6 +120,20 @@ public class EncounterService implements IEncounterService {
                 chiefComplaintRepository.createAll(chiefComplaintBeans);
             }
 
+            //research graphs that include the new encounter are stale
+            ResearchResultCache.get().invalidate(newPatientEncounter.getDateOfTriageVisit());
+
+            // the patient can now be found by searches limited to the trip's country
+            if (tripId != null) {
+
+                addPatientCountry(patientId, newPatientEncounter);
+
+                ServiceResponse<MissionTripItem> missionTripItemServiceResponse = missionTripService.retrieveAllTripInformationByTripId(tripId);
+                if (!missionTripItemServiceResponse.hasErrors() && missionTripItemServiceResponse.getResponseObject() != null) {
+
+                    PatientNameIndex.get().addCountry(patientId, missionTripItemServiceResponse.getResponseObject().getTripCountry());
+                }
+            }
 
             response.setResponseObject(itemModelMapper.createPatientEncounterItem(newPatientEncounter));
         } catch (Exception ex) {
@@ -121,6 +143,53 @@ public class EncounterService implements IEncounterService {
         return response;
     }
 
+    /**
+     * Adds the country of an encounter's trip to the countries the patient has been seen in,
+     * unless it is already there.
+     *
+     * @param patientId        id of the patient
+     * @param patientEncounter the new encounter, with its trip
+     */
+    private void addPatientCountry(int patientId, IPatientEncounter patientEncounter) {
+
+        IMissionTrip missionTrip = patientEncounter.getMissionTrip();
+        if (missionTrip == null ||
+                missionTrip.getMissionCity() == null ||
+                missionTrip.getMissionCity().getMissionCountry() == null) {
+
+            return;
+        }
+        int missionCountryId = missionTrip.getMissionCity().getMissionCountry().getId();
+
+        ExpressionList<PatientCountry> patientCountryQuery = QueryProvider.getPatientCountryQuery()
+                .where()
+                .eq("patientId", patientId)
+                .eq("missionCountryId", missionCountryId);
+        try {
+            if (patientCountryRepository.count(patientCountryQuery) == 0)
+                patientCountryRepository.create(dataModelMapper.createPatientCountry(patientId, missionCountryId));
+        } catch (PersistenceException ex) {
+            if (isDuplicateKey(ex)) {
+                //another encounter for the same patient and country added it first
+                return;
+            }
+            //the encounter is saved, so don't fail it, but the patient is missing from country filtered searches
+            Logger.error("the country of encounter " + patientEncounter.getId() + " could not be recorded for patient " + patientId, ex);
+        }
+    }
+
+    /**
+     * @return true if the exception was caused by a row that violates a unique key (SQL state 23000)
+     */
+    private static boolean isDuplicateKey(PersistenceException ex) {
+
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && "23000".equals(((SQLException) cause).getSQLState()))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -196,10 +265,7 @@ public class EncounterService implements IEncounterService {
             return response;
         }
         try {
-            ExpressionList<PatientEncounter> patientEncounterQuery = QueryProvider.getPatientEncounterQuery()
-                    .where()
-                    .eq("id", encounterId);
-            IPatientEncounter patientEncounter = patientEncounterRepository.findOne(patientEncounterQuery);
+            IPatientEncounter patientEncounter = patientEncounterRepository.findOne(PatientEncounter.class, "id", encounterId);
             if (patientEncounter.getDoctor() == null) {
                 response.setResponseObject(null);
             } else {
@@ -25,6 +25,8 @@ import com.google.common.base.Joiner;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import femr.business.helpers.QueryProvider;
+import femr.business.helpers.medication.MedicationCatalog;
+import femr.business.helpers.research.ResearchResultCache;
 import femr.business.services.core.IMedicationService;
 import femr.common.IItemModelMapper;
 import femr.common.dtos.ServiceResponse;
@@ -41,8 +43,10 @@ import org.joda.time.DateTime;
 import play.libs.Json;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class MedicationService implements IMedicationService {
 
@@ -185,11 +189,13 @@ public class MedicationService implements IMedicationService {
                 matchingMedication.setIsDeleted(false);
 
                 medicationRepository.update(matchingMedication);
+                MedicationCatalog.get().invalidate();
                 response.setResponseObject(itemModelMapper.createMedicationItem(matchingMedication, null, null, null));
             } else {
                 // Create a new medication in the DB
                 IMedication medication = dataModelMapper.createMedication(name, medicationActiveDrugs, medicationForm);
                 medication = medicationRepository.create(medication);
+                MedicationCatalog.get().invalidate();
                 //creates the medication item - quantities are null because the medication was just created.
                 MedicationItem newMedicationItem = itemModelMapper.createMedicationItem(medication, null, null, null);
                 response.setResponseObject(newMedicationItem);
@@ -212,6 +218,7 @@ public class MedicationService implements IMedicationService {
         ServiceResponse<List<PrescriptionItem>> response = new ServiceResponse<>();
         List<PrescriptionItem> prescriptionItems = new ArrayList<>();
         List<IPatientPrescriptionReplacement> patientPrescriptionReplacements = new ArrayList<>();
+        Set<DateTime> triageDates = new HashSet<>();
 
         //get the reason for replacing
         ExpressionList<PatientPrescriptionReplacementReason> replacementReasonExpressionList = QueryProvider.getPatientPrescriptionReasonQuery()
@@ -248,6 +255,7 @@ public class MedicationService implements IMedicationService {
                                     patientPrescriptionReplacementReason.getId()
                             )
                     );
+                    triageDates.add(replacedPrescription.getPatientEncounter().getDateOfTriageVisit());
 
 
                 }
@@ -261,6 +269,8 @@ public class MedicationService implements IMedicationService {
         try {
 
             List<? extends IPatientPrescriptionReplacement> replacements = patientPrescriptionReplacementRepository.createAll(patientPrescriptionReplacements);
+            //research graphs that include the encounters are stale
+            triageDates.forEach(ResearchResultCache.get()::invalidate);
             for (IPatientPrescriptionReplacement prescriptionReplacement : replacements) {
 
                 prescriptionItems.add(itemModelMapper.createPrescriptionItem(
@@ -311,6 +321,7 @@ public class MedicationService implements IMedicationService {
                 prescription.setDateDispensed(dateTime);
                 prescription.setCounseled(isCounseled);
                 prescription = patientPrescriptionRepository.update(prescription);
+                ResearchResultCache.get().invalidate(prescription.getPatientEncounter().getDateOfTriageVisit());
 
 
 
@@ -356,6 +367,7 @@ public class MedicationService implements IMedicationService {
                     false);
 
             patientPrescription = patientPrescriptionRepository.create(patientPrescription);
+            ResearchResultCache.get().invalidate(patientPrescription.getPatientEncounter().getDateOfTriageVisit());
 
 
             PrescriptionItem prescriptionItem = itemModelMapper.createPrescriptionItem(
@@ -396,6 +408,7 @@ public class MedicationService implements IMedicationService {
 
             IMedication medication = dataModelMapper.createMedication(medicationName);
             medication = medicationRepository.create(medication);
+            MedicationCatalog.get().invalidate();
 
             IPatientPrescription patientPrescription = dataModelMapper.createPatientPrescription(
                     amount,
@@ -407,6 +420,7 @@ public class MedicationService implements IMedicationService {
                     false);
 
             patientPrescription = patientPrescriptionRepository.create(patientPrescription);
+            ResearchResultCache.get().invalidate(patientPrescription.getPatientEncounter().getDateOfTriageVisit());
 
 
             PrescriptionItem prescriptionItem = itemModelMapper.createPrescriptionItem(
@@ -455,6 +469,7 @@ public class MedicationService implements IMedicationService {
 
         // Update the medication item in the database
         medicationRepository.update(medication);
+        MedicationCatalog.get().invalidate();
 
 
         return response;
@@ -468,17 +483,7 @@ public class MedicationService implements IMedicationService {
         ServiceResponse<List<String>> response = new ServiceResponse<>();
 
         try {
-            List<String> medicationNames = new ArrayList<>();
-
-            Query<Medication> medicationQuery = QueryProvider.getMedicationQuery()
-                    .where()
-                    .eq("isDeleted", false).orderBy("name");
-            List<? extends IMedication> medications = medicationRepository.find(medicationQuery);
-
-            for (IMedication m : medications) {
-                medicationNames.add(m.getName());
-            }
-            response.setResponseObject(medicationNames);
+            response.setResponseObject(new ArrayList<>(retrieveMedicationCatalog().getNames()));
         } catch (Exception ex) {
             response.addError("exception", ex.getMessage());
         }
@@ -577,64 +582,9 @@ public class MedicationService implements IMedicationService {
 
     public ServiceResponse<ObjectNode> retrieveAllMedicationsWithID() {
         ServiceResponse<ObjectNode> response = new ServiceResponse<>();
-        ObjectNode returnObject = Json.newObject();
-        ArrayNode allMedications = returnObject.putArray("medication");
 
         try {
-            Query<Medication> medicationQuery = QueryProvider.getMedicationQuery()
-                    .where()
-                    .eq("isDeleted", false).orderBy("name");
-            List<? extends IMedication> medications = medicationRepository.find(medicationQuery);
-
-            for (IMedication m : medications) {
-                ObjectNode medication = Json.newObject();
-
-                medication.put("id", m.getId());
-                //medication.put("name", m.getName());
-                String medicationDisplayName = m.getName();
-                //Create list of drug name/unit/values to append to the medication name
-                List<String> formattedDrugNames = new ArrayList<String>();
-                for (IMedicationActiveDrug drug : m.getMedicationActiveDrugs()) {
-                    formattedDrugNames.add(String.format("%s%s %s",
-                                    drug.getValue(),
-                                    drug.getMedicationMeasurementUnit().getName(),
-                                    drug.getMedicationActiveDrugName().getName())
-                    );
-                }
-                if (formattedDrugNames.size() > 0)
-                    medicationDisplayName += " " + Joiner.on("/").join(formattedDrugNames);
-                medication.put("name", medicationDisplayName);
-
-                /*  //not including medication quantities right now
-                if (m.getQuantity_current() != null) {
-                    medication.put("quantityCurrent", m.getQuantity_current());
-                } else {
-                    medication.put("quantityCurrent", 0);
-                } */
-
-                if (m.getMedicationForm() != null)
-                    medication.put("form", m.getMedicationForm().getName());
-                else
-                    medication.put("form", "N/A");
-
-                ArrayNode ingredientsArray = medication.putArray("ingredients");
-                // Add all the important information about ingredients to the medications object node
-                if (m.getMedicationActiveDrugs() != null) {
-                    List<IMedicationActiveDrug> ingredients = m.getMedicationActiveDrugs();
-                    for (IMedicationActiveDrug i : ingredients) {
-                        ObjectNode ingredientNode = ingredientsArray.addObject();
-
-                        if (i.getMedicationActiveDrugName() != null)
-                            ingredientNode.put("name", i.getMedicationActiveDrugName().getName());
-                        if (i.getMedicationMeasurementUnit() != null)
-                            ingredientNode.put("unit", i.getMedicationMeasurementUnit().getName());
-                        ingredientNode.put("value", i.getValue());
-                    }
-                }
-
-                allMedications.add(medication);
-            }
-            response.setResponseObject(returnObject);
+            response.setResponseObject(retrieveMedicationCatalog().getMedicationsWithID().deepCopy());
         } catch (Exception ex) {
             System.out.println(ex.getMessage());
             response.addError("exception", ex.getMessage());
@@ -643,6 +593,82 @@ public class MedicationService implements IMedicationService {
         return response;
     }
 
+    /**
+     * Gets the medication catalog, building it if a medication changed since it was last built. The
+     * medications are loaded together with their form, active drugs, units and drug names in one query
+     * instead of lazily loading them per medication.
+     *
+     * @return the catalog, not null
+     */
+    private MedicationCatalog.Catalog retrieveMedicationCatalog() {
+
+        MedicationCatalog medicationCatalog = MedicationCatalog.get();
+        MedicationCatalog.Catalog catalog = medicationCatalog.find();
+        if (catalog != null)
+            return catalog;
+
+        long generation = medicationCatalog.getGeneration();
+        Query<Medication> medicationQuery = QueryProvider.getMedicationQuery()
+                .fetch("medicationForm")
+                .fetch("medicationActiveDrugs")
+                .fetch("medicationActiveDrugs.medicationMeasurementUnit")
+                .fetch("medicationActiveDrugs.medicationActiveDrugName")
+                .where()
+                .eq("isDeleted", false)
+                .orderBy("name");
+        List<? extends IMedication> medications = medicationRepository.find(medicationQuery);
+
+        List<String> medicationNames = new ArrayList<>();
+        ObjectNode returnObject = Json.newObject();
+        ArrayNode allMedications = returnObject.putArray("medication");
+
+        for (IMedication m : medications) {
+            medicationNames.add(m.getName());
+
+            ObjectNode medication = Json.newObject();
+
+            medication.put("id", m.getId());
+            String medicationDisplayName = m.getName();
+            //Create list of drug name/unit/values to append to the medication name
+            List<String> formattedDrugNames = new ArrayList<String>();
+            for (IMedicationActiveDrug drug : m.getMedicationActiveDrugs()) {
+                formattedDrugNames.add(String.format("%s%s %s",
+                                drug.getValue(),
+                                drug.getMedicationMeasurementUnit().getName(),
+                                drug.getMedicationActiveDrugName().getName())
+                );
+            }
+            if (formattedDrugNames.size() > 0)
+                medicationDisplayName += " " + Joiner.on("/").join(formattedDrugNames);
+            medication.put("name", medicationDisplayName);
+
+            if (m.getMedicationForm() != null)
+                medication.put("form", m.getMedicationForm().getName());
+            else
+                medication.put("form", "N/A");
+
+            ArrayNode ingredientsArray = medication.putArray("ingredients");
+            // Add all the important information about ingredients to the medications object node
+            if (m.getMedicationActiveDrugs() != null) {
+                for (IMedicationActiveDrug i : m.getMedicationActiveDrugs()) {
+                    ObjectNode ingredientNode = ingredientsArray.addObject();
+
+                    if (i.getMedicationActiveDrugName() != null)
+                        ingredientNode.put("name", i.getMedicationActiveDrugName().getName());
+                    if (i.getMedicationMeasurementUnit() != null)
+                        ingredientNode.put("unit", i.getMedicationMeasurementUnit().getName());
+                    ingredientNode.put("value", i.getValue());
+                }
+            }
+
+            allMedications.add(medication);
+        }
+
+        catalog = new MedicationCatalog.Catalog(medicationNames, returnObject);
+        medicationCatalog.put(catalog, generation);
+        return catalog;
+    }
+
     @Override
     public ServiceResponse<MedicationItem> removeMedication(int medicationID) {
         ServiceResponse<MedicationItem> response = new ServiceResponse<>();
@@ -658,6 +684,7 @@ public class MedicationService implements IMedicationService {
             medication = medicationRepository.findOne(medicationQuery);
 
             medicationRepository.delete(medication);
+            MedicationCatalog.get().invalidate();
 
         } catch (Exception ex) {
             ex.printStackTrace();
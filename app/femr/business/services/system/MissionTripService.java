@@ -23,6 +23,7 @@ import com.avaje.ebean.Query;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import femr.business.helpers.QueryProvider;
+import femr.business.helpers.referencedata.ReferenceDataCache;
 import femr.business.services.core.IMissionTripService;
 import femr.common.IItemModelMapper;
 import femr.common.dtos.ServiceResponse;
@@ -389,6 +390,7 @@ public class MissionTripService implements IMissionTripService {
                         //city doesn't exist
                         missionCity = dataModelMapper.createMissionCity(tripItem.getTripCity(), missionCountry);
                         missionCity = missionCityRepository.create(missionCity);
+                        ReferenceDataCache.get().invalidate(ReferenceDataCache.CITIES);
                     }
 
 
@@ -447,6 +449,7 @@ public class MissionTripService implements IMissionTripService {
                 if (!isDuplicate) {
                     IMissionCity missionCity = dataModelMapper.createMissionCity(cityName, missionCountry);
                     missionCity = missionCityRepository.create(missionCity);
+                    ReferenceDataCache.get().invalidate(ReferenceDataCache.CITIES);
                     response.setResponseObject(itemModelMapper.createCityItem(missionCity.getName(), missionCity.getMissionCountry().getName()));
                 }
             }
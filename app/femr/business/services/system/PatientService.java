@@ -28,6 +28,8 @@ import com.avaje.ebean.Query;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import femr.business.helpers.QueryProvider;
+import femr.business.helpers.research.ResearchResultCache;
+import femr.business.helpers.search.PatientNameIndex;
 import femr.business.services.core.IPatientService;
 import femr.common.IItemModelMapper;
 import femr.common.dtos.ServiceResponse;
@@ -40,6 +42,7 @@ import femr.data.models.mysql.PatientAgeClassification;
 import femr.util.stringhelpers.StringUtils;
 import org.joda.time.DateTime;
 
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -118,6 +121,8 @@ public class PatientService implements IPatientService {
             if(StringUtils.isNotNullOrWhiteSpace(sex)) {
                 savedPatient.setSex(sex);
                 savedPatient = patientRepository.update(savedPatient);
+                //the patient's encounters can be on any date, drop every research graph
+                ResearchResultCache.get().invalidate(null);
             }
 
             String photoPath = null;
@@ -164,6 +169,12 @@ public class PatientService implements IPatientService {
         try {
             IPatient newPatient = dataModelMapper.createPatient(patient.getUserId(), patient.getFirstName(), patient.getLastName(), patient.getBirth(), patient.getSex(), patient.getAddress(), patient.getCity(), patient.getPhotoId());
             newPatient = patientRepository.create(newPatient);
+            PatientNameIndex.get().add(new PatientNameIndex.Entry(newPatient.getId(),
+                    newPatient.getFirstName(),
+                    newPatient.getLastName(),
+                    newPatient.getAge(),
+                    newPatient.getPhoto() != null,
+                    Collections.emptyList()));
             String photoPath = null;
             Integer photoId = null;
             if (newPatient.getPhoto() != null) {
@@ -212,6 +223,9 @@ public class PatientService implements IPatientService {
             savedPatient.setIsDeleted(DateTime.now());
             savedPatient.setDeletedByUserId(deleteByUserID);
             patientRepository.update(savedPatient);
+            PatientNameIndex.get().remove(savedPatient.getId());
+            //the patient's encounters can be on any date, drop every research graph
+            ResearchResultCache.get().invalidate(null);
 
         } catch (Exception ex) {
             response.addError("exception", ex.getMessage());
@@ -19,9 +19,16 @@
 package femr.business.services.system;
 
 import com.avaje.ebean.ExpressionList;
+import com.avaje.ebean.Query;
 import com.google.inject.name.Named;
 import femr.business.helpers.LogicDoer;
 import femr.business.helpers.QueryProvider;
+import femr.business.helpers.photo.EncounterImageSlots;
+import femr.business.helpers.photo.PhotoBlobStore;
+import femr.business.helpers.photo.PhotoDerivatives;
+import femr.business.helpers.photo.PhotoPathCache;
+import femr.business.helpers.photo.PhotoWriteQueue;
+import femr.business.helpers.search.PatientNameIndex;
 import femr.business.services.core.IPhotoService;
 import femr.common.IItemModelMapper;
 import femr.common.models.PatientEncounterItem;
@@ -41,13 +48,12 @@ import femr.util.stringhelpers.StringUtils;
 import org.apache.commons.codec.binary.Base64;
 import play.mvc.Http.MultipartFormData.FilePart;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class PhotoService implements IPhotoService {
 
@@ -106,25 +112,42 @@ public class PhotoService implements IPhotoService {
 
         try {
             IPatient patient = patientRepository.findOne(query);
-            String imageFileName = "/Patient_" + patient.getId() + ".jpg";
 
             if (StringUtils.isNotNullOrWhiteSpace(imageString)) {
-                if (patient.getPhoto() == null) {
-                    //Create new photo Id record
-                    IPhoto pPhoto = dataModelMapper.createPhoto("", imageFileName);
-                    pPhoto = patientPhotoRepository.create(pPhoto);
-                    patient.setPhoto(pPhoto);
-                    patientRepository.update(patient);
-                } else {
-                    //Record already exists:
-                    //photoId = patient.getPhoto().getId();
-                }
-
-                //save image to disk
+                //the file is named by its content, patients with the same image share it
                 String parsedImage = imageString.substring(imageString.indexOf(",") + 1);
-                BufferedImage bufferedImage = decodeToImage(parsedImage);
+                byte[] image = decodeImageBytes(parsedImage);
+                String imageFileName = PhotoBlobStore.blobPath(PhotoBlobStore.hash(image), ".jpg");
                 File photoFile = new File(_profilePhotoPath + imageFileName);
-                ImageIO.write(bufferedImage, "jpg", photoFile);
+                String replacedFileName = null;
+
+                synchronized (PhotoBlobStore.lockFor(photoFile)) {
+                    if (patient.getPhoto() == null) {
+                        //Create new photo Id record
+                        IPhoto pPhoto = dataModelMapper.createPhoto("", imageFileName);
+                        pPhoto = patientPhotoRepository.create(pPhoto);
+                        patient.setPhoto(pPhoto);
+                        patientRepository.update(patient);
+                        PatientNameIndex.get().setHasPhoto(patient.getId(), true);
+                        PhotoPathCache.get().invalidatePatient(patient.getId());
+                    } else if (!imageFileName.equals(patient.getPhoto().getFilePath())) {
+                        //Record already exists, point it at the new image
+                        IPhoto pPhoto = patient.getPhoto();
+                        replacedFileName = pPhoto.getFilePath();
+                        pPhoto.setFilePath(imageFileName);
+                        patientPhotoRepository.update(pPhoto);
+                        PhotoPathCache.get().invalidatePatient(patient.getId());
+                    }
+
+                    //hand the image to the photo writer unless it is already on disk,
+                    //it is re-encoded off the request thread
+                    if (!photoFile.exists()) {
+                        photoFile.getParentFile().mkdirs();
+                        PhotoWriteQueue.get().submit(photoFile, image);
+                    }
+                }
+                if (replacedFileName != null)
+                    deleteUnreferencedFile(replacedFileName, _profilePhotoPath);
 
             } else {
                 if (deleteFlag != null)
@@ -134,6 +157,8 @@ public class PhotoService implements IPhotoService {
                         Integer id = patient.getPhoto().getId();
                         patient.setPhoto(null);
                         patientRepository.update(patient);
+                        PatientNameIndex.get().setHasPhoto(patient.getId(), false);
+                        PhotoPathCache.get().invalidatePatient(patient.getId());
                         //Now remove the photo record:
                         this.deletePhotoById(id, _profilePhotoPath);
                     }
@@ -152,16 +177,17 @@ public class PhotoService implements IPhotoService {
     @Override
     public ServiceResponse<String> retrievePatientPhotoPath(int patientId) {
         ServiceResponse<String> response = new ServiceResponse<>();
-        ExpressionList<Patient> query = QueryProvider.getPatientQuery()
-                .where()
-                .eq("id", patientId);
         try {
-            IPatient patient = patientRepository.findOne(query);
-            if (patient.getPhoto() == null) {
-                response.setResponseObject(null);
-            } else {
-                response.setResponseObject(_profilePhotoPath + patient.getPhoto().getFilePath());
+            PhotoPathCache photoPathCache = PhotoPathCache.get();
+            String path = photoPathCache.findPatientPhotoPath(patientId);
+            if (path == null) {
+
+                long generation = photoPathCache.getGeneration();
+                IPatient patient = patientRepository.findOne(Patient.class, "id", patientId);
+                path = patient.getPhoto() == null ? PhotoPathCache.NO_PHOTO : _profilePhotoPath + patient.getPhoto().getFilePath();
+                photoPathCache.putPatientPhotoPath(patientId, path, generation);
             }
+            response.setResponseObject(PhotoPathCache.NO_PHOTO.equals(path) ? null : path);
         } catch (Exception ex) {
             response.addError("", ex.getMessage());
             return response;
@@ -179,14 +205,39 @@ public class PhotoService implements IPhotoService {
                 .where()
                 .eq("id", photoId);
         try {
-            IPhoto photo = patientPhotoRepository.findOne(query);
-            response.setResponseObject(_encounterPhotoPath + photo.getFilePath());
+            PhotoPathCache photoPathCache = PhotoPathCache.get();
+            String path = photoPathCache.findPhotoPath(photoId);
+            if (path == null) {
+
+                long generation = photoPathCache.getGeneration();
+                IPhoto photo = patientPhotoRepository.findOne(query);
+                path = _encounterPhotoPath + photo.getFilePath();
+                //the file path is filled in just after the photo is created
+                if (StringUtils.isNotNullOrWhiteSpace(photo.getFilePath()))
+                    photoPathCache.putPhotoPath(photoId, path, generation);
+            }
+            response.setResponseObject(path);
         } catch (Exception ex) {
             response.addError("", ex.getMessage());
         }
         return response;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceResponse<String> retrievePhotoDerivativePath(String pathToPhoto, String size) {
+        ServiceResponse<String> response = new ServiceResponse<>();
+        try {
+            response.setResponseObject(PhotoDerivatives.retrieveDerivative(new File(pathToPhoto), size).getPath());
+        } catch (Exception ex) {
+            //the photo itself can still be shown
+            response.setResponseObject(pathToPhoto);
+        }
+        return response;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -195,25 +246,15 @@ public class PhotoService implements IPhotoService {
         ServiceResponse<Boolean> sr = new ServiceResponse<>();
         try {
             int count = mod.getPhotoId().size();
-            FilePart fp;
+            //find each slot's upload without scanning every upload for every slot
+            Map<Integer, FilePart> encounterImagesBySlot = EncounterImageSlots.index(encounterImages);
             for (Integer i = 0; i < count; i++) {
                 Integer id = mod.getPhotoId().get(i);
                 if (id == null) {
                     //This is a new image, add it to the DB and filesystem:
-                    for (FilePart fp_iterator : encounterImages) {
-                        String keyName = fp_iterator.getKey();
-                        int leftBracket = keyName.indexOf("[");
-                        int rightBracket = keyName.indexOf("]");
-                        if (leftBracket >= 0 && rightBracket >= 0) {
-                            keyName = keyName.substring(leftBracket + 1, rightBracket);
-                            String tempindex = i.toString();
-
-                            if (keyName.equalsIgnoreCase(tempindex)) {
-                                saveNewEncounterImage(fp_iterator, patientEncounterItem, mod.getImageDescText().get(i));
-                                break;
-                            }
-                        }
-                    }
+                    FilePart fp = encounterImagesBySlot.get(i);
+                    if (fp != null)
+                        saveNewEncounterImage(fp, patientEncounterItem, mod.getImageDescText().get(i));
 
                 } else {
                     Boolean bDelete = mod.getDeleteRequested().get(i);
@@ -271,29 +312,20 @@ public class PhotoService implements IPhotoService {
 
         ServiceResponse<List<PhotoItem>> response = new ServiceResponse<>();
         try {
-            ExpressionList<PatientEncounterPhoto> query = QueryProvider.getPatientEncounterPhotoQuery()
+            //one query for every photo of the encounter instead of one per photo
+            Query<Photo> query = QueryProvider.getPhotoQuery()
                     .where()
-                    .eq("patient_encounter_id", encounterId);
-
-            List<? extends IPatientEncounterPhoto> photoList = patientEncounterPhotoRepository.find(query);
-            if (photoList != null) {
-                List<PhotoItem> returnList = new ArrayList<>();
-                for (IPatientEncounterPhoto pep : photoList) {
-
-                    ExpressionList<Photo> photoQuery = QueryProvider.getPhotoQuery()
-                            .where()
-                            .eq("id", pep.getPhotoId());
-                    try {
-                        IPhoto savedPhoto = patientPhotoRepository.findOne(photoQuery);
-                        returnList.add(itemModelMapper.createPhotoItem(savedPhoto.getId(), savedPhoto.getDescription(), savedPhoto.getInsertTS(), femr.ui.controllers.routes.PhotoController.GetPhoto(savedPhoto.getId()).toString()));
-                    } catch (Exception ex) {
-                        response.addError("", ex.getMessage());
-                        return response;
-                    }
-                }
+                    .raw("id in (select pep.photo_id from patient_encounter_photos pep where pep.patient_encounter_id = ?)", encounterId)
+                    .order().asc("id");
 
-                response.setResponseObject(returnList);
+            List<? extends IPhoto> savedPhotos = patientPhotoRepository.find(query);
+            List<PhotoItem> returnList = new ArrayList<>();
+            for (IPhoto savedPhoto : savedPhotos) {
+
+                returnList.add(itemModelMapper.createPhotoItem(savedPhoto.getId(), savedPhoto.getDescription(), savedPhoto.getInsertTS(), femr.ui.controllers.routes.PhotoController.GetPhoto(savedPhoto.getId()).toString()));
             }
+
+            response.setResponseObject(returnList);
         } catch (Exception ex) {
             response.addError("photo", ex.getMessage());
         }
@@ -304,40 +336,34 @@ public class PhotoService implements IPhotoService {
 
     private void saveNewEncounterImage(FilePart image, PatientEncounterItem patientEncounter, String descriptionText) {
         try {
-            String imageFileName;
+            //The file is named by its content, the same image uploaded
+            //  to several encounters is kept once
+            File upload = image.getFile();
+            String imageFileName = PhotoBlobStore.blobPath(PhotoBlobStore.hash(upload), "");
+            File photoFile = new File(this._encounterPhotoPath + imageFileName);
 
             //Create photo record:
             IPhoto pPhoto = new Photo();
             pPhoto.setDescription(descriptionText);
-            pPhoto.setFilePath("");
-            pPhoto = patientPhotoRepository.create(pPhoto);
-
-            ExpressionList<Photo> findPhotoQuery =
-                    QueryProvider.getPhotoQuery()
-                            .where()
-                            .eq("id", pPhoto.getId());
-            IPhoto editPhoto = patientPhotoRepository.findOne(findPhotoQuery);
+            pPhoto.setFilePath(imageFileName);
 
+            synchronized (PhotoBlobStore.lockFor(photoFile)) {
+                pPhoto = patientPhotoRepository.create(pPhoto);
 
-            imageFileName = "Patient_" + patientEncounter.getPatientId()
-                    + "_Enc_" + patientEncounter.getId() + "_Photo_" + editPhoto.getId();
-            editPhoto.setFilePath(imageFileName);
-
-            //Since the record ID is part of the file name
-            //  I am setting the filePath field after the record is created
-            patientPhotoRepository.update(editPhoto);
-
+                //Save image to disk unless it is already there
+                if (photoFile.exists()) {
+                    upload.delete();
+                } else {
+                    photoFile.getParentFile().mkdirs();
+                    java.nio.file.Files.move(upload.toPath(), photoFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
 
             //Link photo record in photoEncounter table
             IPatientEncounterPhoto pep = new PatientEncounterPhoto();
-            pep.setPhotoId(editPhoto.getId());
+            pep.setPhotoId(pPhoto.getId());
             pep.setPatientEncounterId(patientEncounter.getId());
             patientEncounterPhotoRepository.create(pep);
-
-            //Save image to disk
-            Path src = FileSystems.getDefault().getPath(image.getFile().getAbsolutePath());
-            Path dest = FileSystems.getDefault().getPath(this._encounterPhotoPath + imageFileName);
-            java.nio.file.Files.move(src, dest, StandardCopyOption.ATOMIC_MOVE);
         } catch (Exception ex) {
             String test = "uh oh";
 
@@ -358,12 +384,11 @@ public class PhotoService implements IPhotoService {
             if (pep != null)
                 patientEncounterPhotoRepository.delete(pep);
 
-            File photo = new File(imagePath + savedPhoto.getFilePath());
-            photo.delete();
-
-
             patientPhotoRepository.delete(savedPhoto);
+            PhotoPathCache.get().invalidatePhoto(id);
 
+            //other photos may still use the file
+            deleteUnreferencedFile(savedPhoto.getFilePath(), imagePath);
         }
         ServiceResponse<IPhoto> response = new ServiceResponse<>();
 
@@ -377,27 +402,41 @@ public class PhotoService implements IPhotoService {
     }
 
     /**
-     * Decodes a base64 encoded string to an image
+     * Deletes a photo file, and its smaller copies, once no photo row points at it. Photos with the same
+     * image share one file, see {@link PhotoBlobStore}.
      *
-     * @param imageString base64 encoded string that has been parsed to only include imageBytes
-     * @return the decoded image
+     * @param filePath the file path of a photo that was deleted or moved to another file
+     * @param imagePath the folder the file is in
      */
-    private static BufferedImage decodeToImage(String imageString) {
+    private void deleteUnreferencedFile(String filePath, String imagePath) {
+        if (StringUtils.isNullOrWhiteSpace(filePath))
+            return;
 
-        BufferedImage image = null;
-        byte[] imageByte;
-        try {
-            Base64 newDecoder = new Base64();
-            byte[] bytes = imageString.getBytes(Charset.forName("UTF-8"));
-            imageByte = newDecoder.decode(bytes);
-            ByteArrayInputStream bis = new ByteArrayInputStream(imageByte);
-            image = ImageIO.read(bis);
-            bis.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        File photo = new File(imagePath + filePath);
+        synchronized (PhotoBlobStore.lockFor(photo)) {
+            ExpressionList<Photo> query = QueryProvider.getPhotoQuery()
+                    .where()
+                    .eq("file_path", filePath);
+            if (patientPhotoRepository.count(query) > 0)
+                return;
+
+            //don't let an image that is still being written bring the file back
+            PhotoWriteQueue.get().cancel(photo);
+            photo.delete();
+            PhotoDerivatives.deleteDerivatives(photo);
         }
-        return image;
     }
 
+    /**
+     * Decodes a base64 encoded string to the bytes of the image
+     *
+     * @param imageString base64 encoded string that has been parsed to only include imageBytes
+     * @return the image as it was uploaded (png, jpeg...)
+     */
+    private static byte[] decodeImageBytes(String imageString) {
 
+        Base64 newDecoder = new Base64();
+        byte[] bytes = imageString.getBytes(Charset.forName("UTF-8"));
+        return newDecoder.decode(bytes);
+    }
 }
@@ -20,10 +20,8 @@ package femr.business.services.system;
 
 import com.avaje.ebean.ExpressionList;
 import com.avaje.ebean.Query;
-import com.google.gson.Gson;
-import com.google.gson.JsonParser;
 import com.google.inject.Inject;
-import femr.business.helpers.LogicDoer;
+import femr.business.helpers.research.*;
 import femr.business.services.core.IEncounterService;
 import femr.business.services.core.IMissionTripService;
 import femr.business.services.core.IResearchService;
@@ -32,6 +30,7 @@ import femr.common.IItemModelMapper;
 import femr.common.dtos.ServiceResponse;
 import femr.common.models.*;
 import femr.data.models.core.research.IResearchEncounter;
+import femr.data.models.core.research.IResearchEncounterVital;
 import femr.data.models.mysql.*;
 import femr.data.models.mysql.research.ResearchEncounter;
 import femr.data.daos.IRepository;
@@ -39,23 +38,34 @@ import femr.data.models.core.*;
 import femr.data.models.mysql.research.ResearchEncounterVital;
 import femr.util.calculations.dateUtils;
 import femr.util.dependencyinjection.providers.MissionCityProvider;
-import femr.util.stringhelpers.CSVWriterGson;
-import femr.util.stringhelpers.GsonFlattener;
+import femr.util.stringhelpers.CSVSpool;
+import femr.util.stringhelpers.CSVWriter;
 import femr.util.stringhelpers.StringUtils;
 import femr.business.services.system.MissionTripService.*;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ResearchService implements IResearchService {
 
     private final IRepository<IResearchEncounter> researchEncounterRepository;
     private final IRepository<IVital> vitalRepository;
     private final IRepository<IPatientEncounterTabField> patientEncounterTabFieldRepository;
+    private final IRepository<IResearchEncounterVital> researchEncounterVitalRepository;
+    private final IRepository<IPatientPrescription> patientPrescriptionRepository;
+    private final IRepository<IChiefComplaint> chiefComplaintRepository;
+    private final ResearchAggregator researchAggregator = new ResearchAggregator(ResearchAggregationPool.get());
+
+    // number of encounters buffered by the CSV export before their tab fields, chief complaints,
+    // prescriptions and vitals are loaded
+    private static final int EXPORT_PAGE_SIZE = 500;
+
+    // number of encounter ids per query when loading vital and prescription columns
+    private static final int COLUMN_CHUNK_SIZE = 1000;
 
 
     /**
@@ -64,176 +74,450 @@ public class ResearchService implements IResearchService {
     @Inject
     public ResearchService(IRepository<IResearchEncounter> researchEncounterRepository,
                            IRepository<IVital> vitalRepository,
-                           IRepository<IPatientEncounterTabField> patientEncounterTabFieldRepository) {
+                           IRepository<IPatientEncounterTabField> patientEncounterTabFieldRepository,
+                           IRepository<IResearchEncounterVital> researchEncounterVitalRepository,
+                           IRepository<IPatientPrescription> patientPrescriptionRepository,
+                           IRepository<IChiefComplaint> chiefComplaintRepository) {
 
         this.researchEncounterRepository = researchEncounterRepository;
         this.vitalRepository = vitalRepository;
         this.patientEncounterTabFieldRepository = patientEncounterTabFieldRepository;
+        this.researchEncounterVitalRepository = researchEncounterVitalRepository;
+        this.patientPrescriptionRepository = patientPrescriptionRepository;
+        this.chiefComplaintRepository = chiefComplaintRepository;
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
-    public ServiceResponse<File> retrieveCsvExportFile(ResearchFilterItem filters) {
+    public ServiceResponse<ResearchExportJobItem> createCsvExportJob(ResearchFilterItem filters, int userId) {
 
-        // Get Vital Ids for below
-        Integer heightFeetId = 0;
-        Integer heightInchesId = 0;
-        IVital vital;
+        ServiceResponse<ResearchExportJobItem> response = new ServiceResponse<>();
+
+        try {
+
+            ResearchExportJob job = ResearchExportQueue.get().submit(userId, filters,
+                    exportJob -> writeCsvExportFile(exportJob.getFilters(), exportJob.getFile(), exportJob));
+            response.setResponseObject(job.toItem());
+        } catch (RejectedExecutionException ex) {
 
-        // As new patients are encountered, generate a UUID to represent them in the export file
-        Map<Integer, UUID> patientIdMap = new HashMap<>();
+            response.addError("exception", "too many exports are running, try again later");
+        }
+
+        return response;
+    }
 
-        //why is this either height or not height?
-        //when it is not height it assumes it's a vital?
-        if (filters.getPrimaryDataset().equals("height")){
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceResponse<ResearchExportJobItem> retrieveCsvExportJob(String jobId, int userId) {
 
-            ExpressionList<Vital> query = QueryProvider.getVitalQuery().where().eq("name", "heightFeet");
-            vital = vitalRepository.findOne(query);
+        ServiceResponse<ResearchExportJobItem> response = new ServiceResponse<>();
 
-            heightFeetId = vital.getId();
+        ResearchExportJob job = ResearchExportQueue.get().find(jobId);
+        if (job == null || job.getUserId() != userId) {
 
-            query = QueryProvider.getVitalQuery().where().eq("name", "heightInches");
-            vital = vitalRepository.findOne(query);
+            response.addError("jobId", "export not found");
+        } else {
 
-            heightInchesId = vital.getId();
+            response.setResponseObject(job.toItem());
         }
-        else{
-            String vitalName = filters.getPrimaryDataset();
-            ExpressionList<Vital> query = QueryProvider.getVitalQuery().where().eq("name", vitalName);
-            vital = vitalRepository.findOne(query);
 
+        return response;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceResponse<File> retrieveCsvExportJobFile(String jobId, int userId) {
+
+        ServiceResponse<File> response = new ServiceResponse<>();
+
+        ResearchExportJob job = ResearchExportQueue.get().find(jobId);
+        if (job == null || job.getUserId() != userId) {
+
+            response.addError("jobId", "export not found");
+        } else if (job.getStatus() != ResearchExportJob.Status.FINISHED || !job.getFile().exists()) {
+
+            response.addError("jobId", "export is not ready");
+        } else {
+
+            response.setResponseObject(job.getFile());
         }
 
+        return response;
+    }
+
+    /**
+     * write the csv export for the filters to a file
+     * @param eFile the file to write, its folder is created if needed
+     * @param job the job to report progress on, may be null
+     */
+    private ServiceResponse<File> writeCsvExportFile(ResearchFilterItem filters, File eFile, ResearchExportJob job) {
+
         ServiceResponse<File> response = new ServiceResponse<>();
 
+        // Get Vital Ids for below
+        Integer wksPregnantId = 0;
+
+        Map<Integer, String> vitalNames = new HashMap<>();
+        Map<String, Integer> vitalIds = new HashMap<>();
+        for (IVital v : vitalRepository.findAll(Vital.class)) {
+
+            vitalNames.put(v.getId(), v.getName());
+            vitalIds.put(v.getName(), v.getId());
+            if (v.getName().equals("weeksPregnant")) wksPregnantId = v.getId();
+        }
+
+        //Ensure folder exists, if not, create it
+        File f = eFile.getParentFile();
+        if (f != null && !f.exists())
+            f.mkdirs();
+
         // Find Patient Encounters which match the current filters
+        // ordering by patient keeps each patient's encounters together, so only the
+        // current patient's UUID has to be remembered
         filters.setOrderBy("patientId");
-        List<? extends IResearchEncounter> patientEncounters = queryPatientData(filters);
+        Query<ResearchEncounter> researchEncounterQuery = buildPatientDataQuery(filters);
 
-        List<ResearchExportItem> researchExportItemsForCSVExport = new ArrayList<>();
-        //this for loop makes sure that the primary dataset is properly filtered when the user enters
-        //a start and end number under "Filter Primary Dataset".
-        //what about weight filters?
-        for(IResearchEncounter patientEncounter : patientEncounters ){
+        if (job != null) {
 
-            // only filtering age, height, and vitals
-            if( filters.getPrimaryDataset().equals("age") ) {
+            job.setTotalEncounters(researchEncounterRepository.count(buildPatientDataQuery(filters).where()));
+        }
 
-                Float age = (float) Math.floor(dateUtils.getAgeAsOfDateFloat(patientEncounter.getPatient().getAge(), patientEncounter.getDateOfTriageVisit()));
-                // skip encounter if age is out of range
-                if (age < filters.getFilterRangeStart() || age > filters.getFilterRangeEnd()) continue;
-            }
-//            else if( filters.getPrimaryDataset().equals("pregnancyStatus") ||
-//                    filters.getPrimaryDataset().equals("pregnancyTime") ){
-//
-//
-//            }
-//            else if( filters.getPrimaryDataset().equals("gender") ){
-//
-//
-//            }
-            else if( filters.getPrimaryDataset().equals("height") ){
-
-                ResearchEncounterVital vitalFeet = patientEncounter.getEncounterVitals().get(heightFeetId);
-                ResearchEncounterVital vitalInches = patientEncounter.getEncounterVitals().get(heightInchesId);
-
-                // height values may not exist
-                Float vitalValue = 0.0f;
-                if( vitalFeet != null ){
-
-                    vitalValue += vitalFeet.getVitalValue() * 12;
+        final Integer weeksPregnantId = wksPregnantId;
+
+        // Rows wait in a spool file until every column is known
+        try (CSVSpool spool = new CSVSpool(f)) {
+
+            // Encounters are buffered a page at a time so what each row needs besides the encounter
+            // and patient is loaded with one query per page instead of lazily per encounter
+            List<IResearchEncounter> pageEncounters = new ArrayList<>(EXPORT_PAGE_SIZE);
+            List<UUID> pagePatientIds = new ArrayList<>(EXPORT_PAGE_SIZE);
+
+            // As new patients are encountered, generate a UUID to represent them in the export file
+            final int[] currentPatientId = { -1 };
+            final UUID[] currentMuddledPatientId = { null };
+
+            researchEncounterRepository.findEach(researchEncounterQuery, patientEncounter -> {
+
+                if (job != null) job.encounterProcessed();
+
+                if (patientEncounter.getPatient().getId() != currentPatientId[0]) {
+
+                    currentPatientId[0] = patientEncounter.getPatient().getId();
+                    currentMuddledPatientId[0] = UUID.randomUUID();
                 }
-                if( vitalInches != null ){
 
-                    vitalValue += vitalInches.getVitalValue();
+                pageEncounters.add(patientEncounter);
+                pagePatientIds.add(currentMuddledPatientId[0]);
+
+                if (pageEncounters.size() == EXPORT_PAGE_SIZE) {
+
+                    writeCsvExportPage(spool, pageEncounters, pagePatientIds, filters, vitalNames, vitalIds, weeksPregnantId);
+                    pageEncounters.clear();
+                    pagePatientIds.clear();
                 }
+            });
+
+            writeCsvExportPage(spool, pageEncounters, pagePatientIds, filters, vitalNames, vitalIds, weeksPregnantId);
 
-                if( vitalValue < filters.getFilterRangeStart() || vitalValue > filters.getFilterRangeEnd() ) continue;
+            try (CSVWriter writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(eFile), StandardCharsets.UTF_8)), 1000)) {
 
+                spool.writeTo(writer);
             }
-            // Check for medication filters
-//            else if( filters.getPrimaryDataset().equals("prescribedMeds") ||
-//                    filters.getPrimaryDataset().equals("dispensedMeds") ){
-//
-//
-//            }
-            else if (vital != null){
+        } catch (IOException | UncheckedIOException e) {
+
+            // don't hand out a partial file
+            eFile.delete();
+            response.addError("exception", e.getMessage());
+            return response;
+        }
+        response.setResponseObject(eFile);
+
+        return response;
+    }
 
-                ResearchEncounterVital vitals = patientEncounter.getEncounterVitals().get(vital.getId());
-                if( vitals == null ) continue;
+    /**
+     * Writes one page of encounters to the export, loading the tab fields, chief complaints, prescriptions
+     * and vitals for the whole page with one query each.
+     */
+    private void writeCsvExportPage(CSVSpool spool, List<IResearchEncounter> encounters, List<UUID> patientIds, ResearchFilterItem filters,
+                                    Map<Integer, String> vitalNames, Map<String, Integer> vitalIds, Integer weeksPregnantId){
 
-                Float vitalValue = vitals.getVitalValue();
+        if (encounters.isEmpty()) return;
 
-                if( vitalValue == null ) continue;
-                if( vitalValue < filters.getFilterRangeStart() || vitalValue > filters.getFilterRangeEnd() ) continue;
-            }
+        List<Integer> encounterIds = new ArrayList<>(encounters.size());
+        for (IResearchEncounter encounter : encounters) {
 
-            UUID muddledPatientId;
-            // If UUID already generated for patient, use that
-            if( patientIdMap.containsKey(patientEncounter.getPatient().getId()) ){
+            encounterIds.add(encounter.getId());
+        }
+        Map<Integer, Map<String, String>> tabFieldsByEncounter = retrieveTabFieldsByEncounter(encounterIds);
+        Map<Integer, List<String>> chiefComplaintsByEncounter = retrieveChiefComplaintsByEncounter(encounterIds);
+        Map<Integer, List<IPatientPrescription>> prescriptionsByEncounter = retrievePrescriptionsByEncounter(encounterIds);
+        Map<Integer, Map<Integer, Float>> vitalsByEncounter = retrieveVitalsByEncounter(encounterIds);
+
+        try {
+
+            for (int i = 0; i < encounters.size(); i++) {
+
+                IResearchEncounter encounter = encounters.get(i);
+                Map<String, String> tabFields = tabFieldsByEncounter.get(encounter.getId());
+                if (tabFields == null) tabFields = new HashMap<>();
+
+                List<String> chiefComplaints = chiefComplaintsByEncounter.get(encounter.getId());
+                if (chiefComplaints == null) chiefComplaints = new ArrayList<>();
+                List<IPatientPrescription> prescriptions = prescriptionsByEncounter.get(encounter.getId());
+                if (prescriptions == null) prescriptions = new ArrayList<>();
+                Map<Integer, Float> vitals = vitalsByEncounter.get(encounter.getId());
+                if (vitals == null) vitals = new HashMap<>();
+
+                ResearchExportItem item = createResearchExportItem(encounter, patientIds.get(i), vitalNames, weeksPregnantId,
+                        tabFields, chiefComplaints, prescriptions, vitals);
+
+                //this makes sure that the primary dataset is properly filtered when the user enters
+                //a start and end number under "Filter Primary Dataset".
+                if (!isWithinPrimaryRange(item, vitals, filters, vitalIds)) continue;
 
-                muddledPatientId = patientIdMap.get(patientEncounter.getPatient().getId());
+                spool.addRow(flattenResearchExportItem(item));
             }
-            // otherwise generate and store for potential additional patient encounters
-            else{
+        } catch (IOException e) {
+
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Loads the tab fields for a batch of encounters with one IN query and groups them by encounter.
+     * Fields recorded more than once keep their most recent value.
+     *
+     * @param encounterIds ids of the encounters, not null
+     * @return map of encounter id to a map of tab field name/value
+     */
+    private Map<Integer, Map<String, String>> retrieveTabFieldsByEncounter(List<Integer> encounterIds){
+
+        Map<Integer, Map<String, String>> tabFieldsByEncounter = new HashMap<>();
+
+        Query<PatientEncounterTabField> patientEncounterTabFieldQuery = QueryProvider.getPatientEncounterTabFieldQuery()
+                .fetch("tabField")
+                .where()
+                .in("patient_encounter_id", encounterIds)
+                .order().asc("date_taken");
+        List<? extends IPatientEncounterTabField> patientEncounterTabFields = patientEncounterTabFieldRepository.find(patientEncounterTabFieldQuery);
+
+        for (IPatientEncounterTabField tf : patientEncounterTabFields) {
 
-                muddledPatientId = UUID.randomUUID();
-                patientIdMap.put(patientEncounter.getPatient().getId(), muddledPatientId);
+            Map<String, String> tabFields = tabFieldsByEncounter.get(tf.getPatientEncounterId());
+            if (tabFields == null) {
+
+                tabFields = new HashMap<>();
+                tabFieldsByEncounter.put(tf.getPatientEncounterId(), tabFields);
             }
-            ResearchExportItem item = createResearchExportItem(patientEncounter, muddledPatientId);
-            researchExportItemsForCSVExport.add(item);
+            tabFields.put(tf.getTabField().getName(), tf.getTabFieldValue());
+        }
+
+        return tabFieldsByEncounter;
+    }
+
+    /**
+     * Loads the chief complaints for a batch of encounters with one IN query and groups them by encounter.
+     *
+     * @param encounterIds ids of the encounters, not null
+     * @return map of encounter id to its chief complaints in the order they were recorded
+     */
+    private Map<Integer, List<String>> retrieveChiefComplaintsByEncounter(List<Integer> encounterIds){
+
+        Map<Integer, List<String>> chiefComplaintsByEncounter = new HashMap<>();
+
+        Query<ChiefComplaint> chiefComplaintQuery = QueryProvider.getChiefComplaintQuery()
+                .select("id, value, patientEncounter")
+                .where()
+                .in("patientEncounter.id", encounterIds)
+                .order().asc("id");
 
+        for (IChiefComplaint chiefComplaint : chiefComplaintRepository.find(chiefComplaintQuery)) {
+
+            List<String> chiefComplaints = chiefComplaintsByEncounter.get(chiefComplaint.getPatientEncounter().getId());
+            if (chiefComplaints == null) {
+
+                chiefComplaints = new ArrayList<>();
+                chiefComplaintsByEncounter.put(chiefComplaint.getPatientEncounter().getId(), chiefComplaints);
+            }
+            chiefComplaints.add(chiefComplaint.getValue());
         }
 
-        // Make File and get path
-        String csvFilePath = LogicDoer.getCsvFilePath();
-        //Ensure folder exists, if not, create it
-        File f = new File(csvFilePath);
-        if (!f.exists())
-            f.mkdirs();
+        return chiefComplaintsByEncounter;
+    }
 
-        // trailing slash is included in path
-        //CurrentUser currentUser = sessionService.retrieveCurrentUserSession();
-        SimpleDateFormat format = new SimpleDateFormat("MMddyy-HHmmss");
-        String timestamp = format.format(new Date());
-        String csvFileName = csvFilePath+"export-"+timestamp+".csv";
-        File eFile = new File(csvFileName);
-        boolean fileCreated = false;
-        if(!eFile.exists()) {
-            try {
-                fileCreated = eFile.createNewFile();
+    /**
+     * Loads the prescriptions and their medications for a batch of encounters with one IN query and groups
+     * them by encounter.
+     *
+     * @param encounterIds ids of the encounters, not null
+     * @return map of encounter id to its prescriptions in the order they were written
+     */
+    private Map<Integer, List<IPatientPrescription>> retrievePrescriptionsByEncounter(List<Integer> encounterIds){
+
+        Map<Integer, List<IPatientPrescription>> prescriptionsByEncounter = new HashMap<>();
+
+        Query<PatientPrescription> prescriptionQuery = QueryProvider.getPatientPrescriptionQuery()
+                .select("id, dateDispensed, patientEncounter")
+                .fetch("medication", "id, name")
+                .where()
+                .in("patientEncounter.id", encounterIds)
+                .order().asc("id");
+
+        for (IPatientPrescription prescription : patientPrescriptionRepository.find(prescriptionQuery)) {
+
+            List<IPatientPrescription> prescriptions = prescriptionsByEncounter.get(prescription.getPatientEncounter().getId());
+            if (prescriptions == null) {
+
+                prescriptions = new ArrayList<>();
+                prescriptionsByEncounter.put(prescription.getPatientEncounter().getId(), prescriptions);
             }
-            catch( IOException e ){
+            prescriptions.add(prescription);
+        }
+
+        return prescriptionsByEncounter;
+    }
+
+    /**
+     * Loads the vitals for a batch of encounters with one IN query and groups them by encounter.
+     * Vitals recorded more than once keep their most recent value.
+     *
+     * @param encounterIds ids of the encounters, not null
+     * @return map of encounter id to a map of vital id/value
+     */
+    private Map<Integer, Map<Integer, Float>> retrieveVitalsByEncounter(List<Integer> encounterIds){
+
+        Map<Integer, Map<Integer, Float>> vitalsByEncounter = new HashMap<>();
+
+        Query<ResearchEncounterVital> vitalQuery = QueryProvider.getResearchEncounterVitalQuery()
+                .select("id, vitalId, vitalValue, patientEncounter")
+                .where()
+                .in("patientEncounter.id", encounterIds)
+                .order().asc("id");
 
-                e.printStackTrace();
+        for (IResearchEncounterVital vital : researchEncounterVitalRepository.find(vitalQuery)) {
+
+            if (vital.getVitalValue() == null) continue;
+
+            Map<Integer, Float> vitals = vitalsByEncounter.get(vital.getPatientEncounter().getId());
+            if (vitals == null) {
+
+                vitals = new HashMap<>();
+                vitalsByEncounter.put(vital.getPatientEncounter().getId(), vitals);
             }
+            vitals.put(vital.getVitalId(), vital.getVitalValue());
         }
 
-        if( fileCreated ) {
+        return vitalsByEncounter;
+    }
+
+    /**
+     * Checks the primary dataset range filter (age, height or vital value) against the values written to the row.
+     * The export query only narrows the rows down with widened bounds, MySQL works ages out differently at the
+     * end of a month. An unknown vital is not filtered.
+     *
+     * @param vitals   latest value of each vital on the encounter, by vital id
+     * @param vitalIds ids of every vital, by name
+     */
+    private static boolean isWithinPrimaryRange(ResearchExportItem item, Map<Integer, Float> vitals, ResearchFilterItem filters,
+                                                Map<String, Integer> vitalIds){
+
+        String datasetName = filters.getPrimaryDataset();
+        Float value;
+        if( datasetName.equals("age") ){
+
+            value = item.getAge().floatValue();
+        }
+        else if( datasetName.equals("height") ){
 
-            Gson gson = new Gson();
-            JsonParser gsonParser = new JsonParser();
-            String jsonString = gson.toJson(researchExportItemsForCSVExport);
+            Integer feetId = vitalIds.get("heightFeet");
+            Integer inchesId = vitalIds.get("heightInches");
+            if( feetId == null || inchesId == null ) return true;
 
-            GsonFlattener parser = new GsonFlattener();
-            CSVWriterGson writer = new CSVWriterGson();
+            // either part may be missing, but not both
+            Float feet = vitals.get(feetId);
+            Float inches = vitals.get(inchesId);
+            if( feet == null && inches == null ) return false;
 
-            try {
+            value = (feet == null ? 0.0f : feet * 12) + (inches == null ? 0.0f : inches);
+        }
+        else{
+
+            Integer vitalId = vitalIds.get(datasetName);
+            if( vitalId == null ) return true;
+
+            value = vitals.get(vitalId);
+            if( value == null ) return false;
+        }
+
+        return value >= rangeStart(filters) && value <= rangeEnd(filters);
+    }
+
+    /**
+     * Flattens an export item into column name/value pairs, named the way GsonFlattener named them.
+     * List values get one numbered column per item (chiefComplaints1, chiefComplaints2...) and
+     * missing values are left out, so their cells are empty.
+     */
+    private Map<String, String> flattenResearchExportItem(ResearchExportItem item){
 
-                List<Map<String, String>> flatJson = parser.parse(gsonParser.parse(jsonString).getAsJsonArray());
-                writer.writeAsCSV(flatJson, csvFileName);
+        Map<String, String> flatItem = new HashMap<>();
+        putFlatValue(flatItem, "patientId", item.getPatientId());
+        putFlatValue(flatItem, "gender", item.getGender());
+        putFlatValue(flatItem, "age", item.getAge());
+        putFlatValue(flatItem, "isPregnant", item.getIsPregnant());
+        putFlatValue(flatItem, "weeksPregnant", item.getWeeksPregnant());
+        putFlatValue(flatItem, "dayOfVisit", item.getDayOfVisit());
+        putFlatValues(flatItem, "chiefComplaints", item.getChiefComplaints());
+        putFlatValues(flatItem, "prescribedMedications", item.getPrescribedMedications());
+        putFlatValues(flatItem, "dispensedMedications", item.getDispensedMedications());
 
-            } catch (FileNotFoundException e) {
+        // a vital or tab field with the same name as a field above shares its column, same as the old export
+        if (item.getVitalMap() != null) {
 
-                e.printStackTrace();
+            for (Map.Entry<String, Float> vital : item.getVitalMap().entrySet()) {
+
+                putFlatValue(flatItem, vital.getKey(), vital.getValue());
             }
         }
-        response.setResponseObject(eFile);
+        if (item.getTabFieldMap() != null) {
 
-        return response;
+            for (Map.Entry<String, String> tabField : item.getTabFieldMap().entrySet()) {
+
+                putFlatValue(flatItem, tabField.getKey(), tabField.getValue());
+            }
+        }
+
+        return flatItem;
+    }
+
+    private static void putFlatValue(Map<String, String> flatItem, String column, Object value){
+
+        if (column != null && value != null) {
+
+            flatItem.put(column, value.toString());
+        }
+    }
+
+    private static void putFlatValues(Map<String, String> flatItem, String column, List<String> values){
+
+        if (values == null) return;
+
+        for (int i = 0; i < values.size(); i++) {
+
+            putFlatValue(flatItem, column + (i + 1), values.get(i));
+        }
     }
 
-    private ResearchExportItem createResearchExportItem(IResearchEncounter encounter, UUID patientId){
+    private ResearchExportItem createResearchExportItem(IResearchEncounter encounter, UUID patientId, Map<Integer, String> vitalNames,
+                                                        Integer weeksPregnantId, Map<String, String> tabFields, List<String> chiefComplaints,
+                                                        List<IPatientPrescription> prescriptions, Map<Integer, Float> vitals){
 
         //this item is used to populate one line in the CSV file.
         ResearchExportItem exportitem = new ResearchExportItem();
@@ -252,7 +536,7 @@ public class ResearchService implements IResearchService {
         exportitem.setGender(gender);
 
         // Pregnancy Status
-        Integer wksPregnant = getWeeksPregnant(encounter);
+        Integer wksPregnant = getWeeksPregnant(vitals, weeksPregnantId);
         exportitem.setWeeksPregnant(wksPregnant);
 
         // Week Pregnant
@@ -264,53 +548,33 @@ public class ResearchService implements IResearchService {
         }
 
         // Chief Complaints
-        List<String> chiefComplaints = new ArrayList<>();
-        for (IChiefComplaint c : encounter.getChiefComplaints()) {
-
-            chiefComplaints.add(c.getValue());
-        }
         exportitem.setChiefComplaints(chiefComplaints);
 
         // Prescriptions - Prescribed and Dispensed
         List<String> prescribed = new ArrayList<>();
         List<String> dispensed = new ArrayList<>();
-        if( encounter.getPatientPrescriptions() != null ) {
-            for (IPatientPrescription p : encounter.getPatientPrescriptions()) {
+        for (IPatientPrescription p : prescriptions) {
 
-                if( p.getDateDispensed() != null ){
-
-                    dispensed.add(p.getMedication().getName());
-                }
+            if( p.getDateDispensed() != null ){
 
-                prescribed.add(p.getMedication().getName());
+                dispensed.add(p.getMedication().getName());
             }
+
+            prescribed.add(p.getMedication().getName());
         }
         exportitem.setDispensedMedications(dispensed);
         exportitem.setPrescribedMedications(prescribed);
 
         // Tab Fields
-        ExpressionList<PatientEncounterTabField> patientEncounterTabFieldExpressionList = QueryProvider.getPatientEncounterTabFieldQuery()
-                .where()
-                .eq("patient_encounter_id", encounter.getId());
-        List<? extends IPatientEncounterTabField> existingPatientEncounterTabFields = patientEncounterTabFieldRepository.find(patientEncounterTabFieldExpressionList);
-        Map<String, String> tabFields = new HashMap<>();
-        if( existingPatientEncounterTabFields.size() > 0 ){
-
-            for( IPatientEncounterTabField tf : existingPatientEncounterTabFields ){
-
-                tabFields.put(tf.getTabField().getName(), tf.getTabFieldValue());
-            }
-        }
         exportitem.setTabFieldMap(tabFields);
 
         // Vitals
-        Map<Integer, ResearchEncounterVital> vitalMap = encounter.getEncounterVitals();
-        Map<String, Float> vitals = new HashMap<>();
-        for( ResearchEncounterVital vital : vitalMap.values() ){
+        Map<String, Float> vitalMap = new HashMap<>();
+        for( Map.Entry<Integer, Float> vital : vitals.entrySet() ){
 
-            vitals.put(vital.getVital().getName(), vital.getVitalValue());
+            vitalMap.put(vitalNames.get(vital.getKey()), vital.getValue());
         }
-        exportitem.setVitalMap(vitals);
+        exportitem.setVitalMap(vitalMap);
 
         //month and year of the encounter
         exportitem.setDayOfVisit(dateUtils.getFriendlyDateMonthYear(encounter.getDateOfTriageVisit()));
@@ -326,34 +590,13 @@ public class ResearchService implements IResearchService {
 
         try {
 
-            List<? extends IResearchEncounter> patientEncounters = queryPatientData(filters);
-
-            ResearchResultSetItem results;
-            if (filters.getPrimaryDataset().equals("age")) {
-
-                results = buildAgeResultSet(patientEncounters, filters);
-            } else if (filters.getPrimaryDataset().equals("pregnancyStatus") ||
-                    filters.getPrimaryDataset().equals("pregnancyTime")) {
+            ResearchResultCache cache = ResearchResultCache.get();
+            ResearchResultSetItem results = cache.find(filters);
+            if (results == null) {
 
-                results = buildPregnancyResultSet(patientEncounters, filters);
-            } else if (filters.getPrimaryDataset().equals("gender")) {
-
-                results = buildGenderResultSet(patientEncounters, filters);
-            } else if (filters.getPrimaryDataset().equals("height")) {
-
-                results = buildHeightResultSet(patientEncounters, filters);
-            }
-            // Check for medication filters
-            else if (filters.getPrimaryDataset().equals("prescribedMeds") ||
-                    filters.getPrimaryDataset().equals("dispensedMeds")) {
-
-                results = buildMedicationResultSet(patientEncounters, filters);
-            }
-
-            // non-special situations are all considered vitals
-            else{
-
-                results = buildVitalResultSet(patientEncounters, filters);
+                long cacheVersion = cache.getVersion();
+                results = buildGraphData(filters);
+                cache.put(filters, results, cacheVersion);
             }
 
             // Handle Grouping, if needed
@@ -369,14 +612,88 @@ public class ResearchService implements IResearchService {
     }
 
     /**
-     * take filters and make appropriate query, get list of matching patient encounters
+     * build the ungrouped graph
+     */
+    private ResearchResultSetItem buildGraphData(ResearchFilterItem filters){
+
+        ResearchDataset primaryDataset = createResearchDataset(filters.getPrimaryDataset());
+        if (primaryDataset == null) {
+
+            // no results if requested vital doesn't exist
+            return new ResearchResultSetItem();
+        }
+
+        ResearchDataset secondaryDataset = createResearchDataset(filters.getSecondaryDataset());
+        float rangeStart = rangeStart(filters);
+        float rangeEnd = rangeEnd(filters);
+        ResearchColumns columns = loadResearchColumns(filters, primaryDataset, secondaryDataset, rangeStart, rangeEnd);
+        return researchAggregator.aggregate(columns, primaryDataset, secondaryDataset, rangeStart, rangeEnd);
+    }
+
+    private static float rangeStart(ResearchFilterItem filters){
+
+        return filters.getFilterRangeStart() == null ? -1 * Float.MAX_VALUE : filters.getFilterRangeStart();
+    }
+
+    private static float rangeEnd(ResearchFilterItem filters){
+
+        return filters.getFilterRangeEnd() == null ? Float.MAX_VALUE : filters.getFilterRangeEnd();
+    }
+
+    /**
+     * take filters and build the matching patient encounter query without running it
      * @param filters an object that contains all possible filters for the data
-     * @return a list of the encounters
+     * @return the encounter query
      */
-    private List<? extends IResearchEncounter> queryPatientData(ResearchFilterItem filters){
+    private Query<ResearchEncounter> buildPatientDataQuery(ResearchFilterItem filters){
 
         String datasetName = filters.getPrimaryDataset();
 
+        // Build Query based on Filters
+        Query<ResearchEncounter> researchEncounterQuery = QueryProvider.getResearchEncounterQuery();
+                researchEncounterQuery.fetch("patient");
+
+        // prescriptions, chief complaints and vitals are loaded a page at a time by the export
+
+        applyPatientDataFilters(researchEncounterQuery.where(), filters, datasetName.equals("age"));
+
+        // "Filter Primary Dataset" start and end numbers, each row is checked again when it is written.
+        // An unknown vital is not filtered
+        ResearchDataset primary = createResearchDataset(datasetName);
+        if( primary != null ){
+
+            primary.addRangePredicates(researchEncounterQuery.where(), retrieveVitalIds(new HashSet<>(primary.getVitalNames())),
+                    rangeStart(filters), rangeEnd(filters));
+        }
+
+        return researchEncounterQuery;
+    }
+
+    /**
+     * take filters and build a query that only selects the encounter columns the graphs read
+     * @param filters an object that contains all possible filters for the data
+     * @param primary the dataset being graphed, its range filter is pushed down to the database
+     * @param vitalIds ids of the vitals the datasets read, by name
+     * @return the encounter query
+     */
+    private Query<ResearchEncounter> buildResearchColumnQuery(ResearchFilterItem filters, ResearchDataset primary, Map<String, Integer> vitalIds,
+                                                             float rangeStart, float rangeEnd){
+
+        Query<ResearchEncounter> researchEncounterQuery = QueryProvider.getResearchEncounterQuery()
+                .select("id, dateOfTriageVisit")
+                .fetch("patient", "id, sex, age");
+
+        applyPatientDataFilters(researchEncounterQuery.where(), filters, primary.requiresBirthDate());
+        primary.addRangePredicates(researchEncounterQuery.where(), vitalIds, rangeStart, rangeEnd);
+
+        return researchEncounterQuery;
+    }
+
+    /**
+     * add the date, trip, medication and ordering predicates shared by every research query
+     */
+    private void applyPatientDataFilters(ExpressionList<ResearchEncounter> researchEncounterExpressionList, ResearchFilterItem filters, boolean requireBirthDate){
+
         String startDateString = filters.getStartDate();
         String endDateString = filters.getEndDate();
         Date startDateObj;
@@ -399,24 +716,6 @@ public class ResearchService implements IResearchService {
             endDateObj = null;
         }
 
-        // Build Query based on Filters
-        Query<ResearchEncounter> researchEncounterQuery = QueryProvider.getResearchEncounterQuery();
-                researchEncounterQuery.fetch("patient");
-
-
-        if( datasetName.equals("prescribedMeds") || datasetName.equals("dispensedMeds") ){
-
-            researchEncounterQuery.fetch("patientPrescriptions");
-        }
-
-        // filtering by medication, so make sure to fetch the medication info
-        if( filters.getMedicationName() != null && filters.getMedicationName().length() > 0 ){
-
-            researchEncounterQuery.fetch("patientPrescriptions.medication");
-        }
-
-        ExpressionList<ResearchEncounter> researchEncounterExpressionList = researchEncounterQuery.where();
-
         // filter by date - can have only start, or only end date
         if( startDateObj != null ) {
             researchEncounterExpressionList.gt("dateOfTriageVisit", sqlFormat.format(startDateObj));
@@ -436,36 +735,9 @@ public class ResearchService implements IResearchService {
             researchEncounterExpressionList.eq("missionTrip.id",filters.getMissionTripId()); //Andrew Trip Filter
         }
 
-        // if the filters exist - use them in the query
-//        if( filters.getFilterRangeStart() > -1 * Float.MAX_VALUE ){
-//
-//            if( filters.getPrimaryDataset().equals("age") ){
-//
-//                // Age comes in as an integer -- need to make it a date
-//                Float age = filters.getFilterRangeStart();
-//                DateTime maxBirthDate = new DateTime();
-//                maxBirthDate = maxBirthDate.withTimeAtStartOfDay().minusYears((int) Math.floor(age));
-//
-//                e.le("patient.age", sqlFormat.format(maxBirthDate.toDate()));
-//            }
-//
-//        }
-//
-//        if( filters.getFilterRangeEnd() < Float.MAX_VALUE ){
-//
-//            if( filters.getPrimaryDataset().equals("age") ){
-//
-//                // Age comes in as an integer -- need to make it a date
-//                Float age = filters.getFilterRangeEnd();
-//                DateTime maxBirthDate = new DateTime();
-//                maxBirthDate = maxBirthDate.withTimeAtStartOfDay().minusYears((int) Math.floor(age));
-//
-//                e.ge("patient.age", sqlFormat.format(maxBirthDate.toDate()));
-//            }
-//        }
         researchEncounterExpressionList.isNull("patient.isDeleted");
         // add age specific parameters
-        if( datasetName.equals("age") ) {
+        if( requireBirthDate ) {
 
             researchEncounterExpressionList.ne("patient.age", null);
             researchEncounterExpressionList.orderBy().desc("patient.age");
@@ -478,1071 +750,247 @@ public class ResearchService implements IResearchService {
         else {
             researchEncounterExpressionList.orderBy().desc("date_of_triage_visit");
         }
-
-
-        researchEncounterExpressionList.findList();
-        return researchEncounterRepository.find(researchEncounterExpressionList);
-
     }
 
+    /**
+     * Groups the result values into groupFactor wide ranges, if grouping was requested.
+     *
+     * @param results the ungrouped result set, values in ascending order
+     * @param filters an object that contains all possible filters for the data
+     * @return the result set with its dataset replaced by the grouped ranges
+     */
     private ResearchResultSetItem groupData(ResearchResultSetItem results, ResearchFilterItem filters){
 
-        // Force grouping if not already chosen
-        /*
-        if( !filters.isGroupPrimary() ){
+        // don't bother if there will only be 1 group
+        if( !filters.isGroupPrimary() || filters.getGroupFactor() == null || filters.getGroupFactor() < 1 ||
+                results.getDataset().size() <= filters.getGroupFactor() ) {
 
-            if( results.getDataset().size() > 30 ){
-
-                filters.setGroupPrimary(true);
-                // default to 20 groups
-                //int groupFactor = results.getDataset().size() / 20;
-                int groupFactor = 10;
-                filters.setGroupFactor(groupFactor);
-            }
+            return results;
         }
-        */
 
-        // Build group key values -- don't bother if there will only be 1 group
-        // make happen automatically too? -- results.getDataset().size() > 20
-        if( filters.isGroupPrimary() && results.getDataset().size() > filters.getGroupFactor() ) {
+        // each item should contain all keys, but collect every key to be safe
+        Set<String> secondaryKeys = new TreeSet<>();
+        for( ResearchResultItem item : results.getDataset() ){
 
-            int groupFactor = filters.getGroupFactor();
+            if( item.getSecondaryData() != null ){
 
-            // Start first range at lowest multiple near the first item
-            // Ex: first item is 25, group factor is 10 -- firstLowKey 20
-            int firstLowKey = (int)Math.floor(results.getDataRangeLow() / groupFactor) * groupFactor;
+                secondaryKeys.addAll(item.getSecondaryData().keySet());
+            }
+        }
 
-            // End range set at the highest multiple near last item
-            // Ex: last item is 47, group factor is 10 -- lastLowKey is 40
-            int lastLowKey = (int)Math.floor(results.getDataRangeHigh() / groupFactor) * groupFactor;
+        BucketedHistogram histogram = new BucketedHistogram(filters.getGroupFactor(), new ArrayList<>(secondaryKeys));
+        for( ResearchResultItem item : results.getDataset() ){
 
-            List<ResearchResultItem> resultDataset = results.getDataset();
-            List<ResearchResultItem> newResultDataset = new ArrayList<>();
-            Set<String> secondaryKeys = null;
+            float itemValue;
+            try {
 
+                itemValue = Float.parseFloat(item.getPrimaryName());
+            }
+            catch( NumberFormatException e ){
 
-            for( int lowKey = firstLowKey; lowKey <= lastLowKey; lowKey+=groupFactor ){
+                // non numeric items can't be grouped
+                continue;
+            }
+            histogram.add(itemValue, item.getPrimaryValue(), item.getSecondaryData());
+        }
 
-                /* -- Start first range at first value in the range
-                int lowTemp = lowKey;
-                if( lowKey < filters.getFilterRangeStart() ){
+        results.setDataset(histogram.toResultItems());
 
-                    lowTemp = filters.getFilterRangeStart().intValue();
-                }
-                */
+        return results;
+    }
 
-                int highKey = lowKey + (groupFactor - 1);
-                /*
-                if( highKey > filters.getFilterRangeEnd() ){
+    /**
+     * Creates the aggregation plug-in for a dataset name.
+     *
+     * @param datasetName name of the dataset from the filters, may be null
+     * @return the dataset or null if the name is empty or an unknown vital
+     */
+    private ResearchDataset createResearchDataset(String datasetName){
+
+        if( StringUtils.isNullOrWhiteSpace(datasetName) ) return null;
+
+        switch( datasetName ){
+
+            case "age":
+                return new AgeDataset();
+            case "gender":
+                return new GenderDataset();
+            case "pregnancyStatus":
+                return new PregnancyStatusDataset();
+            case "pregnancyTime":
+                return new PregnancyTimeDataset();
+            case "prescribedMeds":
+                return new MedicationDataset(datasetName, ResearchDataset.MedicationSource.PRESCRIBED);
+            case "dispensedMeds":
+                return new MedicationDataset(datasetName, ResearchDataset.MedicationSource.DISPENSED);
+            case "height":
+                IVital heightInches = vitalRepository.findOne(QueryProvider.getVitalQuery().where().eq("name", "heightInches"));
+                return new HeightDataset(heightInches == null ? null : heightInches.getUnitOfMeasurement());
+            default:
+                // non-special situations are all considered vitals
+                IVital vital = vitalRepository.findOne(QueryProvider.getVitalQuery().where().eq("name", datasetName));
+                return vital == null ? null : new VitalDataset(vital.getName(), vital.getUnitOfMeasurement());
+        }
+    }
 
-                    highKey = filters.getFilterRangeEnd().intValue();
-                }
-                */
+    /**
+     * Loads only the columns the datasets read: the encounter and patient first, then the
+     * requested vitals and prescriptions in chunks of encounter ids.
+     *
+     * @param filters   an object that contains all possible filters for the data
+     * @param primary   the graphed dataset, not null
+     * @param secondary the dataset used to break down the primary, may be null
+     * @return the loaded columns
+     */
+    private ResearchColumns loadResearchColumns(ResearchFilterItem filters, ResearchDataset primary, ResearchDataset secondary,
+                                                float rangeStart, float rangeEnd){
 
-                String groupIndexString = String.format("%d - %d", lowKey, highKey);
+        Set<String> vitalNames = new LinkedHashSet<>(primary.getVitalNames());
+        // only categorical datasets can break down another dataset
+        if( secondary != null && secondary.getCategoryCount() > 0 ){
 
-                ResearchResultItem newResultItem = new ResearchResultItem();
-                newResultItem.setPrimaryName(groupIndexString);
+            vitalNames.addAll(secondary.getVitalNames());
+        }
+        ResearchColumns columns = new ResearchColumns(new ArrayList<>(vitalNames));
+        Map<String, Integer> vitalIds = retrieveVitalIds(vitalNames);
 
-                Iterator<ResearchResultItem> itr = resultDataset.listIterator();
-                while(itr.hasNext()) {
+        Query<ResearchEncounter> encounterQuery = buildResearchColumnQuery(filters, primary, vitalIds, rangeStart, rangeEnd);
+        researchEncounterRepository.findEach(encounterQuery, encounter -> {
 
-                    ResearchResultItem item = itr.next();
+            IPatient patient = encounter.getPatient();
 
-                    String itemNameString = item.getPrimaryName();
-                    Float itemNameValue;
-                    try {
-                        itemNameValue = Float.valueOf(itemNameString);
-                    }
-                    catch(NumberFormatException e){
-                        // skip iteration
-                        continue;
-                    }
+            // Get patient Age - as of encounter date (Triage Visit)
+            float age = Float.NaN;
+            if( patient.getAge() != null ){
 
-                    if( itemNameValue < highKey ) {
+                age = (float) Math.floor(dateUtils.getAgeAsOfDateFloat(patient.getAge(), encounter.getDateOfTriageVisit()));
+            }
+            columns.addEncounter(encounter.getId(), patient.getId(), ResearchColumns.toGender(patient.getSex()), age);
+        });
 
-                        // add total for current item to grouped total
-                        Float currVal = newResultItem.getPrimaryValue();
-                        newResultItem.setPrimaryValue(currVal + item.getPrimaryValue());
+        if( columns.size() == 0 ) return columns;
 
-                        // copy over secondary data too
-                        if( item.getSecondaryData() != null ) {
+        if( !vitalIds.isEmpty() ){
 
-                            Map<String, Float> oldSecondaryData = item.getSecondaryData();
-                            if( secondaryKeys == null ){
-                                // each item should contain all keys, even if zero
-                                // only need to get this value once
-                                secondaryKeys = oldSecondaryData.keySet();
-                            }
+            loadVitalColumns(columns, vitalIds);
+        }
 
-                            // get grouped secondary dataset and ensure its initialized
-                            Map<String, Float> newSecondaryData = newResultItem.getSecondaryData();
-                            if(newSecondaryData == null ){
+        if( primary.getMedicationSource() != ResearchDataset.MedicationSource.NONE ){
 
-                                newSecondaryData = new HashMap<>();
-                            }
+            loadMedicationColumn(columns, primary.getMedicationSource());
+        }
 
-                            // always check each item for all possible secondary keys
-                            for (String key : secondaryKeys) {
-
-                                Float oldVal = oldSecondaryData.get(key);
-                                if (newSecondaryData.containsKey(key)) {
-
-                                    Float newVal = newSecondaryData.get(key);
-                                    newSecondaryData.put(key, newVal + oldVal);
-
-                                } else {
-
-                                    newSecondaryData.put(key, oldVal);
-                                }
-                            }
-                            newResultItem.setSecondaryData(newSecondaryData);
-                        }
-
-                        // once item is added to new list remove from current list
-                        itr.remove();
-                    }
-                    else{
-
-                        // values are sorted, so exit an continue to next group
-                        // no items exist for current range
-                        break;
-                    }
-
-                } // end while
-
-                // if secondary keys exist, make the the item has at least 0 values for each key
-                // this will happen when no items match for the current range
-                if( newResultItem.getSecondaryData() == null && secondaryKeys != null ){
-
-                    // if there is secondary data, make sure 0 values are set for each key
-                    Map<String, Float> newSecondaryData = new HashMap<>();
-                    for (String key : secondaryKeys) {
-
-                        newSecondaryData.put(key, 0.0f);
-                    }
-                    newResultItem.setSecondaryData(newSecondaryData);
-                }
-
-                newResultDataset.add(newResultItem);
-
-            } // end foreach
-            results.setDataset(newResultDataset);
-
-        }
-        return results;
+        return columns;
     }
 
+    /**
+     * @return vital name -> id, vitals that don't exist are left out
+     */
+    private Map<String, Integer> retrieveVitalIds(Set<String> vitalNames){
 
+        Map<String, Integer> vitalIds = new HashMap<>();
+        if( vitalNames.isEmpty() ) return vitalIds;
 
-    // do stuff specific to vitals request
-    private ResearchResultSetItem buildMedicationResultSet(List<? extends IResearchEncounter> encounters, ResearchFilterItem filters) {
-
-        // do nothing if encounters is empty
-        if( encounters.isEmpty() ) return new ResearchResultSetItem();
-
-        // used to calculate average
-        float encountersTotal = 0;
-        float patientsTotal = 0;
-
-        // Map to keep track of total patient for each vital_value
-        // Keep keys in sorted order while totaling patients
-        Map<Float, ResearchResultItem> datasetBuilder = new TreeMap<>();
-
-        // Keep track of patients, eliminate duplicate encounters
-        Set<Integer> patientIds = new HashSet<>();
-
-        // Object to send return
-        ResearchResultSetItem resultSet = new ResearchResultSetItem();
-        resultSet.setDataType(filters.getPrimaryDataset());
-
-        // Loop through encounters, get data and build stats
-        for (IResearchEncounter encounter : encounters) {
-
-            IPatient patient = encounter.getPatient();
-
-            encountersTotal++;
-
-            // If patient age has already been counted, don't count again
-            if( patientIds.contains(patient.getId()) ) continue;
-            patientIds.add(patient.getId());
-
-            patientsTotal++;
-
-            Float medicationId;
-            ResearchResultItem resultItem;
-            if( filters.getPrimaryDataset().equals("prescribedMeds") ){
-
-                List<PatientPrescription> prescriptions = encounter.getPatientPrescriptions();
-                Map<Float, String> primaryValuemap = resultSet.getPrimaryValueMap();
-                if( primaryValuemap == null ){
-
-                    primaryValuemap = new HashMap<>();
-                }
-
-                for( PatientPrescription script : prescriptions ) {
-
-                    // skip items with replacement Id
-                    if( script.getPatientPrescriptionReplacements() != null && script.getPatientPrescriptionReplacements().size() > 0 ) continue;
-
-                    medicationId =  (float)script.getId();
-                    // total patients for each value in map
-                    if (datasetBuilder.containsKey(medicationId)){
-
-                        resultItem = datasetBuilder.get(medicationId);
-
-                    } else {
-
-                        resultItem = new ResearchResultItem();
-                        resultItem.setPrimaryName(Float.toString(script.getId()));
-                    }
-                    // increment total by 1
-                    float currentValue = resultItem.getPrimaryValue();
-                    resultItem.setPrimaryValue(currentValue + 1);
-
-                    if( !primaryValuemap.containsKey(medicationId) ){
-
-                        primaryValuemap.put(medicationId, script.getMedication().getName());
-                    }
-                    // put result item back into map
-                    datasetBuilder.put(medicationId, resultItem);
-                }
-                resultSet.setPrimaryValueMap(primaryValuemap);
-
-            }
-
-            else if( filters.getPrimaryDataset().equals("dispensedMeds") ){
-
-                List<PatientPrescription> prescriptions = encounter.getPatientPrescriptions();
-                Map<Float, String> primaryValuemap = resultSet.getPrimaryValueMap();
-                if( primaryValuemap == null ){
-
-                    primaryValuemap = new HashMap<>();
-                }
-
-                for( PatientPrescription script : prescriptions ) {
-
-                    // only count medications actually dispensed
-                    if( script.getDateDispensed() == null ) continue;
-
-                    medicationId =  (float)script.getId();
-                    // total patients for each value in map
-                    if (datasetBuilder.containsKey(medicationId)){
-
-                        resultItem = datasetBuilder.get(medicationId);
-
-                    } else {
-
-                        resultItem = new ResearchResultItem();
-                        resultItem.setPrimaryName(Float.toString(script.getId()));
-                    }
-                    // increment total by 1
-                    float currentValue = resultItem.getPrimaryValue();
-                    resultItem.setPrimaryValue(currentValue + 1);
-
-                    if( !primaryValuemap.containsKey(medicationId) ){
-
-                        primaryValuemap.put(medicationId, script.getMedication().getName());
-                    }
-                    // put result item back into map
-                    datasetBuilder.put(medicationId, resultItem);
-                }
-                resultSet.setPrimaryValueMap(primaryValuemap);
-
-            }
+        ExpressionList<Vital> vitalQuery = QueryProvider.getVitalQuery().where().in("name", vitalNames);
+        for( IVital vital : vitalRepository.find(vitalQuery) ){
 
+            vitalIds.put(vital.getName(), vital.getId());
         }
-
-        // save builder map as list in result set
-        resultSet.setDataset(new ArrayList<ResearchResultItem>(datasetBuilder.values()));
-        resultSet.setTotalPatients(patientsTotal);
-        resultSet.setTotalEncounters(encountersTotal);
-
-        return resultSet;
+        return vitalIds;
     }
 
-    // do stuff specific to vitals request
-    private ResearchResultSetItem buildVitalResultSet(List<? extends IResearchEncounter> encounters, ResearchFilterItem filters) {
-
-        // do nothing if encounters is empty
-        if( encounters.isEmpty() ) return new ResearchResultSetItem();
+    private void loadVitalColumns(ResearchColumns columns, Map<String, Integer> vitalIds){
 
-        // Get vital obj to use vitalId in Encounter vital_value map
-        String vitalName = filters.getPrimaryDataset();
-        ExpressionList<Vital> query = QueryProvider.getVitalQuery().where().eq("name", vitalName);
-        IVital vital = vitalRepository.findOne(query);
+        // vital id -> column
+        Map<Integer, Integer> vitalColumns = new HashMap<>();
+        for( Map.Entry<String, Integer> vitalId : vitalIds.entrySet() ){
 
-        if( vital == null ){
-
-            // no results if requested vital doesn't exist
-            return new ResearchResultSetItem();
+            vitalColumns.put(vitalId.getValue(), columns.getVitalColumn(vitalId.getKey()));
         }
 
-        // used to calculate average
-        float totalForAvg = 0;
-        float encountersTotal = 0;
-        float patientsTotal = 0;
-
-        // Map to keep track of total patient for each vital_value
-        // Keep keys in sorted order while totaling patients
-        Map<Float, ResearchResultItem> datasetBuilder = new TreeMap<>();
-
-        // Keep track of patients, eliminate duplicate encounters
-        Set<Integer> patientIds = new HashSet<>();
+        for( List<Integer> encounterIds : chunkEncounterIds(columns) ){
 
-        // Object to send return
-        ResearchResultSetItem resultSet = new ResearchResultSetItem();
-        resultSet.setDataType(vitalName);
-        resultSet.setUnitOfMeasurement(vital.getUnitOfMeasurement());
-
-        // Loop through encounters, get data and build stats
-        for (IResearchEncounter encounter : encounters) {
-
-            IPatient patient = encounter.getPatient();
+            // ordered by id so the most recently recorded value wins
+            Query<ResearchEncounterVital> query = QueryProvider.getResearchEncounterVitalQuery()
+                    .select("id, vitalId, vitalValue, patientEncounter")
+                    .where()
+                    .in("vitalId", vitalColumns.keySet())
+                    .in("patientEncounter.id", encounterIds)
+                    .order().asc("id");
 
-            // Get vital value
-            ResearchEncounterVital vitals = encounter.getEncounterVitals().get(vital.getId());
+            researchEncounterVitalRepository.findEach(query, vital -> {
 
-            // end loop if needed vital does not exist
-            if( vitals == null ) continue;
+                int row = columns.findRow(vital.getPatientEncounter().getId());
+                if( row >= 0 && vital.getVitalValue() != null ){
 
-            Float vitalValue = vitals.getVitalValue();
-            //Float vitalValue = (float) encounter.getEncounterVital().getVitalValue();
-
-            if( vitalValue == null ) continue;
-
-            // skip encounter if age is out of range
-            if( vitalValue < filters.getFilterRangeStart() || vitalValue > filters.getFilterRangeEnd() ) continue;
-
-            encountersTotal++;
-
-            // If patient age has already been counted, don't count again
-            if( patientIds.contains(patient.getId()) ) continue;
-            patientIds.add(patient.getId());
-
-            // increment total to calculate average
-            totalForAvg += vitalValue;
-            patientsTotal++;
-
-            // set RANGE LOW and HIGH if needed
-            if (vitalValue > resultSet.getDataRangeHigh()) {
-
-                resultSet.setDataRangeHigh(vitalValue);
-            }
-            if (vitalValue < resultSet.getDataRangeLow()) {
-
-                resultSet.setDataRangeLow(vitalValue);
-            }
-
-            // total patients for each value in map
-            ResearchResultItem resultItem;
-            if (datasetBuilder.containsKey(vitalValue)) {
-
-                resultItem = datasetBuilder.get(vitalValue);
-
-            } else {
-
-                resultItem = new ResearchResultItem();
-                resultItem.setPrimaryName(Float.toString(vitalValue));
-            }
-            // increment total by 1
-            float currentValue = resultItem.getPrimaryValue();
-
-            resultItem.setPrimaryValue(currentValue + 1);
-
-            // get secondary data
-            if (filters.getSecondaryDataset() != null) {
-                if (filters.getSecondaryDataset().equals("gender")) {
-
-                    // Set valuemap if not already
-                    if (resultSet.getSecondaryValueMap() == null) {
-
-                        Map<Float, String> secondaryResultMap = new HashMap<>();
-                        secondaryResultMap.put(0.0f, "Male");
-                        secondaryResultMap.put(1.0f, "Female");
-                        secondaryResultMap.put(2.0f, "N/A");
-
-                        resultSet.setSecondaryValueMap(secondaryResultMap);
-                    }
-
-                    String gender = "2.0";
-                    if (patient.getSex() == null) {
-                        gender = "2.0";
-                    } else if (patient.getSex().matches("(?i:Male)")) {
-                        gender = "0.0";
-                    } else if (patient.getSex().matches("(?i:Female)")) {
-                        gender = "1.0";
-                    }
-
-                    Map<String, Float> secondaryData = resultItem.getSecondaryData();
-                    // Initialize secondary data
-                    if (secondaryData == null) {
-
-                        secondaryData = new HashMap<String, Float>();
-
-                        // Make sure all keys exist
-                        secondaryData.put("0.0", 0.0f);
-                        secondaryData.put("1.0", 0.0f);
-                        secondaryData.put("2.0", 0.0f);
-                    }
-
-                    // Add patient to secondary running total
-                    // key will exist after initialization above
-                    Float secTotal = secondaryData.get(gender);
-                    secondaryData.put(gender, secTotal + 1.0f);
-
-                    resultItem.setSecondaryData(secondaryData);
-
-                } else if (filters.getSecondaryDataset().equals("pregnancyStatus")) {
-
-                    // Set valuemap if not already
-                    if (resultSet.getSecondaryValueMap() == null) {
-
-                        Map<Float, String> secondaryResultMap = new HashMap<>();
-                        secondaryResultMap.put(0.0f, "No");
-                        secondaryResultMap.put(1.0f, "Yes");
-
-                        resultSet.setSecondaryValueMap(secondaryResultMap);
-                    }
-
-                    Integer weeksPregnant = getWeeksPregnant( encounter );
-                    String pregnancyStatus = "0.0";
-                    if( weeksPregnant >  0 ){
-                        pregnancyStatus = "1.0";
-                    }
-
-                    Map<String, Float> secondaryData = resultItem.getSecondaryData();
-                    // Initialize secondary data
-                    if (secondaryData == null) {
-
-                        secondaryData = new HashMap<String, Float>();
-
-                        // Make sure all keys exist
-                        secondaryData.put("0.0", 0.0f);
-                        secondaryData.put("1.0", 0.0f);
-                    }
-
-                    // Add patient to secondary running total
-                    // key will exist after initialization above
-                    Float secTotal = secondaryData.get(pregnancyStatus);
-
-                    secondaryData.put( pregnancyStatus, secTotal + 1.0f);
-
-                    resultItem.setSecondaryData(secondaryData);
+                    columns.setVital(row, vitalColumns.get(vital.getVitalId()), vital.getVitalValue());
                 }
-            }
-
-            // put result item back into map
-            datasetBuilder.put(vitalValue, resultItem);
+            });
         }
-
-        // save builder map as list in result set
-        resultSet.setDataset(new ArrayList<ResearchResultItem>(datasetBuilder.values()));
-        resultSet.setTotalPatients(patientsTotal);
-        resultSet.setTotalEncounters(encountersTotal);
-
-        // save AVERAGE
-        float average = totalForAvg / patientsTotal;
-        resultSet.setAverage(average);
-
-        // Standard Deviation -- might be used to detect outliers
-        double devSum = 0.0;
-        for( ResearchResultItem item : resultSet.getDataset() ){
-
-            //(indexed value - mean)^2
-            devSum += Math.pow(item.getPrimaryValue() - average, 2);
-        }
-        resultSet.setStandardDeviation(Math.sqrt(devSum));
-
-        return resultSet;
-
     }
 
-    // do stuff specific to height request - use total in inches
-    private ResearchResultSetItem buildHeightResultSet(List<? extends IResearchEncounter> encounters, ResearchFilterItem filters) {
-
-        // do nothing if encounters is empty
-        if( encounters.isEmpty() ) return new ResearchResultSetItem();
-
-        // Get vital obj to use vitalId in Encounter vital_value map
-        String vitalName = filters.getPrimaryDataset();
-        ExpressionList<Vital> query = QueryProvider.getVitalQuery().where().eq("name", "heightFeet");
-        IVital vital = vitalRepository.findOne(query);
-
-        Integer heightFeetId = vital.getId();
-
-        query = QueryProvider.getVitalQuery().where().eq("name", "heightInches");
-        vital = vitalRepository.findOne(query);
-
-        Integer heightInchesId = vital.getId();
-
-        // used to calculate average
-        float totalForAvg = 0;
-        float encountersTotal = 0;
-        float patientsTotal = 0;
-
-        // Map to keep track of total patient for each vital_value
-        // Keep keys in sorted order while totaling patients
-        Map<Float, ResearchResultItem> datasetBuilder = new TreeMap<>();
-
-        // Keep track of patients, eliminate duplicate encounters
-        Set<Integer> patientIds = new HashSet<>();
-
-        // Object to send return
-        ResearchResultSetItem resultSet = new ResearchResultSetItem();
-        resultSet.setDataType(vitalName);
-        resultSet.setUnitOfMeasurement(vital.getUnitOfMeasurement());
+    private void loadMedicationColumn(ResearchColumns columns, ResearchDataset.MedicationSource medicationSource){
 
-        // Loop through encounters, get data and build stats
-        for (IResearchEncounter encounter : encounters) {
-
-            IPatient patient = encounter.getPatient();
-
-            // Get vital value - heightFeet and heightInches
-            ResearchEncounterVital vitalFeet = encounter.getEncounterVitals().get(heightFeetId);
-            ResearchEncounterVital vitalInches = encounter.getEncounterVitals().get(heightInchesId);
-
-            // height values may not exist
-            Float vitalValue = 0.0f;
-            if( vitalFeet != null ){
-
-                vitalValue += vitalFeet.getVitalValue() * 12;
-            }
-            if( vitalInches != null ){
-
-                vitalValue += vitalInches.getVitalValue();
-            }
+        for( List<Integer> encounterIds : chunkEncounterIds(columns) ){
 
-            // if feet or inches were not found, skip to next encounter
-            if( vitalValue == 0.0f ) continue;
-
-            // skip encounter if age is out of range
-            if( vitalValue < filters.getFilterRangeStart() || vitalValue > filters.getFilterRangeEnd() ) continue;
-
-            encountersTotal++;
-
-            // If patient age has already been counted, don't count again
-            if( patientIds.contains(patient.getId()) ) continue;
-            patientIds.add(patient.getId());
-
-            // increment total to calculate average
-            totalForAvg += vitalValue;
-            patientsTotal++;
-
-            // set RANGE LOW and HIGH if needed
-            if (vitalValue > resultSet.getDataRangeHigh()) {
-
-                resultSet.setDataRangeHigh(vitalValue);
-            }
-            if (vitalValue < resultSet.getDataRangeLow()) {
-
-                resultSet.setDataRangeLow(vitalValue);
-            }
+            Query<PatientPrescription> query = QueryProvider.getPatientPrescriptionQuery()
+                    .select("id, dateDispensed, patientEncounter")
+                    .fetch("medication", "id, name")
+                    .fetch("patientPrescriptionReplacements", "id")
+                    .where()
+                    .in("patientEncounter.id", encounterIds)
+                    .order().asc("id");
 
-            // total patients for each value in map
-            ResearchResultItem resultItem;
-            if (datasetBuilder.containsKey(vitalValue)) {
+            for( IPatientPrescription prescription : patientPrescriptionRepository.find(query) ){
 
-                resultItem = datasetBuilder.get(vitalValue);
+                if( medicationSource == ResearchDataset.MedicationSource.PRESCRIBED ){
 
-            } else {
-
-                resultItem = new ResearchResultItem();
-                resultItem.setPrimaryName(Float.toString(vitalValue));
-            }
-            // increment total by 1
-            float currentValue = resultItem.getPrimaryValue();
-
-            resultItem.setPrimaryValue(currentValue + 1);
-
-            // get secondary data
-            if (filters.getSecondaryDataset() != null) {
-                if (filters.getSecondaryDataset().equals("gender")) {
-
-                    // Set valuemap if not already
-                    if (resultSet.getSecondaryValueMap() == null) {
-
-                        Map<Float, String> secondaryResultMap = new HashMap<>();
-                        secondaryResultMap.put(0.0f, "Male");
-                        secondaryResultMap.put(1.0f, "Female");
-                        secondaryResultMap.put(2.0f, "N/A");
-
-                        resultSet.setSecondaryValueMap(secondaryResultMap);
-                    }
-
-                    String gender = "2.0";
-                    if (patient.getSex() == null) {
-                        gender = "2.0";
-                    } else if (patient.getSex().matches("(?i:Male)")) {
-                        gender = "0.0";
-                    } else if (patient.getSex().matches("(?i:Female)")) {
-                        gender = "1.0";
-                    }
-
-                    Map<String, Float> secondaryData = resultItem.getSecondaryData();
-                    // Initialize secondary data
-                    if (secondaryData == null) {
-
-                        secondaryData = new HashMap<String, Float>();
-
-                        // Make sure all keys exist
-                        secondaryData.put("0.0", 0.0f);
-                        secondaryData.put("1.0", 0.0f);
-                        secondaryData.put("2.0", 0.0f);
-                    }
-
-                    // Add patient to secondary running total
-                    // key will exist after initialization above
-                    Float secTotal = secondaryData.get(gender);
-                    secondaryData.put(gender, secTotal + 1.0f);
-
-                    resultItem.setSecondaryData(secondaryData);
-
-                } else if (filters.getSecondaryDataset().equals("pregnancyStatus")) {
-
-                    // Set valuemap if not already
-                    if (resultSet.getSecondaryValueMap() == null) {
-
-                        Map<Float, String> secondaryResultMap = new HashMap<>();
-                        secondaryResultMap.put(0.0f, "No");
-                        secondaryResultMap.put(1.0f, "Yes");
-
-                        resultSet.setSecondaryValueMap(secondaryResultMap);
-                    }
-
-                    Integer wksPregnant = getWeeksPregnant( encounter );
-
-                    String pregnancyStatus = "0.0";
-                    if (wksPregnant > 0) {
-                        pregnancyStatus = "1.0";
-                    }
-
-                    Map<String, Float> secondaryData = resultItem.getSecondaryData();
-                    // Initialize secondary data
-                    if (secondaryData == null) {
-
-                        secondaryData = new HashMap<String, Float>();
-
-                        // Make sure all keys exist
-                        secondaryData.put("0.0", 0.0f);
-                        secondaryData.put("1.0", 0.0f);
-                    }
-
-                    // Add patient to secondary running total
-                    // key will exist after initialization above
-                    Float secTotal = secondaryData.get(pregnancyStatus);
-                    secondaryData.put(pregnancyStatus, secTotal + 1.0f);
-
-                    resultItem.setSecondaryData(secondaryData);
-                }
-                else if( filters.getSecondaryDataset().equals("age") ){
-
-                    // Get patient Age - as of encounter date (Triage Visit)
-                    Float age = (float) Math.floor(dateUtils.getAgeAsOfDateFloat(patient.getAge(), encounter.getDateOfTriageVisit()));
-
-                }
-            }
-
-            // put result item back into map
-            datasetBuilder.put(vitalValue, resultItem);
-        }
-
-        // save builder map as list in result set
-        resultSet.setDataset(new ArrayList<ResearchResultItem>(datasetBuilder.values()));
-        resultSet.setTotalPatients(encountersTotal);
-
-        // save AVERAGE
-        float average = totalForAvg / patientsTotal;
-        resultSet.setAverage(average);
-
-        return resultSet;
-    }
-
-    // do stuff specific to age request
-    private ResearchResultSetItem buildAgeResultSet(List<? extends IResearchEncounter> encounters, ResearchFilterItem filters){
-
-        // do nothing if encounters is empty
-        if( encounters.isEmpty() ) return new ResearchResultSetItem();
-
-        // used to calculate average
-        float totalForAvg = 0;
-        float encountersTotal = 0;
-        float patientsTotal = 0;
-
-        // Map to keep track of total patient for each age
-        Map<Float, ResearchResultItem> datasetBuilder = new LinkedHashMap<>();
-        // Keep track of patients, eliminate duplicate encounters
-        Set<Integer> patientIds = new HashSet<>();
-        // Object to send return
-        ResearchResultSetItem resultSet = new ResearchResultSetItem();
-        resultSet.setDataType("age");
-        resultSet.setUnitOfMeasurement("years");
-
-
-        // Loop through encounters, get data and build stats
-        for (IResearchEncounter encounter : encounters) {
-
-            IPatient patient = encounter.getPatient();
-
-            // Get patient Age - as of encounter date (Triage Visit)
-            Float age = (float) Math.floor(dateUtils.getAgeAsOfDateFloat(patient.getAge(), encounter.getDateOfTriageVisit()));
-
-            // skip encounter if age is out of range
-            if( age < filters.getFilterRangeStart() || age > filters.getFilterRangeEnd() ) continue;
-
-            encountersTotal++;
-
-            // If patient age has already been counted, don't count again
-            if( patientIds.contains(patient.getId()) ) continue;
-            patientIds.add(patient.getId());
-
-            // increment total to calculate average
-            totalForAvg += age;
-            patientsTotal++;
-
-            // set RANGE LOW and HIGH if needed
-            if (age > resultSet.getDataRangeHigh()) {
-
-                resultSet.setDataRangeHigh(age);
-            }
-            if (age < resultSet.getDataRangeLow()) {
-
-                resultSet.setDataRangeLow(age);
-            }
-
-            // total patients for each value in map
-            ResearchResultItem resultItem;
-            if (datasetBuilder.containsKey(age)) {
-
-                resultItem = datasetBuilder.get(age);
-
-            } else {
-
-                resultItem = new ResearchResultItem();
-                resultItem.setPrimaryName(Float.toString(age));
-            }
-            // increment total by 1
-            float currentValue = resultItem.getPrimaryValue();
-
-            resultItem.setPrimaryValue(currentValue + 1);
-
-            // @TODO - get secondary data
-            if (filters.getSecondaryDataset() != null) {
-                if (filters.getSecondaryDataset().equals("gender")) {
-
-                    // Set valuemap if not already
-                    if (resultSet.getSecondaryValueMap() == null) {
-
-                        Map<Float, String> secondaryResultMap = new HashMap<>();
-                        secondaryResultMap.put(0.0f, "Male");
-                        secondaryResultMap.put(1.0f, "Female");
-                        secondaryResultMap.put(2.0f, "N/A");
-
-                        resultSet.setSecondaryValueMap(secondaryResultMap);
-                    }
-
-                    String gender = "2.0";
-                    if (patient.getSex() == null) {
-                        gender = "2.0";
-                    } else if (patient.getSex().matches("(?i:Male)")) {
-                        gender = "0.0";
-                    } else if (patient.getSex().matches("(?i:Female)")) {
-                        gender = "1.0";
-                    }
-
-                    Map<String, Float> secondaryData = resultItem.getSecondaryData();
-                    // Initialize secondary data
-                    if (secondaryData == null) {
-
-                        secondaryData = new HashMap<String, Float>();
-
-                        // Make sure all keys exist
-                        secondaryData.put("0.0", 0.0f);
-                        secondaryData.put("1.0", 0.0f);
-                        secondaryData.put("2.0", 0.0f);
-                    }
-
-                    // Add patient to secondary running total
-                    // key will exist after initialization above
-                    Float secTotal = secondaryData.get(gender);
-                    secondaryData.put(gender, secTotal + 1.0f);
-
-                    resultItem.setSecondaryData(secondaryData);
-
-                } else if (filters.getSecondaryDataset().equals("pregnancyStatus")) {
-
-                    // Set valuemap if not already
-                    if (resultSet.getSecondaryValueMap() == null) {
-
-                        Map<Float, String> secondaryResultMap = new HashMap<>();
-                        secondaryResultMap.put(0.0f, "No");
-                        secondaryResultMap.put(1.0f, "Yes");
-
-                        resultSet.setSecondaryValueMap(secondaryResultMap);
-                    }
-
-                    Integer wksPregnant = getWeeksPregnant( encounter );
-
-                    String pregnancyStatus = "0.0";
-                    if (wksPregnant > 0) {
-                        pregnancyStatus = "1.0";
-                    }
-
-                    Map<String, Float> secondaryData = resultItem.getSecondaryData();
-                    // Initialize secondary data
-                    if (secondaryData == null) {
-
-                        secondaryData = new HashMap<String, Float>();
-
-                        // Make sure all keys exist
-                        secondaryData.put("0.0", 0.0f);
-                        secondaryData.put("1.0", 0.0f);
-                    }
-
-                    // Add patient to secondary running total
-                    // key will exist after initialization above
-                    Float secTotal = secondaryData.get(pregnancyStatus);
-                    secondaryData.put(pregnancyStatus, secTotal + 1.0f);
-
-                    resultItem.setSecondaryData(secondaryData);
-                }
-            }
-
-            // put result item back into map
-            datasetBuilder.put(age, resultItem);
-
-        }
-
-        // save builder map as list in result set
-        resultSet.setDataset(new ArrayList<ResearchResultItem>(datasetBuilder.values()));
-        resultSet.setTotalPatients(patientsTotal);
-        resultSet.setTotalEncounters(encountersTotal);
-
-
-        // save average
-        float average = totalForAvg / patientsTotal;
-        resultSet.setAverage(average);
-
-        return resultSet;
-    }
-
-    // do stuff specific to pregnancy requests
-    private ResearchResultSetItem buildPregnancyResultSet(List<? extends IResearchEncounter> encounters, ResearchFilterItem filters){
-
-        // do nothing if encounters is empty
-        if( encounters.isEmpty() ) return new ResearchResultSetItem();
-
-        float totalForAvg = 0.0f;
-        float encountersTotal = 0;
-        float patientsTotal = 0;
-
-        // Map to keep track of total patient for each age
-        Map<Float, ResearchResultItem> datasetBuilder = new LinkedHashMap<>();
-        // Keep track of patients, eliminate duplicate encounters
-        Set<Integer> patientIds = new HashSet<>();
-        // Object to send return
-        ResearchResultSetItem resultSet = new ResearchResultSetItem();
-        resultSet.setDataType(filters.getPrimaryDataset());
-
-        // Set measurement unit for Weeks Pregnant
-        if( filters.getPrimaryDataset().equals("pregnancyTime")) {
-            resultSet.setUnitOfMeasurement("weeks");
-        }
-
-        // Loop through encounters, get data and build stats
-        for (IResearchEncounter encounter : encounters) {
-
-            IPatient patient = encounter.getPatient();
-
-            encountersTotal++;
-
-            // If patient age has already been counted, don't count again
-            if( patientIds.contains(patient.getId()) ) continue;
-            patientIds.add(patient.getId());
-
-            if( filters.getPrimaryDataset().equals("pregnancyStatus")) {
-
-                // increment total encounters
-                patientsTotal++;
-
-                Map<Float, String> resultMap = new HashMap<>();
-                resultMap.put(0.0f, "No");
-                resultMap.put(1.0f, "Yes");
-                resultSet.setPrimaryValueMap(resultMap);
-
-                Integer wksPregnant = getWeeksPregnant( encounter );
-                float pregnancyStatus = 0.0f;
-                if (wksPregnant > 0.0f) {
-                    pregnancyStatus = 1.0f;
-                }
-
-                // total patients for each value in map
-                ResearchResultItem resultItem;
-                if (datasetBuilder.containsKey(pregnancyStatus)) {
-
-                    resultItem = datasetBuilder.get(pregnancyStatus);
-
-                } else {
-
-                    resultItem = new ResearchResultItem();
-                    resultItem.setPrimaryName(Float.toString(pregnancyStatus));
-                }
-                // increment total by 1
-                float currentValue = resultItem.getPrimaryValue();
-                resultItem.setPrimaryValue(currentValue + 1);
-
-                // put result item back into map
-                datasetBuilder.put(pregnancyStatus, resultItem);
-            }
-            else if( filters.getPrimaryDataset().equals("pregnancyTime")){
-
-                Integer wksPregnant = getWeeksPregnant( encounter );
-
-                // only count patients who are actually pregnant
-                if( wksPregnant == 0 ) continue;
-
-                //if( wksPregnant < filters.getFilterRangeStart() || wksPregnant > filters.getFilterRangeEnd() ) continue;
-
-                // set RANGE LOW and HIGH if needed
-                if (wksPregnant > resultSet.getDataRangeHigh()) {
-
-                    resultSet.setDataRangeHigh(wksPregnant);
+                    // skip items with replacement Id
+                    if( prescription.getPatientPrescriptionReplacements() != null && prescription.getPatientPrescriptionReplacements().size() > 0 ) continue;
                 }
-                if (wksPregnant < resultSet.getDataRangeLow()) {
+                else if( prescription.getDateDispensed() == null ){
 
-                    resultSet.setDataRangeLow(wksPregnant);
+                    // only count medications actually dispensed
+                    continue;
                 }
 
-                // increment total encounters
-                patientsTotal++;
-                totalForAvg += wksPregnant;
-
-                // total patients for each value in map
-                ResearchResultItem resultItem;
-                if (datasetBuilder.containsKey((float)wksPregnant)) {
+                int row = columns.findRow(prescription.getPatientEncounter().getId());
+                if( row >= 0 ){
 
-                    resultItem = datasetBuilder.get((float)wksPregnant);
-
-                } else {
-
-                    resultItem = new ResearchResultItem();
-                    resultItem.setPrimaryName(Float.toString(wksPregnant));
+                    columns.addMedication(row, prescription.getMedication().getId(), prescription.getMedication().getName());
                 }
-                // increment total by 1
-                float currentValue = resultItem.getPrimaryValue();
-                resultItem.setPrimaryValue(currentValue + 1);
-
-                // put result item back into map
-                datasetBuilder.put((float)wksPregnant, resultItem);
             }
-
         }
 
-        // save builder map as list in result set
-        resultSet.setDataset(new ArrayList<>(datasetBuilder.values()));
-        resultSet.setTotalPatients(patientsTotal);
-        resultSet.setTotalEncounters(encountersTotal);
-
-        // save average
-        if( totalForAvg > 0.0f ) {
-            float average = totalForAvg / patientsTotal;
-            resultSet.setAverage(average);
-        }
-
-        return resultSet;
+        columns.finishMedications();
     }
 
-    // do stuff specific to gender requests
-    private ResearchResultSetItem buildGenderResultSet(List<? extends IResearchEncounter> encounters, ResearchFilterItem filters) {
-
-        // do nothing if encounters is empty
-        if( encounters.isEmpty() ) return new ResearchResultSetItem();
-
-        float encountersTotal = 0.0f;
-        float patientsTotal = 0.0f;
-
-        // Map to keep track of total patient for each age
-        Map<Float, ResearchResultItem> datasetBuilder = new LinkedHashMap<>();
-        // Keep track of patients, eliminate duplicate encounters
-        Set<Integer> patientIds = new HashSet<>();
-        // Object to send return
-        ResearchResultSetItem resultSet = new ResearchResultSetItem();
-        resultSet.setDataType(filters.getPrimaryDataset());
-
-        // Loop through encounters, get data and build stats
-        for (IResearchEncounter encounter : encounters) {
-
-            IPatient patient = encounter.getPatient();
-
-            encountersTotal++;
-
-            // If patient age has already been counted, don't count again
-            if( patientIds.contains(patient.getId()) ) continue;
-            patientIds.add(patient.getId());
-
-            // increment total encounters
-            patientsTotal++;
-
-            Map<Float, String> resultMap = new HashMap<>();
-            resultMap.put(0.0f, "Male");
-            resultMap.put(1.0f, "Female");
-            resultMap.put(2.0f, "N/A");
-            resultSet.setPrimaryValueMap(resultMap);
-
-            float gender = 2.0f;
-            // Do case in-sensitive comparison to be safe
-            //1 = female
-            //0 = male
-            //2 = no sex
-            if (patient.getSex() == null){
-                gender = 2.0f;
-            }else if (patient.getSex().matches("(?i:Male)")) {
-                gender = 0.0f;
-            } else if (patient.getSex().matches("(?i:Female)")) {
-                gender = 1.0f;
-            }
+    private List<List<Integer>> chunkEncounterIds(ResearchColumns columns){
 
-            // total patients for each value in map
-            ResearchResultItem resultItem;
-            if (datasetBuilder.containsKey(gender)) {
+        List<List<Integer>> chunks = new ArrayList<>();
+        for( int start = 0; start < columns.size(); start += COLUMN_CHUNK_SIZE ){
 
-                resultItem = datasetBuilder.get(gender);
+            int end = Math.min(start + COLUMN_CHUNK_SIZE, columns.size());
+            List<Integer> encounterIds = new ArrayList<>(end - start);
+            for( int row = start; row < end; row++ ){
 
-            } else {
-
-                resultItem = new ResearchResultItem();
-                resultItem.setPrimaryName(Float.toString(gender));
+                encounterIds.add(columns.getEncounterId(row));
             }
-            // increment total by 1
-            float currentValue = resultItem.getPrimaryValue();
-            resultItem.setPrimaryValue(currentValue + 1);
-
-            // put result item back into map
-            datasetBuilder.put(gender, resultItem);
+            chunks.add(encounterIds);
         }
 
-        // save builder map as list in result set
-        resultSet.setDataset(new ArrayList<>(datasetBuilder.values()));
-        resultSet.setTotalPatients(patientsTotal);
-        resultSet.setTotalEncounters(encountersTotal);
-
-        return resultSet;
-
+        return chunks;
     }
 
+    private Integer getWeeksPregnant( Map<Integer, Float> vitals, Integer weeksPregnantId ){
 
-    private Integer getWeeksPregnant( IResearchEncounter encounter ){
-
-        ExpressionList<Vital> wkPregnantQuery = QueryProvider.getVitalQuery().where().eq("name", "weeksPregnant");
-        IVital vital = vitalRepository.findOne(wkPregnantQuery);
-
-        ResearchEncounterVital wksPregnantVital = encounter.getEncounterVitals().get(vital.getId());
+        Float wksPregnant = vitals.get(weeksPregnantId);
 
-        if ( wksPregnantVital != null && wksPregnantVital.getVitalValue() > 0) {
-            return Math.round(wksPregnantVital.getVitalValue() );
+        if ( wksPregnant != null && wksPregnant > 0) {
+            return Math.round(wksPregnant);
         }
         else{
             return 0;
         }
     }
-}
\ No newline at end of file
+}
@@ -21,10 +21,13 @@ package femr.business.services.system;
 import com.avaje.ebean.Expr;
 import com.avaje.ebean.ExpressionList;
 import com.avaje.ebean.Query;
+import com.avaje.ebean.SqlRow;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import femr.business.helpers.QueryHelper;
 import femr.business.helpers.QueryProvider;
+import femr.business.helpers.referencedata.ReferenceDataCache;
+import femr.business.helpers.search.PatientNameIndex;
 import femr.business.services.core.IMissionTripService;
 import femr.business.services.core.ISearchService;
 import femr.common.IItemModelMapper;
@@ -34,12 +37,19 @@ import femr.data.daos.IRepository;
 import femr.data.models.core.*;
 import femr.data.models.mysql.*;
 import femr.util.calculations.LocaleUnitConverter;
+import femr.util.calculations.dateUtils;
 import femr.util.stringhelpers.StringUtils;
 import java.util.*;
 import java.util.stream.Collectors;
 
 public class SearchService implements ISearchService {
 
+    // held while the patient name index is loaded so only one request loads it
+    private static final Object PATIENT_INDEX_LOAD_LOCK = new Object();
+    // patients returned when a query string search falls back to fuzzy matching
+    private static final int FUZZY_SEARCH_PAGE_SIZE = 20;
+    private static final String FUZZY_CURSOR_PREFIX = "f";
+
     private final IRepository<IDiagnosis> diagnosisRepository;
     private final IRepository<IMissionTrip> missionTripRepository;
     private final IRepository<IPatient> patientRepository;
@@ -99,10 +109,12 @@ public class SearchService implements ISearchService {
 
             IPatientEncounter recentEncounter = patientEncounters.get(0);
             IPatient savedPatient = patientEncounters.get(0).getPatient();
-            Integer patientHeightFeet = QueryHelper.findPatientHeightFeet(patientEncounterVitalRepository, recentEncounter.getId());
-            Integer patientHeightInches = QueryHelper.findPatientHeightInches(patientEncounterVitalRepository, recentEncounter.getId());
-            Float patientWeight = QueryHelper.findPatientWeight(patientEncounterVitalRepository, recentEncounter.getId());
-            Integer weeksPregnant = QueryHelper.findWeeksPregnant(patientEncounterVitalRepository, recentEncounter.getId());
+            Map<String, Float> latestVitals = QueryHelper.findLatestVitals(patientEncounterVitalRepository, recentEncounter.getId(),
+                    "heightFeet", "heightInches", "weight", "weeksPregnant");
+            Integer patientHeightFeet = roundVital(latestVitals.get("heightFeet"));
+            Integer patientHeightInches = roundVital(latestVitals.get("heightInches"));
+            Float patientWeight = latestVitals.get("weight");
+            Integer weeksPregnant = roundVital(latestVitals.get("weeksPregnant"));
 
             String ageClassification = null;
             if (recentEncounter.getPatientAgeClassification() != null){
@@ -166,17 +178,15 @@ public class SearchService implements ISearchService {
             return response;
         }
 
-        ExpressionList<PatientEncounter> patientEncounterQuery = QueryProvider.getPatientEncounterQuery()
-                .where()
-                .eq("id", encounterId);
-
         try {
-            IPatientEncounter patientEncounter = patientEncounterRepository.findOne(patientEncounterQuery);
+            IPatientEncounter patientEncounter = patientEncounterRepository.findOne(PatientEncounter.class, "id", encounterId);
             IPatient patient = patientEncounter.getPatient();
-            Integer patientHeightFeet = QueryHelper.findPatientHeightFeet(patientEncounterVitalRepository, patientEncounter.getId());
-            Integer patientHeightInches = QueryHelper.findPatientHeightInches(patientEncounterVitalRepository, patientEncounter.getId());
-            Float patientWeight = QueryHelper.findPatientWeight(patientEncounterVitalRepository, patientEncounter.getId());
-            Integer weeksPregnant = QueryHelper.findWeeksPregnant(patientEncounterVitalRepository, patientEncounter.getId());
+            Map<String, Float> latestVitals = QueryHelper.findLatestVitals(patientEncounterVitalRepository, patientEncounter.getId(),
+                    "heightFeet", "heightInches", "weight", "weeksPregnant");
+            Integer patientHeightFeet = roundVital(latestVitals.get("heightFeet"));
+            Integer patientHeightInches = roundVital(latestVitals.get("heightInches"));
+            Float patientWeight = latestVitals.get("weight");
+            Integer weeksPregnant = roundVital(latestVitals.get("weeksPregnant"));
 
             String ageClassification = null;
             if (patientEncounter.getPatientAgeClassification() != null){
@@ -229,12 +239,8 @@ public class SearchService implements ISearchService {
             response.addError("", "invalid ID");
             return response;
         }
-        ExpressionList<PatientEncounter> patientEncounterQuery = QueryProvider.getPatientEncounterQuery()
-                .where()
-                .eq("id", encounterId);
-
         try {
-            IPatientEncounter patientEncounter = patientEncounterRepository.findOne(patientEncounterQuery);
+            IPatientEncounter patientEncounter = patientEncounterRepository.findOne(PatientEncounter.class, "id", encounterId);
             PatientEncounterItem patientEncounterItem = itemModelMapper.createPatientEncounterItem(patientEncounter);
             response.setResponseObject(patientEncounterItem);
         } catch (Exception ex) {
@@ -425,101 +431,259 @@ public class SearchService implements ISearchService {
         }
 
         String[] words = patientSearchQuery.trim().split(" ");
-        Integer id = null;
-        String firstName = null;
-        String lastName = null;
-        String firstOrLastName = null;
-        if (words.length == 0) {
-            //nothing was in the query
+        if (words.length > 2) {
+            //more words than a first and last name can only be matched loosely
+            return retrievePatientsFromFuzzyQuery(patientSearchQuery, 1, FUZZY_SEARCH_PAGE_SIZE);
+        }
+
+        //Build the Query
+        //TODO: filter these by the current country of the team
+        ExpressionList<Patient> patientExpressionList = createPatientSearchExpression(words);
+        if (patientExpressionList == null) {
             response.addError("", "query string empty");
             return response;
-        } else if (words.length == 1) {
-            //could be an ID or a name
-            try {
-                //see if it is a number
-                id = Integer.parseInt(words[0]);
-            } catch (NumberFormatException ex) {
-                //see if it it a string
-                firstOrLastName = words[0];
+        }
+        Query<Patient> query = patientExpressionList
+                .order()
+                .desc("id");
+
+        //Execute the query
+        try {
+            List<? extends IPatient> patients = patientRepository.find(query);
+            List<PatientItem> patientItems = new ArrayList<>();
+            for (IPatient patient : patients) {
+                patientItems.add(createSearchPatientItem(patient));
             }
-        } else if (words.length == 2) {
-            firstName = words[0];
-            lastName = words[1];
-        } else {
-            response.addError("", "too many words in query string");
+
+            //names are often spelled differently from visit to visit, so look for close names
+            if (patientItems.isEmpty() && !isPatientIdSearch(words)) {
+                return retrievePatientsFromFuzzyQuery(patientSearchQuery, 1, FUZZY_SEARCH_PAGE_SIZE);
+            }
+            response.setResponseObject(patientItems);
+        } catch (Exception ex) {
+            response.addError("", ex.getMessage());
+        }
+
+        return response;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceResponse<PatientSearchPageItem> retrievePatientPageFromQueryString(String patientSearchQuery, String cursor, int pageSize) {
+        ServiceResponse<PatientSearchPageItem> response = new ServiceResponse<>();
+        if (StringUtils.isNullOrWhiteSpace(patientSearchQuery) || pageSize < 1) {
+            response.addError("", "bad parameters");
             return response;
         }
 
+        String[] words = patientSearchQuery.trim().split(" ");
+        boolean fuzzy = words.length > 2 || (cursor != null && cursor.startsWith(FUZZY_CURSOR_PREFIX));
 
-        //Build the Query
-        //TODO: filter these by the current country of the team
-        Query<Patient> query = null;
-        if (id != null) {
+        try {
+            PatientSearchPageItem page = new PatientSearchPageItem();
+
+            if (!fuzzy) {
+
+                ExpressionList<Patient> patientExpressionList = createPatientSearchExpression(words);
+                if (patientExpressionList == null) {
+                    response.addError("", "query string empty");
+                    return response;
+                }
+
+                //the cursor is the id of the last patient on the previous page
+                Integer afterId = null;
+                if (cursor != null)
+                    afterId = Integer.parseInt(cursor);
+
+                if (afterId == null) {
+                    page.setEstimatedTotal(patientRepository.count(createPatientSearchExpression(words)));
+                } else {
+                    patientExpressionList.lt("id", afterId);
+                }
+                Query<Patient> query = patientExpressionList
+                        .order()
+                        .desc("id")
+                        .setMaxRows(pageSize + 1);
+                List<? extends IPatient> patients = patientRepository.find(query);
+
+                List<PatientItem> patientItems = new ArrayList<>();
+                for (int i = 0; i < patients.size() && i < pageSize; i++) {
+                    patientItems.add(createSearchPatientItem(patients.get(i)));
+                }
+                if (patients.size() > pageSize)
+                    page.setNextCursor(Integer.toString(patients.get(pageSize - 1).getId()));
+                page.setPatientItems(patientItems);
+
+                //names are often spelled differently from visit to visit, so look for close names
+                fuzzy = afterId == null && patientItems.isEmpty() && !isPatientIdSearch(words);
+            }
+
+            if (fuzzy) {
+
+                PatientNameIndex patientNameIndex = PatientNameIndex.get();
+                if (!patientNameIndex.isLoaded()) {
+                    loadPatientNameIndex(patientNameIndex);
+                }
+
+                //the cursor is the position of the next page in the ranking
+                int offset = 0;
+                if (cursor != null && cursor.startsWith(FUZZY_CURSOR_PREFIX))
+                    offset = Integer.parseInt(cursor.substring(FUZZY_CURSOR_PREFIX.length()));
+
+                //like the exact search above, the patient search looks at every country
+                List<Integer> patientIds = patientNameIndex.searchFuzzy(patientSearchQuery, null, offset, pageSize + 1);
+                boolean more = patientIds.size() > pageSize;
+                if (more)
+                    patientIds = patientIds.subList(0, pageSize);
+
+                page.setPatientItems(retrievePatientItemsInOrder(patientIds));
+                page.setNextCursor(more ? FUZZY_CURSOR_PREFIX + (offset + pageSize) : null);
+                page.setEstimatedTotal(more ? null : offset + patientIds.size());
+            }
+
+            response.setResponseObject(page);
+        } catch (NumberFormatException ex) {
+            response.addError("cursor", "bad cursor");
+        } catch (Exception ex) {
+            response.addError("", ex.getMessage());
+        }
+
+        return response;
+    }
+
+    /**
+     * Builds the where clause of an exact patient search: an id, a first and last name, or a word that could
+     * be either name. Deleted patients are left out.
+     *
+     * @param words the words of the query, at most two
+     * @return the where clause or null if there are no words
+     */
+    private ExpressionList<Patient> createPatientSearchExpression(String[] words) {
+
+        if (words.length == 0 || StringUtils.isNullOrWhiteSpace(words[0])) {
+            return null;
+        }
+
+        if (isPatientIdSearch(words)) {
             //if we have an id, that is all we need.
             //this is the most ideal scenario
-            query = QueryProvider.getPatientQuery()
+            return QueryProvider.getPatientQuery()
                     .where()
-                    .eq("id", id)
-                    .isNull("isDeleted")
-                    .order()
-                    .desc("id");
-
-        } else if (StringUtils.isNotNullOrWhiteSpace(firstName) && StringUtils.isNotNullOrWhiteSpace(lastName)) {
+                    .eq("id", Integer.parseInt(words[0]))
+                    .isNull("isDeleted");
+        } else if (words.length == 2) {
             //if we have a first and last name
             //this is the second most ideal scenario
-            query = QueryProvider.getPatientQuery()
+            return QueryProvider.getPatientQuery()
                     .where()
-                    .eq("first_name", firstName)
-                    .eq("last_name", lastName)
-                    .isNull("isDeleted")
-                    .order()
-                    .desc("id");
+                    .eq("first_name", words[0])
+                    .eq("last_name", words[1])
+                    .isNull("isDeleted");
+        }
 
-        } else if (StringUtils.isNotNullOrWhiteSpace(firstOrLastName)) {
-            //if we have a word that could either be a first name or a last name
-            query = QueryProvider.getPatientQuery()
-                    .where()
-                    .or(
-                            Expr.eq("first_name", firstOrLastName),
-                            Expr.eq("last_name", firstOrLastName))
-                    .isNull("isDeleted")
-                    .order()
-                    .desc("id");
+        //if we have a word that could either be a first name or a last name
+        return QueryProvider.getPatientQuery()
+                .where()
+                .or(
+                        Expr.eq("first_name", words[0]),
+                        Expr.eq("last_name", words[0]))
+                .isNull("isDeleted");
+    }
 
-        } else {
-            response.addError("", "too many parameters in query");
+    /**
+     * @return true if the query is a single number, which is searched for as a patient id
+     */
+    private static boolean isPatientIdSearch(String[] words) {
+
+        if (words.length != 1)
+            return false;
+        try {
+            Integer.parseInt(words[0]);
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Loads patients by id and keeps them in the order of the ids, skipping deleted patients.
+     */
+    private List<PatientItem> retrievePatientItemsInOrder(List<Integer> patientIds) {
+
+        List<PatientItem> patientItems = new ArrayList<>();
+        if (patientIds.isEmpty())
+            return patientItems;
+
+        ExpressionList<Patient> query = QueryProvider.getPatientQuery()
+                .where()
+                .in("id", patientIds)
+                .isNull("isDeleted");
+        Map<Integer, IPatient> patients = new HashMap<>();
+        for (IPatient patient : patientRepository.find(query)) {
+            patients.put(patient.getId(), patient);
+        }
+
+        for (Integer patientId : patientIds) {
+            IPatient patient = patients.get(patientId);
+            if (patient != null)
+                patientItems.add(createSearchPatientItem(patient));
+        }
+        return patientItems;
+    }
+
+    /**
+     * Creates the PatientItem shown in search results, without vitals.
+     */
+    private PatientItem createSearchPatientItem(IPatient patient) {
+
+        String pathToPhoto = null;
+        Integer photoId = null;
+        if (patient.getPhoto() != null) {
+            pathToPhoto = patient.getPhoto().getFilePath();
+            photoId = patient.getPhoto().getId();
+        }
+        return itemModelMapper.createPatientItem(
+                patient.getId(),
+                patient.getFirstName(),
+                patient.getLastName(),
+                patient.getCity(),
+                patient.getAddress(),
+                patient.getUserId(),
+                patient.getAge(),
+                patient.getSex(),
+                null,
+                null,
+                null,
+                null,
+                pathToPhoto,
+                photoId,
+                null
+        );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceResponse<List<PatientItem>> retrievePatientsFromFuzzyQuery(String patientSearchQuery, int pageNumber, int pageSize) {
+        ServiceResponse<List<PatientItem>> response = new ServiceResponse<>();
+        if (StringUtils.isNullOrWhiteSpace(patientSearchQuery) || pageNumber < 1 || pageSize < 1) {
+            response.addError("", "bad parameters");
+            return response;
         }
 
-        //Execute the query
         try {
-            List<? extends IPatient> patients = patientRepository.find(query);
-            List<PatientItem> patientItems = new ArrayList<>();
-            for (IPatient patient : patients) {
-                //patientItems.add(DomainMapper.createPatientItem(p, null, null, null, null));
-                String pathToPhoto = null;
-                Integer photoId = null;
-                if (patient.getPhoto() != null) {
-                    pathToPhoto = patient.getPhoto().getFilePath();
-                    photoId = patient.getPhoto().getId();
-                }
-                patientItems.add(itemModelMapper.createPatientItem(
-                        patient.getId(),
-                        patient.getFirstName(),
-                        patient.getLastName(),
-                        patient.getCity(),
-                        patient.getAddress(),
-                        patient.getUserId(),
-                        patient.getAge(),
-                        patient.getSex(),
-                        null,
-                        null,
-                        null,
-                        null,
-                        pathToPhoto,
-                        photoId,
-                        null
-                ));
+            PatientNameIndex patientNameIndex = PatientNameIndex.get();
+            if (!patientNameIndex.isLoaded()) {
+                loadPatientNameIndex(patientNameIndex);
             }
+
+            //the patient search looks at every country, only the typeahead is limited to the trip's
+            List<Integer> patientIds = patientNameIndex.searchFuzzy(patientSearchQuery, null, (pageNumber - 1) * pageSize, pageSize);
+
+            List<PatientItem> patientItems = retrievePatientItemsInOrder(patientIds);
             response.setResponseObject(patientItems);
         } catch (Exception ex) {
             response.addError("", ex.getMessage());
@@ -528,6 +692,46 @@ public class SearchService implements ISearchService {
         return response;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceResponse<List<EncounterNoteMatchItem>> retrieveEncountersFromNoteQuery(String noteSearchQuery, Integer tripId, Date from, Date to, int limit) {
+
+        ServiceResponse<List<EncounterNoteMatchItem>> response = new ServiceResponse<>();
+        List<EncounterNoteMatchItem> encounterNoteMatchItems = new ArrayList<>();
+
+        if (StringUtils.isNullOrWhiteSpace(noteSearchQuery) || limit <= 0) {
+            response.setResponseObject(encounterNoteMatchItems);
+            return response;
+        }
+
+        try {
+
+            List<SqlRow> rows = QueryHelper.findEncounterNoteMatches(noteSearchQuery.trim(), tripId, from, to, limit);
+            for (SqlRow row : rows) {
+
+                EncounterNoteMatchItem encounterNoteMatchItem = new EncounterNoteMatchItem();
+                encounterNoteMatchItem.setEncounterId(row.getInteger("encounter_id"));
+                encounterNoteMatchItem.setPatientId(row.getInteger("patient_id"));
+                encounterNoteMatchItem.setFirstName(row.getString("first_name"));
+                encounterNoteMatchItem.setLastName(row.getString("last_name"));
+                encounterNoteMatchItem.setDateOfTriageVisit(dateUtils.getFriendlyDate(row.getUtilDate("date_of_triage_visit")));
+                String tabFieldNames = row.getString("tab_field_names");
+                encounterNoteMatchItem.setTabFieldNames(tabFieldNames == null ? new ArrayList<>() : Arrays.asList(tabFieldNames.split(",")));
+                Double relevance = row.getDouble("relevance");
+                encounterNoteMatchItem.setRelevance(relevance == null ? 0f : relevance.floatValue());
+                encounterNoteMatchItems.add(encounterNoteMatchItem);
+            }
+            response.setResponseObject(encounterNoteMatchItems);
+        } catch (Exception ex) {
+
+            response.addError("exception", ex.getMessage());
+        }
+
+        return response;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -563,35 +767,13 @@ public class SearchService implements ISearchService {
         ServiceResponse<List<PatientItem>> response = new ServiceResponse<>();
 
         try {
-            ExpressionList<SystemSetting> expressionList = QueryProvider.getSystemSettingQuery()
-                    .where()
-                    .eq("name", "Country Filter");
-            ISystemSetting systemSetting = systemSettingRepository.findOne(expressionList);
-
-            IMissionTrip missionTrip = null;
             List<? extends IPatient> allPatients;
 
-            if (tripId != null) {
-                //If the trip ID is not null then we can try to figure out which trip
-                ExpressionList<MissionTrip> missionTripExpressionList = QueryProvider.getMissionTripQuery()
-                        .where()
-                        .eq("id", tripId);
-                missionTrip = missionTripRepository.findOne(missionTripExpressionList);
-
-                if (missionTrip == null)
-                    response.addError("", "a trip was not found with that tripId");
-
-            }
-
-            if (systemSetting != null &&
-                    systemSetting.isActive() &&
-                    missionTrip != null &&
-                    missionTrip.getMissionCity() != null &&
-                    missionTrip.getMissionCity().getMissionCountry() != null &&
-                    StringUtils.isNotNullOrWhiteSpace(missionTrip.getMissionCity().getMissionCountry().getName())) {
+            String country = retrieveCountryFilter(tripId, response);
+            if (country != null) {
                 allPatients = QueryHelper.findPatients(
                         patientRepository,
-                        missionTrip.getMissionCity().getMissionCountry().getName()
+                        country
                 );
             } else {
 
@@ -628,10 +810,10 @@ public class SearchService implements ISearchService {
                 );
 
                 if (patient.getPhoto() != null) {
-                    currPatient.setPathToPhoto("/photo/patient/" + currPatient.getId() + "?showDefault=false");
+                    currPatient.setPathToPhoto("/photo/patient/" + currPatient.getId() + "?showDefault=false&size=thumbnail");
                 } else {
                     // If no photo for patient, show default
-                    currPatient.setPathToPhoto("/photo/patient/" + currPatient.getId() + "?showDefault=true");
+                    currPatient.setPathToPhoto("/photo/patient/" + currPatient.getId() + "?showDefault=true&size=thumbnail");
                 }
 
                 patientItems.add(currPatient);
@@ -647,6 +829,122 @@ public class SearchService implements ISearchService {
         return response;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceResponse<List<PatientItem>> retrievePatientsForTypeahead(Integer tripId, String query, int limit) {
+        ServiceResponse<List<PatientItem>> response = new ServiceResponse<>();
+
+        try {
+            PatientNameIndex patientNameIndex = PatientNameIndex.get();
+            if (!patientNameIndex.isLoaded()) {
+                loadPatientNameIndex(patientNameIndex);
+            }
+
+            String country = retrieveCountryFilter(tripId, response);
+
+            List<PatientItem> patientItems = new ArrayList<>();
+            for (PatientNameIndex.Entry patient : patientNameIndex.search(query, country, limit)) {
+
+                // only what the typeahead shows is indexed, which is less than the item mapper requires
+                PatientItem currPatient = new PatientItem();
+                currPatient.setId(patient.getId());
+                currPatient.setFirstName(patient.getFirstName());
+                currPatient.setLastName(patient.getLastName());
+                if (patient.getBirth() != null) {
+                    currPatient.setAge(dateUtils.getAge(patient.getBirth()));
+                    currPatient.setBirth(patient.getBirth());
+                }
+                currPatient.setPathToPhoto("/photo/patient/" + patient.getId() + "?showDefault=" + !patient.hasPhoto() + "&size=thumbnail");
+
+                patientItems.add(currPatient);
+            }
+
+            response.setResponseObject(patientItems);
+        } catch (Exception ex) {
+            response.addError("exception", ex.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * Finds the country patient searches are limited to when the country filter is turned on.
+     *
+     * @param tripId id of the current trip, may be null
+     * @param response gets an error if the trip doesn't exist
+     * @return name of the trip's country, or null if patients should not be filtered by country
+     */
+    private String retrieveCountryFilter(Integer tripId, ServiceResponse<?> response) {
+
+        ISystemSetting systemSetting = systemSettingRepository.findOne(SystemSetting.class, "name", "Country Filter");
+
+        IMissionTrip missionTrip = null;
+        if (tripId != null) {
+            //If the trip ID is not null then we can try to figure out which trip
+            missionTrip = missionTripRepository.findOne(MissionTrip.class, "id", tripId);
+
+            if (missionTrip == null)
+                response.addError("", "a trip was not found with that tripId");
+
+        }
+
+        if (systemSetting != null &&
+                systemSetting.isActive() &&
+                missionTrip != null &&
+                missionTrip.getMissionCity() != null &&
+                missionTrip.getMissionCity().getMissionCountry() != null &&
+                StringUtils.isNotNullOrWhiteSpace(missionTrip.getMissionCity().getMissionCountry().getName())) {
+            return missionTrip.getMissionCity().getMissionCountry().getName();
+        }
+        return null;
+    }
+
+    /**
+     * Reads every patient that isn't deleted, and the countries they were seen in, into the index.
+     */
+    private void loadPatientNameIndex(PatientNameIndex patientNameIndex) {
+
+        synchronized (PATIENT_INDEX_LOAD_LOCK) {
+
+            if (!patientNameIndex.startLoading()) {
+                return;
+            }
+
+            boolean successful = false;
+            try {
+                Query<Patient> patientQuery = QueryProvider.getPatientQuery()
+                        .select("id, firstName, lastName, age, photo");
+                patientQuery.where().isNull("isDeleted");
+                patientRepository.findEach(patientQuery, patient -> patientNameIndex.load(
+                        new PatientNameIndex.Entry(
+                                patient.getId(),
+                                patient.getFirstName(),
+                                patient.getLastName(),
+                                patient.getAge(),
+                                patient.getPhoto() != null,
+                                Collections.emptyList())
+                ));
+
+                Query<PatientEncounter> encounterQuery = QueryProvider.getPatientEncounterQuery()
+                        .select("id")
+                        .fetch("patient", "id")
+                        .fetch("missionTrip", "id")
+                        .fetch("missionTrip.missionCity", "id")
+                        .fetch("missionTrip.missionCity.missionCountry", "name");
+                encounterQuery.where().isNotNull("missionTrip");
+                patientEncounterRepository.findEach(encounterQuery, encounter -> patientNameIndex.addCountry(
+                        encounter.getPatient().getId(),
+                        encounter.getMissionTrip().getMissionCity().getMissionCountry().getName()
+                ));
+
+                successful = true;
+            } finally {
+                patientNameIndex.finishLoading(successful);
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -656,15 +954,22 @@ public class SearchService implements ISearchService {
         ServiceResponse<List<String>> response = new ServiceResponse<>();
         try {
 
-            List<? extends IDiagnosis> allDiagnoses = diagnosisRepository.findAll(Diagnosis.class);
-            List<String> diagnoses = new ArrayList<>();
+            ReferenceDataCache referenceDataCache = ReferenceDataCache.get();
+            List<String> diagnoses = referenceDataCache.find(ReferenceDataCache.DIAGNOSES);
+            if (diagnoses == null) {
+
+                long generation = referenceDataCache.getGeneration(ReferenceDataCache.DIAGNOSES);
+                List<? extends IDiagnosis> allDiagnoses = diagnosisRepository.findAll(Diagnosis.class);
+                diagnoses = new ArrayList<>();
 
-            for (IDiagnosis d : allDiagnoses) {
-                if (StringUtils.isNotNullOrWhiteSpace(d.getName()))
-                    diagnoses.add(d.getName());
+                for (IDiagnosis d : allDiagnoses) {
+                    if (StringUtils.isNotNullOrWhiteSpace(d.getName()))
+                        diagnoses.add(d.getName());
+                }
+                referenceDataCache.put(ReferenceDataCache.DIAGNOSES, diagnoses, generation);
             }
 
-            response.setResponseObject(diagnoses);
+            response.setResponseObject(new ArrayList<>(diagnoses));
 
         } catch (Exception ex) {
             response.addError("", ex.getMessage());
@@ -679,13 +984,22 @@ public class SearchService implements ISearchService {
      * @return
      */
     private boolean isMetric() {
-        ExpressionList<SystemSetting> query = QueryProvider.getSystemSettingQuery()
-                .where()
-                .eq("name", "Metric System Option");
-        ISystemSetting isMetric = systemSettingRepository.findOne(query);
+        ISystemSetting isMetric = systemSettingRepository.findOne(SystemSetting.class, "name", "Metric System Option");
         return isMetric.isActive();
     }
 
+    /**
+     * Rounds a vital that is shown as a whole number (height, weeks pregnant)
+     *
+     * @param value the vital value, may be null
+     * @return the rounded value or null if the vital was not recorded
+     */
+    private static Integer roundVital(Float value) {
+        if (value == null)
+            return null;
+        return Math.round(value);
+    }
+
     /** AJ Saclayan
      * {@inheritDoc}
      */
@@ -742,6 +1056,7 @@ public class SearchService implements ISearchService {
 
     /**
      * AJ Saclayan
+     * Cities are kept in the ReferenceDataCache until a city is added.
      * @return
      */
     @Override
@@ -750,32 +1065,31 @@ public class SearchService implements ISearchService {
 
         try {
 
-            List<? extends IMissionCity> allCities;
+            ReferenceDataCache referenceDataCache = ReferenceDataCache.get();
+            List<CityItem> cachedCityItems = referenceDataCache.find(ReferenceDataCache.CITIES);
+            if (cachedCityItems == null) {
 
-            //Make sure that none of the values we will be checking are null.
-            //If they are, just get all of the possible patients.
+                long generation = referenceDataCache.getGeneration(ReferenceDataCache.CITIES);
+                List<? extends IMissionCity> allCities = QueryHelper.findCities(cityRepository);
 
-//                allPatients = QueryHelper.findPatients(patientRepository, missionTrip.getMissionCity().getMissionCountry().getName());
-//            }else{
+                cachedCityItems = new ArrayList<>();
+                for (IMissionCity city : allCities) {
 
-                allCities = QueryHelper.findCities(cityRepository);
-//            }
+                    cachedCityItems.add(itemModelMapper.createCityItem(
+                            city.getName(),
+                            city.getMissionCountry().getName()
+                    ));
+                }
+                referenceDataCache.put(ReferenceDataCache.CITIES, cachedCityItems, generation);
+            }
 
+            //the cached items are shared, hand out copies
             List<CityItem> cityItems = new ArrayList<>();
+            for (CityItem cityItem : cachedCityItems) {
 
-            for (IMissionCity city : allCities) {
-
-                CityItem currCity = itemModelMapper.createCityItem(
-                        city.getName(),
-                        city.getMissionCountry().getName()
-                );
-
-
-                cityItems.add(currCity);
-
+                cityItems.add(itemModelMapper.createCityItem(cityItem.getCityName(), cityItem.getCountryName()));
             }
 
-
             response.setResponseObject(cityItems);
 
         } catch (Exception ex) {
@@ -23,15 +23,18 @@ import com.avaje.ebean.Query;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import femr.business.helpers.QueryProvider;
+import femr.business.helpers.research.ResearchResultCache;
 import femr.business.services.core.IVitalService;
 import femr.common.IItemModelMapper;
 import femr.common.dtos.ServiceResponse;
 import femr.common.models.VitalItem;
 import femr.data.IDataModelMapper;
 import femr.data.daos.IRepository;
+import femr.data.models.core.IPatientEncounter;
 import femr.data.models.core.IPatientEncounterVital;
 import femr.data.models.core.ISystemSetting;
 import femr.data.models.core.IVital;
+import femr.data.models.mysql.PatientEncounter;
 import femr.data.models.mysql.PatientEncounterVital;
 import femr.data.models.mysql.SystemSetting;
 import femr.data.models.mysql.Vital;
@@ -50,19 +53,22 @@ public class VitalService implements IVitalService {
     private final IDataModelMapper dataModelMapper;
     private final IRepository<ISystemSetting> systemSettingRepository;
     private final IItemModelMapper itemModelMapper;
+    private final IRepository<IPatientEncounter> patientEncounterRepository;
 
     @Inject
     public VitalService(IRepository<IPatientEncounterVital> patientEncounterVitalRepository,
                         IRepository<IVital> vitalRepository,
                         IDataModelMapper dataModelMapper,
                         IRepository<ISystemSetting> settingsReposity,
-                        @Named("identified") IItemModelMapper itemModelMapper) {
+                        @Named("identified") IItemModelMapper itemModelMapper,
+                        IRepository<IPatientEncounter> patientEncounterRepository) {
 
         this.patientEncounterVitalRepository = patientEncounterVitalRepository;
         this.vitalRepository = vitalRepository;
         this.dataModelMapper = dataModelMapper;
         this.systemSettingRepository = settingsReposity;
         this.itemModelMapper = itemModelMapper;
+        this.patientEncounterRepository = patientEncounterRepository;
     }
 
     /**
@@ -97,6 +103,7 @@ public class VitalService implements IVitalService {
         try {
             List<VitalItem> vitalItems = new ArrayList<>();
             List<? extends IPatientEncounterVital> newPatientEncounterVitals = patientEncounterVitalRepository.createAll(patientEncounterVitals);
+            invalidateResearchGraphs(encounterId);
             for (IPatientEncounterVital pev : newPatientEncounterVitals) {
                 if (pev.getVital() != null)
                     vitalItems.add(itemModelMapper.createVitalItem(pev.getVital().getName(), pev.getVitalValue()));
@@ -165,6 +172,7 @@ public class VitalService implements IVitalService {
             }
 
             List<? extends IPatientEncounterVital> newPatientEncounterVitals = patientEncounterVitalRepository.createAll(patientEncounterVitals);
+            invalidateResearchGraphs(encounterId);
             List<VitalItem> vitalItems = new ArrayList<>();
 
             for (IPatientEncounterVital pev : patientEncounterVitals) {
@@ -220,10 +228,19 @@ public class VitalService implements IVitalService {
      * @return
      */
     private boolean isMetric() {
-        ExpressionList<SystemSetting> query = QueryProvider.getSystemSettingQuery()
-                .where()
-                .eq("name", "Metric System Option");
-        ISystemSetting isMetric = systemSettingRepository.findOne(query);
+        ISystemSetting isMetric = systemSettingRepository.findOne(SystemSetting.class, "name", "Metric System Option");
         return isMetric.isActive();
     }
+
+    /**
+     * Drops the cached research graphs that include the encounter
+     */
+    private void invalidateResearchGraphs(int encounterId) {
+        ExpressionList<PatientEncounter> query = QueryProvider.getPatientEncounterQuery()
+                .where()
+                .eq("id", encounterId);
+        IPatientEncounter patientEncounter = patientEncounterRepository.findOne(query);
+        if (patientEncounter != null)
+            ResearchResultCache.get().invalidate(patientEncounter.getDateOfTriageVisit());
+    }
 }
@@ -0,0 +1,93 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.common.models;
+
+import java.util.List;
+
+/**
+ * An encounter whose notes matched a full-text search
+ */
+public class EncounterNoteMatchItem {
+
+    private int encounterId;
+    private int patientId;
+    private String firstName;
+    private String lastName;
+    private String dateOfTriageVisit;
+    // names of the tab fields that matched, e.g. "assessment"
+    private List<String> tabFieldNames;
+    // how well the best matching field matched, higher is better
+    private float relevance;
+
+    public int getEncounterId() {
+        return encounterId;
+    }
+
+    public void setEncounterId(int encounterId) {
+        this.encounterId = encounterId;
+    }
+
+    public int getPatientId() {
+        return patientId;
+    }
+
+    public void setPatientId(int patientId) {
+        this.patientId = patientId;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public void setFirstName(String firstName) {
+        this.firstName = firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public void setLastName(String lastName) {
+        this.lastName = lastName;
+    }
+
+    public String getDateOfTriageVisit() {
+        return dateOfTriageVisit;
+    }
+
+    public void setDateOfTriageVisit(String dateOfTriageVisit) {
+        this.dateOfTriageVisit = dateOfTriageVisit;
+    }
+
+    public List<String> getTabFieldNames() {
+        return tabFieldNames;
+    }
+
+    public void setTabFieldNames(List<String> tabFieldNames) {
+        this.tabFieldNames = tabFieldNames;
+    }
+
+    public float getRelevance() {
+        return relevance;
+    }
+
+    public void setRelevance(float relevance) {
+        this.relevance = relevance;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.common.models;
+
+import java.util.List;
+
+/**
+ * One page of a patient search
+ */
+public class PatientSearchPageItem {
+
+    private List<PatientItem> patientItems;
+    // pass back to get the next page, null on the last page
+    private String nextCursor;
+    // roughly how many patients match, null when it is only known on the first page
+    private Integer estimatedTotal;
+
+    public List<PatientItem> getPatientItems() {
+        return patientItems;
+    }
+
+    public void setPatientItems(List<PatientItem> patientItems) {
+        this.patientItems = patientItems;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public Integer getEstimatedTotal() {
+        return estimatedTotal;
+    }
+
+    public void setEstimatedTotal(Integer estimatedTotal) {
+        this.estimatedTotal = estimatedTotal;
+    }
+}
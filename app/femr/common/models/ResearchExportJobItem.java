@@ -0,0 +1,72 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.common.models;
+
+/**
+ * Progress of a research CSV export running in the background
+ */
+public class ResearchExportJobItem {
+
+    private String jobId;
+    private String status;
+    private int processedEncounters;
+    // -1 until the export has counted the encounters it will read
+    private int totalEncounters;
+    private String error;
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public int getProcessedEncounters() {
+        return processedEncounters;
+    }
+
+    public void setProcessedEncounters(int processedEncounters) {
+        this.processedEncounters = processedEncounters;
+    }
+
+    public int getTotalEncounters() {
+        return totalEncounters;
+    }
+
+    public void setTotalEncounters(int totalEncounters) {
+        this.totalEncounters = totalEncounters;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -51,6 +51,7 @@ public class DataModelMapper implements IDataModelMapper{
     private final Provider<IMissionTrip> missionTripProvider;
     private final Provider<IPatient> patientProvider;
     private final Provider<IPatientAgeClassification> patientAgeClassificationProvider;
+    private final Provider<IPatientCountry> patientCountryProvider;
     private final Provider<IPatientEncounterPhoto> patientEncounterPhotoProvider;
     private final Provider<IPatientEncounter> patientEncounterProvider;
     private final Provider<IEncounterService> patientEncounterTabField;
@@ -84,6 +85,7 @@ public class DataModelMapper implements IDataModelMapper{
                            Provider<IMissionTrip> missionTripProvider,
                            Provider<IPatient> patientProvider,
                            Provider<IPatientAgeClassification> patientAgeClassificationProvider,
+                           Provider<IPatientCountry> patientCountryProvider,
                            Provider<IPatientEncounterPhoto> patientEncounterPhotoProvider,
                            Provider<IPatientEncounter> patientEncounterProvider,
                            Provider<IEncounterService> patientEncounterTabField,
@@ -118,6 +120,7 @@ public class DataModelMapper implements IDataModelMapper{
         this.patientProvider = patientProvider;
         this.patientEncounterTabField = patientEncounterTabField;
         this.patientAgeClassificationProvider = patientAgeClassificationProvider;
+        this.patientCountryProvider = patientCountryProvider;
         this.patientEncounterPhotoProvider = patientEncounterPhotoProvider;
         this.patientEncounterTabFieldProvider = patientEncounterTabFieldProvider;
         this.patientEncounterVitalProvider = patientEncounterVitalProvider;
@@ -404,6 +407,25 @@ public class DataModelMapper implements IDataModelMapper{
         return patientEncounter;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IPatientCountry createPatientCountry(int patientId, int missionCountryId) {
+
+        if (patientId < 1 || missionCountryId < 1) {
+
+            return null;
+        }
+
+        IPatientCountry patientCountry = patientCountryProvider.get();
+
+        patientCountry.setPatientId(patientId);
+        patientCountry.setMissionCountryId(missionCountryId);
+
+        return patientCountry;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -172,6 +172,15 @@ public interface IDataModelMapper {
      */
     IPatientEncounterTabField createPatientEncounterTabField(int tabFieldId, int userId, String value, int encounterId, DateTime dateTaken, Integer chiefComplaintId);
 
+    /**
+     * Generate and provide an implementation of IPatientCountry
+     *
+     * @param patientId        id of the patient, not null
+     * @param missionCountryId id of the country the patient was seen in, not null
+     * @return an implementation of IPatientCountry or null if processing fails
+     */
+    IPatientCountry createPatientCountry(int patientId, int missionCountryId);
+
     /**
      * Generate and provide an implementation of IPatientEncounterVital
      *
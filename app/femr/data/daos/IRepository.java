@@ -22,10 +22,13 @@ import com.avaje.ebean.ExpressionList;
 import com.avaje.ebean.Query;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface IRepository<T> {
     int count(Class<? extends T> clazz);
 
+    int count(ExpressionList<? extends T> query);
+
     void delete(T entity);
 
     void delete(List<? extends T> entities);
@@ -38,9 +41,22 @@ public interface IRepository<T> {
 
     T findOne(ExpressionList<? extends T> query);
 
+    /**
+     * Finds the entity of a type whose property equals a value, e.g. by id or by a unique name. Within a
+     * unit of work the same lookup only goes to the database once and returns the same instance, which is
+     * read-only. Use findOne(ExpressionList) for an entity that is going to be changed.
+     */
+    T findOne(Class<? extends T> clazz, String property, Object value);
+
     T update(T entity);
 
+    /**
+     * Finds every entity of a type. Within a unit of work the table is only read once and the entities are
+     * read-only, the list itself is the caller's own. Use find for entities that are going to be changed.
+     */
     List<? extends T> findAll(Class<? extends T> clazz);
 
     List<? extends T> find(Query<? extends T> query);
+
+    void findEach(Query<? extends T> query, Consumer<? super T> consumer);
 }
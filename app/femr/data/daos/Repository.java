@@ -21,8 +21,11 @@ package femr.data.daos;
 import com.avaje.ebean.Ebean;
 import com.avaje.ebean.ExpressionList;
 import com.avaje.ebean.Query;
+import com.avaje.ebean.QueryIterator;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class Repository<T> implements IRepository<T> {
 
@@ -31,30 +34,42 @@ public class Repository<T> implements IRepository<T> {
         return Ebean.find(clazz).findRowCount();
     }
 
+    @Override
+    public int count(ExpressionList<? extends T> query) {
+        return query.findRowCount();
+    }
+
     @Override
     public void delete(T entity){
+        UnitOfWork.clearCurrent();
         Ebean.delete(entity);
     }
 
     @Override
     public void delete(List<? extends T> entities){
+        UnitOfWork.clearCurrent();
         Ebean.delete(entities);
     }
 
     @Override
     public T create(T entity) {
+        UnitOfWork.clearCurrent();
         Ebean.save(entity);
         return entity;
     }
     @Override
     public List<? extends T> createAll(List<? extends T> entities){
+        UnitOfWork.clearCurrent();
         Ebean.save(entities);
         return entities;
     }
 
     @Override
     public List<? extends T> findAll(Class<? extends T> clazz) {
-        return Ebean.find(clazz).findList();
+        List<? extends T> entities = UnitOfWork.memoize(clazz.getName() + "#all",
+                () -> Ebean.find(clazz).setReadOnly(isShared()).findList());
+        //callers may sort or trim their list
+        return new ArrayList<>(entities);
     }
 
     @Override
@@ -67,14 +82,44 @@ public class Repository<T> implements IRepository<T> {
         return query.findList();
     }
 
+    /**
+     * Streams the results of a query through a cursor so only one bean is held in memory at a time.
+     */
+    @Override
+    public void findEach(Query<? extends T> query, Consumer<? super T> consumer) {
+        QueryIterator<? extends T> iterator = query.findIterate();
+        try {
+            while (iterator.hasNext()) {
+                consumer.accept(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
     @Override
     public T findOne(ExpressionList<? extends T> query) {
         T entity = query.findUnique();
         return entity;
     }
 
+    @Override
+    public T findOne(Class<? extends T> clazz, String property, Object value) {
+        return UnitOfWork.memoize(clazz.getName() + "#" + property + "=" + value,
+                () -> Ebean.find(clazz).setReadOnly(isShared()).where().eq(property, value).findUnique());
+    }
+
+    /**
+     * Memoized beans are handed to every caller in the unit of work, so they are loaded read-only and
+     * setting a property on one throws an IllegalStateException instead of changing what the others see.
+     */
+    private static boolean isShared() {
+        return UnitOfWork.current() != null;
+    }
+
     @Override
     public T update(T entity) {
+        UnitOfWork.clearCurrent();
         Ebean.save(entity);
         return entity;
     }
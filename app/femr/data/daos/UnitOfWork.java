@@ -0,0 +1,125 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.data.daos;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the lookups made through the repositories while one HTTP request is handled, so a render that
+ * asks several services for the same encounter, patient or setting only goes to the database once. Bound
+ * to the thread handling the request; work done on other threads (background jobs, research pools) runs
+ * outside of it. Any write through a repository forgets everything remembered so far.
+ */
+public final class UnitOfWork {
+
+    private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<>();
+
+    private final Map<String, Object> results = new HashMap<>();
+    private int depth;
+    private int queries;
+    private int savedQueries;
+
+    private UnitOfWork() {
+    }
+
+    /**
+     * Starts a unit of work on this thread, or joins the one that is already running. Every begin has to
+     * be matched by an end.
+     *
+     * @return the unit of work, not null
+     */
+    public static UnitOfWork begin() {
+
+        UnitOfWork unitOfWork = CURRENT.get();
+        if (unitOfWork == null) {
+            unitOfWork = new UnitOfWork();
+            CURRENT.set(unitOfWork);
+        }
+        unitOfWork.depth++;
+        return unitOfWork;
+    }
+
+    /**
+     * @return the unit of work running on this thread, null if there is none
+     */
+    public static UnitOfWork current() {
+
+        return CURRENT.get();
+    }
+
+    /**
+     * Runs a lookup, or returns what the same lookup returned earlier in the current unit of work. Without
+     * a unit of work the lookup always runs.
+     *
+     * @param key    identifies the lookup, two lookups with the same key must return the same rows
+     * @param lookup queries the database, may return null
+     * @return the result of the lookup
+     */
+    @SuppressWarnings("unchecked")
+    static <R> R memoize(String key, Supplier<R> lookup) {
+
+        UnitOfWork unitOfWork = CURRENT.get();
+        if (unitOfWork == null)
+            return lookup.get();
+
+        if (unitOfWork.results.containsKey(key)) {
+            unitOfWork.savedQueries++;
+            return (R) unitOfWork.results.get(key);
+        }
+        R result = lookup.get();
+        unitOfWork.queries++;
+        unitOfWork.results.put(key, result);
+        return result;
+    }
+
+    /**
+     * Forgets every lookup of the current unit of work, if there is one.
+     */
+    static void clearCurrent() {
+
+        UnitOfWork unitOfWork = CURRENT.get();
+        if (unitOfWork != null)
+            unitOfWork.results.clear();
+    }
+
+    /**
+     * Ends this unit of work once every begin has been matched.
+     */
+    public void end() {
+
+        if (--depth <= 0 && CURRENT.get() == this)
+            CURRENT.remove();
+    }
+
+    /**
+     * @return the number of remembered lookups that went to the database
+     */
+    public int getQueries() {
+        return queries;
+    }
+
+    /**
+     * @return the number of lookups answered without going to the database
+     */
+    public int getSavedQueries() {
+        return savedQueries;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.data.models.core;
+
+/**
+ * Records that a patient has had an encounter on a trip to a country, so searches limited to a
+ * country don't have to join through every encounter.
+ */
+public interface IPatientCountry {
+
+    int getId();
+
+    int getPatientId();
+
+    void setPatientId(int patientId);
+
+    int getMissionCountryId();
+
+    void setMissionCountryId(int missionCountryId);
+}
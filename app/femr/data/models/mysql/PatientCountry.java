@@ -0,0 +1,61 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.data.models.mysql;
+
+import femr.data.models.core.IPatientCountry;
+
+import javax.persistence.*;
+
+@Entity
+@Table(name = "patient_countries")
+public class PatientCountry implements IPatientCountry {
+
+    @Id
+    @Column(name = "id", unique = true, nullable = false)
+    private int id;
+    @Column(name = "patient_id", nullable = false)
+    private int patientId;
+    @Column(name = "mission_country_id", nullable = false)
+    private int missionCountryId;
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public int getPatientId() {
+        return patientId;
+    }
+
+    @Override
+    public void setPatientId(int patientId) {
+        this.patientId = patientId;
+    }
+
+    @Override
+    public int getMissionCountryId() {
+        return missionCountryId;
+    }
+
+    @Override
+    public void setMissionCountryId(int missionCountryId) {
+        this.missionCountryId = missionCountryId;
+    }
+}
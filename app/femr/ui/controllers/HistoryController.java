@@ -18,8 +18,10 @@
 */
 package femr.ui.controllers;
 
+import com.google.gson.Gson;
 import com.google.inject.Inject;
 import femr.ui.helpers.security.AllowedRoles;
+import femr.business.helpers.photo.PhotoDerivatives;
 import femr.business.services.core.*;
 import femr.common.dtos.CurrentUser;
 import femr.common.dtos.ServiceResponse;
@@ -47,6 +49,8 @@ import java.util.Map;
 @AllowedRoles({Roles.PHYSICIAN, Roles.PHARMACIST, Roles.NURSE})
 public class HistoryController extends Controller {
 
+    private static final int PATIENT_PAGE_SIZE = 20;
+
     private final Form<fieldValueViewModel> fieldValueViewModelForm = Form.form(fieldValueViewModel.class);
     private final IEncounterService encounterService;
     private final ISessionService sessionService;
@@ -85,13 +89,14 @@ public class HistoryController extends Controller {
 
         IndexPatientViewModelGet viewModel = new IndexPatientViewModelGet();
 
-        //how do we show more than one?
-        query = query.replace("-", " ");
-        ServiceResponse<List<PatientItem>> patientResponse = searchService.retrievePatientsFromQueryString(query);
+        //only the first page of matching patients is rendered, the page asks for more as needed
+        String patientSearchQuery = query.replace("-", " ");
+        ServiceResponse<PatientSearchPageItem> patientResponse = searchService.retrievePatientPageFromQueryString(patientSearchQuery, null, PATIENT_PAGE_SIZE);
         if (patientResponse.hasErrors()) {
             throw new RuntimeException();
         }
-        List<PatientItem> patientItems = patientResponse.getResponseObject();
+        PatientSearchPageItem patientPage = patientResponse.getResponseObject();
+        List<PatientItem> patientItems = patientPage.getPatientItems();
 
 
         if (patientItems == null || patientItems.size() < 1) {
@@ -101,9 +106,12 @@ public class HistoryController extends Controller {
 
         //too much logic - move patient photo finding up to the service layer
         for (PatientItem patientItem : patientItems)
-            patientItem.setPathToPhoto(routes.PhotoController.GetPatientPhoto(patientItem.getId(), true).toString());
+            patientItem.setPathToPhoto(routes.PhotoController.GetPatientPhoto(patientItem.getId(), true).toString() + "&size=" + PhotoDerivatives.THUMBNAIL);
         viewModel.setPatientItems(patientItems);
         viewModel.setPatientItem(patientItems.get(0));
+        viewModel.setQuery(query);
+        viewModel.setNextCursor(patientPage.getNextCursor());
+        viewModel.setEstimatedTotal(patientPage.getEstimatedTotal());
 
         ServiceResponse<List<PatientEncounterItem>> patientEncountersServiceResponse = searchService.retrievePatientEncounterItemsByPatientId(patientItems.get(0).getId());
         if (patientEncountersServiceResponse.hasErrors()) {
@@ -122,6 +130,28 @@ public class HistoryController extends Controller {
         return ok(indexPatient.render(currentUser, error, viewModel, patientEncounterItems));
     }
 
+    /**
+     * Get the next page of patients for the duplicate patient search results.
+     * Called via ajax
+     *
+     * @param query the same query string indexPatientGet was rendered with
+     * @return JSON PatientSearchPageItem, the cursor comes from the cursor parameter
+     */
+    public Result indexPatientPageGet(String query) {
+
+        String cursor = request().getQueryString("cursor");
+        ServiceResponse<PatientSearchPageItem> patientResponse = searchService.retrievePatientPageFromQueryString(query.replace("-", " "), cursor, PATIENT_PAGE_SIZE);
+        if (patientResponse.hasErrors()) {
+            return badRequest();
+        }
+
+        PatientSearchPageItem patientPage = patientResponse.getResponseObject();
+        for (PatientItem patientItem : patientPage.getPatientItems())
+            patientItem.setPathToPhoto(routes.PhotoController.GetPatientPhoto(patientItem.getId(), true).toString() + "&size=" + PhotoDerivatives.THUMBNAIL);
+
+        return ok(new Gson().toJson(patientPage));
+    }
+
     /**
      * Render the page for viewing an encounter.
      *
@@ -145,7 +175,7 @@ public class HistoryController extends Controller {
             throw new RuntimeException();
         }
         PatientItem patientItem = patientItemServiceResponse.getResponseObject();
-        patientItem.setPathToPhoto(routes.PhotoController.GetPatientPhoto(patientItem.getId(), true).toString());
+        patientItem.setPathToPhoto(routes.PhotoController.GetPatientPhoto(patientItem.getId(), true).toString() + "&size=" + PhotoDerivatives.THUMBNAIL);
         indexEncounterViewModel.setPatientItem(patientItem);
 
         ServiceResponse<PatientEncounterItem> patientEncounterItemServiceResponse = searchService.retrievePatientEncounterItemByEncounterId(encounterId);
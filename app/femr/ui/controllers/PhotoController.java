@@ -9,13 +9,22 @@ import femr.ui.helpers.security.AllowedRoles;
 import femr.ui.helpers.security.FEMRAuthenticated;
 import femr.util.stringhelpers.StringUtils;
 import play.mvc.*;
-import static play.mvc.Results.ok;
 
 import java.io.File;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 
 @Security.Authenticated(FEMRAuthenticated.class)
 @AllowedRoles({Roles.PHYSICIAN, Roles.PHARMACIST, Roles.NURSE})
-public class PhotoController {
+public class PhotoController extends Controller {
+
+    // the patient photo url stays the same when the photo is replaced, so browsers revalidate it every time
+    private static final String PATIENT_PHOTO_CACHE_CONTROL = "private, no-cache";
+    // an encounter photo file is never rewritten, a new photo gets a new id
+    private static final String ENCOUNTER_PHOTO_CACHE_CONTROL = "private, max-age=31536000";
 
     private IPhotoService photoService;
 
@@ -29,7 +38,7 @@ public class PhotoController {
      *
      * @param patientId   Patient Primary Key Value
      * @param showDefault If True, return default image when patient photo is not found, else return nothing
-     * @return
+     * @return the photo, or a smaller copy of it when the size parameter is "thumbnail" or "medium"
      */
     public Result GetPatientPhoto(Integer patientId, Boolean showDefault) {
         String pathToPhoto = "";
@@ -43,7 +52,7 @@ public class PhotoController {
                 pathToPhoto = pathToPhotoResponse.getResponseObject();
                 File photo = new File(pathToPhoto);
                 if (photo.canRead())
-                    return ok(photo).as("image/jpg");
+                    return photoResult(sizedPhoto(pathToPhoto), PATIENT_PHOTO_CACHE_CONTROL);
                 else{
                     //need to be able to tell the difference between Triage and Search
                     //if Triage, do not show default
@@ -59,14 +68,14 @@ public class PhotoController {
             pathToPhoto = ConfigFactory.load().getString("photos.defaultProfilePhoto");
         }
 
-        return ok(new File(pathToPhoto)).as("image/jpg");
+        return photoResult(new File(pathToPhoto), PATIENT_PHOTO_CACHE_CONTROL);
     }
 
     /**
      * Returns any image file from the Upload folder
      *
      * @param photoId id of the image
-     * @return
+     * @return the photo, or a smaller copy of it when the size parameter is "thumbnail" or "medium"
      */
     public Result GetPhoto(int photoId) {
         if (photoId > 0) {
@@ -74,9 +83,66 @@ public class PhotoController {
             if (pathToPhotoResponse.hasErrors()) {
                 throw new RuntimeException();
             }
-            return ok(new File(pathToPhotoResponse.getResponseObject())).as("image/jpg");
+            return photoResult(sizedPhoto(pathToPhotoResponse.getResponseObject()), ENCOUNTER_PHOTO_CACHE_CONTROL);
         }
         //No luck, return nothing
         return ok("");
     }
+
+    /**
+     * The copy of a photo in the size asked for with the size parameter, the photo itself without one.
+     */
+    private File sizedPhoto(String pathToPhoto) {
+
+        String size = request().getQueryString("size");
+        if (size == null)
+            return new File(pathToPhoto);
+        return new File(photoService.retrievePhotoDerivativePath(pathToPhoto, size).getResponseObject());
+    }
+
+    /**
+     * Streams a photo file with validators built from the file itself (its modification time and size),
+     * so a browser that sends them back gets a 304 without the file being read.
+     *
+     * @param photo        the photo file
+     * @param cacheControl Cache-Control header for the response
+     * @return the photo, 304 if the browser already has it, 404 if the file can't be read
+     */
+    private Result photoResult(File photo, String cacheControl) {
+
+        if (!photo.isFile() || !photo.canRead())
+            return notFound();
+
+        long lastModified = photo.lastModified();
+        String eTag = "\"" + Integer.toHexString(photo.getPath().hashCode()) + "-" + Long.toHexString(lastModified) + "-" + Long.toHexString(photo.length()) + "\"";
+        response().setHeader(CACHE_CONTROL, cacheControl);
+        response().setHeader(ETAG, eTag);
+        response().setHeader(LAST_MODIFIED, DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneOffset.UTC)));
+
+        String ifNoneMatch = request().getHeader(IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/"))
+                    candidate = candidate.substring(2);
+                if (candidate.equals(eTag) || candidate.equals("*"))
+                    return status(NOT_MODIFIED);
+            }
+            return ok(photo).as("image/jpg");
+        }
+
+        //only used when there is no If-None-Match, HTTP dates are in whole seconds
+        String ifModifiedSince = request().getHeader(IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                if (lastModified / 1000 <= since / 1000)
+                    return status(NOT_MODIFIED);
+            } catch (DateTimeParseException ex) {
+                //ignore a date that can't be read and send the photo
+            }
+        }
+
+        return ok(photo).as("image/jpg");
+    }
 }
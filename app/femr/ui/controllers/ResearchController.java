@@ -18,8 +18,10 @@
 */
 package femr.ui.controllers;
 
+import akka.dispatch.ExecutionContexts;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
+import femr.business.helpers.research.ResearchAggregationPool;
 import femr.business.services.core.IMedicationService;
 import femr.business.services.core.IMissionTripService;
 import femr.common.dtos.ServiceResponse;
@@ -37,9 +39,11 @@ import femr.ui.models.research.FilterViewModel;
 import femr.util.stringhelpers.StringUtils;
 import org.apache.commons.lang3.text.WordUtils;
 import play.data.Form;
+import play.libs.F;
 import play.mvc.Controller;
 import play.mvc.Result;
 import play.mvc.Security;
+import scala.concurrent.ExecutionContext;
 
 import java.io.*;
 import java.text.SimpleDateFormat;
@@ -49,6 +53,9 @@ import java.util.*;
 @AllowedRoles({Roles.RESEARCHER})
 public class ResearchController extends Controller {
 
+    // graphs are built on the research pool, not on the threads that serve requests
+    private static final ExecutionContext researchContext = ExecutionContexts.fromExecutorService(ResearchAggregationPool.get());
+
     private final Form<FilterViewModel> FilterViewModelForm = Form.form(FilterViewModel.class);
 
     private IResearchService researchService;
@@ -95,36 +102,78 @@ public class ResearchController extends Controller {
     }
 
     /**
-     * Called when user clicks apply on the selected filters.
+     * Called when user clicks apply on the selected filters. The graph is loaded and aggregated on the
+     * research pool, so a large graph doesn't hold one of the threads that serve the other pages.
      */
-    public Result indexPost() {
+    public F.Promise<Result> indexPost() {
 
         FilterViewModel filterViewModel = FilterViewModelForm.bindFromRequest().get();
         ResearchFilterItem researchFilterItem = createResearchFilterItem(filterViewModel);
 
-        ServiceResponse<ResearchResultSetItem> response = researchService.retrieveGraphData(researchFilterItem);
-        ResearchGraphDataModel graphModel = new ResearchGraphDataModel();
-        if (!response.hasErrors()) {
+        return F.Promise.promise(() -> {
 
-            ResearchResultSetItem results = response.getResponseObject();
-            graphModel = buildGraphModel(results);
-        }
+            ServiceResponse<ResearchResultSetItem> response = researchService.retrieveGraphData(researchFilterItem);
+            ResearchGraphDataModel graphModel = new ResearchGraphDataModel();
+            if (!response.hasErrors()) {
 
-        Gson gson = new Gson();
-        String jsonString = gson.toJson(graphModel);
-        return ok(jsonString);
+                ResearchResultSetItem results = response.getResponseObject();
+                graphModel = buildGraphModel(results);
+            }
+
+            Gson gson = new Gson();
+            String jsonString = gson.toJson(graphModel);
+            return ok(jsonString);
+        }, researchContext);
     }
 
     /**
-     * Called when a user wants to export the data to a CSV file.
+     * Called when a user wants to export the data to a CSV file. The export runs in the background,
+     * this returns the job to poll with exportGet.
      */
     public Result exportPost() {
 
         FilterViewModel filterViewModel = FilterViewModelForm.bindFromRequest().get();
 
         ResearchFilterItem filterItem = createResearchFilterItem(filterViewModel);
+        CurrentUser currentUser = sessionService.retrieveCurrentUserSession();
+
+        ServiceResponse<ResearchExportJobItem> exportJobServiceResponse = researchService.createCsvExportJob(filterItem, currentUser.getId());
+        if (exportJobServiceResponse.hasErrors()) {
+
+            return status(SERVICE_UNAVAILABLE, new Gson().toJson(exportJobServiceResponse.getErrors()));
+        }
+
+        return ok(new Gson().toJson(exportJobServiceResponse.getResponseObject()));
+    }
+
+    /**
+     * Called while an export is running to report its progress.
+     */
+    public Result exportGet(String jobId) {
 
-        ServiceResponse<File> exportServiceResponse = researchService.retrieveCsvExportFile(filterItem);
+        CurrentUser currentUser = sessionService.retrieveCurrentUserSession();
+
+        ServiceResponse<ResearchExportJobItem> exportJobServiceResponse = researchService.retrieveCsvExportJob(jobId, currentUser.getId());
+        if (exportJobServiceResponse.hasErrors()) {
+
+            return notFound(new Gson().toJson(exportJobServiceResponse.getErrors()));
+        }
+
+        return ok(new Gson().toJson(exportJobServiceResponse.getResponseObject()));
+    }
+
+    /**
+     * Called to download the file of a finished export.
+     */
+    public Result exportFileGet(String jobId) {
+
+        CurrentUser currentUser = sessionService.retrieveCurrentUserSession();
+
+        ServiceResponse<File> exportServiceResponse = researchService.retrieveCsvExportJobFile(jobId, currentUser.getId());
+        if (exportServiceResponse.hasErrors()) {
+
+            return notFound();
+        }
         File csvFile = exportServiceResponse.getResponseObject();
 
         response().setContentType("application/x-download");
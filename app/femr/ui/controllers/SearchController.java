@@ -1,8 +1,12 @@
 package femr.ui.controllers;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
+import femr.business.helpers.medication.MedicationCatalog;
+import femr.business.helpers.referencedata.ReferenceDataCache;
+import femr.business.helpers.search.PatientNameIndex;
 import femr.business.services.core.IInventoryService;
 import femr.business.services.core.IMedicationService;
 import femr.business.services.core.ISearchService;
@@ -10,11 +14,14 @@ import femr.business.services.core.ISessionService;
 import femr.common.dtos.CurrentUser;
 import femr.common.dtos.ServiceResponse;
 import femr.common.models.CityItem;
+import femr.common.models.EncounterNoteMatchItem;
 import femr.common.models.MedicationAdministrationItem;
 import femr.common.models.PatientItem;
+import femr.common.models.PatientSearchPageItem;
 import femr.data.models.mysql.Roles;
 import femr.ui.helpers.security.AllowedRoles;
 import femr.ui.helpers.security.FEMRAuthenticated;
+import femr.ui.helpers.typeahead.TypeaheadSnapshots;
 import femr.ui.models.search.json.CitySearch;
 import femr.ui.models.search.json.PatientSearch;
 import org.h2.util.StringUtils;
@@ -22,8 +29,13 @@ import play.mvc.Controller;
 import play.mvc.Result;
 import play.mvc.Security;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 //The purpose of this controller is to provide a universal
 //way of handling search requests - all requests will be
@@ -32,6 +44,13 @@ import java.util.List;
 @AllowedRoles({Roles.PHYSICIAN, Roles.PHARMACIST, Roles.NURSE})
 public class SearchController extends Controller {
 
+    private static final int TYPEAHEAD_PATIENT_LIMIT = 15;
+    private static final int TYPEAHEAD_PATIENT_MAX_LIMIT = 50;
+    private static final int FUZZY_PATIENT_PAGE_SIZE = 20;
+    private static final int NOTE_SEARCH_LIMIT = 50;
+    private static final int TYPEAHEAD_DELTA_LIMIT = 500;
+    private static final int TYPEAHEAD_DELTA_MAX_LIMIT = 5000;
+
     private ISessionService sessionService;
     private ISearchService searchService;
     private IMedicationService medicationService;
@@ -53,13 +72,15 @@ public class SearchController extends Controller {
 
         String patientSearchQuery = request().getQueryString("patientSearchQuery");
 
-        ServiceResponse<List<PatientItem>> patientResponse = searchService.retrievePatientsFromQueryString(patientSearchQuery);
+        //one patient is enough to tell whether there is exactly one match or several
+        ServiceResponse<PatientSearchPageItem> patientResponse = searchService.retrievePatientPageFromQueryString(patientSearchQuery, null, 1);
         if (patientResponse.hasErrors()) {
             throw new RuntimeException();
         }
-        List<PatientItem> patientItems = patientResponse.getResponseObject();
+        List<PatientItem> patientItems = patientResponse.getResponseObject().getPatientItems();
+        boolean severalPatients = patientResponse.getResponseObject().getNextCursor() != null;
 
-        if (patientItems.size() == 1) {
+        if (patientItems.size() == 1 && !severalPatients) {
             PatientItem patientItem = patientItems.get(0);
             if (StringUtils.equals(page, "medical")) {
                 return redirect(routes.MedicalController.editGet(patientItem.getId()));
@@ -70,7 +91,7 @@ public class SearchController extends Controller {
             } else if (StringUtils.equals(page, "history")) {
                 return redirect(routes.HistoryController.indexPatientGet(Integer.toString(patientItem.getId())));
             }
-        } else if (patientItems.size() > 1) {
+        } else if (severalPatients) {
             return redirect(routes.HistoryController.indexPatientGet(patientSearchQuery.replace(" ", "-")));
         } else if (patientItems.size() == 0) {
             //if the patient ends up not being found, go back to the index of the page where the search was called from.
@@ -104,16 +125,117 @@ public class SearchController extends Controller {
         return ok("true");
     }
 
+    /**
+     * Patients for the patient search typeahead. With a q parameter only the best matches for what has
+     * been typed are returned (at most limit, default 15), otherwise every patient is returned as a
+     * versioned typeahead list (see typeaheadResult).
+     */
     public Result typeaheadPatientsJSONGet(){
 
         CurrentUser currentUser = sessionService.retrieveCurrentUserSession();
 
-        ServiceResponse<List<PatientItem>> patientItemsServiceResponse = searchService.retrievePatientsForSearch(currentUser.getTripId());
+        String query = request().getQueryString("q");
+        if (query != null) {
+
+            int limit = TYPEAHEAD_PATIENT_LIMIT;
+            try {
+                String limitString = request().getQueryString("limit");
+                if (limitString != null)
+                    limit = Math.max(1, Math.min(TYPEAHEAD_PATIENT_MAX_LIMIT, Integer.parseInt(limitString)));
+            } catch (NumberFormatException ex) {
+                limit = TYPEAHEAD_PATIENT_LIMIT;
+            }
+            ServiceResponse<List<PatientItem>> patientItemsServiceResponse = searchService.retrievePatientsForTypeahead(currentUser.getTripId(), query, limit);
+            if (patientItemsServiceResponse.hasErrors()){
+                return ok("");
+            }
+
+            return ok(new Gson().toJson(createPatientSearches(patientItemsServiceResponse.getResponseObject())));
+        }
+
+        // ages are counted from today, so the list is also rebuilt when the day changes. Both parts only
+        // grow, so the stamp changes whenever either does
+        long day = System.currentTimeMillis() / TimeUnit.DAYS.toMillis(1);
+        long stamp = 31 * PatientNameIndex.get().getGeneration() + day;
+        return typeaheadResult("patients-" + currentUser.getTripId(), null, stamp, () -> {
+
+            ServiceResponse<List<PatientItem>> patientItemsServiceResponse = searchService.retrievePatientsForSearch(currentUser.getTripId());
+            if (patientItemsServiceResponse.hasErrors())
+                return null;
+
+            Gson gson = new Gson();
+            List<TypeaheadSnapshots.Record> records = new ArrayList<>();
+            for (PatientSearch patientSearch : createPatientSearches(patientItemsServiceResponse.getResponseObject()))
+                records.add(new TypeaheadSnapshots.Record(patientSearch.getId(), gson.toJson(patientSearch)));
+            return records;
+        });
+    }
+
+    /**
+     * Patients whose names are spelled close to or sound like the q parameter, best match first,
+     * a page (default 1) of FUZZY_PATIENT_PAGE_SIZE patients at a time.
+     */
+    public Result fuzzyPatientsJSONGet(){
+
+        String query = request().getQueryString("q");
+        int pageNumber = 1;
+        try {
+            String pageString = request().getQueryString("page");
+            if (pageString != null)
+                pageNumber = Math.max(1, Integer.parseInt(pageString));
+        } catch (NumberFormatException ex) {
+            pageNumber = 1;
+        }
 
+        ServiceResponse<List<PatientItem>> patientItemsServiceResponse = searchService.retrievePatientsFromFuzzyQuery(query, pageNumber, FUZZY_PATIENT_PAGE_SIZE);
         if (patientItemsServiceResponse.hasErrors()){
             return ok("");
         }
-        List<PatientItem> patientItems = patientItemsServiceResponse.getResponseObject();
+
+        return ok(new Gson().toJson(createPatientSearches(patientItemsServiceResponse.getResponseObject())));
+    }
+
+    /**
+     * Encounters whose notes mention the words in the q parameter, best match first, at most NOTE_SEARCH_LIMIT.
+     * Only encounters from the current trip are searched unless trip=all. from and to (yyyy-MM-dd, both
+     * optional and inclusive) limit the triage dates.
+     */
+    public Result notesJSONGet(){
+
+        CurrentUser currentUser = sessionService.retrieveCurrentUserSession();
+
+        String query = request().getQueryString("q");
+        Integer tripId = "all".equals(request().getQueryString("trip")) ? null : currentUser.getTripId();
+        Date from = parseDay(request().getQueryString("from"), 0);
+        Date to = parseDay(request().getQueryString("to"), 1);
+
+        ServiceResponse<List<EncounterNoteMatchItem>> encounterNoteMatchItemsServiceResponse = searchService.retrieveEncountersFromNoteQuery(query, tripId, from, to, NOTE_SEARCH_LIMIT);
+        if (encounterNoteMatchItemsServiceResponse.hasErrors()){
+            return ok("");
+        }
+
+        return ok(new Gson().toJson(encounterNoteMatchItemsServiceResponse.getResponseObject()));
+    }
+
+    /**
+     * parses a yyyy-MM-dd day and moves it forward by daysToAdd, null when it is missing or not a date
+     */
+    private Date parseDay(String day, int daysToAdd) {
+
+        if (day == null)
+            return null;
+        try {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(new SimpleDateFormat("yyyy-MM-dd").parse(day));
+            calendar.add(Calendar.DATE, daysToAdd);
+            return calendar.getTime();
+        } catch (ParseException ex) {
+            return null;
+        }
+    }
+
+    private List<PatientSearch> createPatientSearches(List<PatientItem> patientItems) {
+
         List<PatientSearch> patientSearches = new ArrayList<>();
         PatientSearch patientSearch;
 
@@ -129,36 +251,41 @@ public class SearchController extends Controller {
             patientSearches.add(patientSearch);
         }
 
-        return ok(new Gson().toJson(patientSearches));
+        return patientSearches;
     }
 
     public Result typeaheadCitiesJSONGet(){
 
-        ServiceResponse<List<CityItem>> cityItemsServiceResponse = searchService.retrieveCitiesForSearch();
+        long generation = ReferenceDataCache.get().getGeneration(ReferenceDataCache.CITIES);
+        return typeaheadResult("cities", null, generation, () -> {
 
-        if (cityItemsServiceResponse.hasErrors()){
-            return ok("");
-        }
-        List<CityItem> cityItems = cityItemsServiceResponse.getResponseObject();
-        List<CitySearch> citySearches = new ArrayList<>();
-        CitySearch citySearch;
-
-        for (CityItem cityItem : cityItems) {
-            citySearch = new CitySearch();
-            citySearch.setName(cityItem.getCityName());
-            citySearches.add(citySearch);
-        }
+            ServiceResponse<List<CityItem>> cityItemsServiceResponse = searchService.retrieveCitiesForSearch();
+            if (cityItemsServiceResponse.hasErrors())
+                return null;
 
-        return ok(new Gson().toJson(citySearches));
+            Gson gson = new Gson();
+            List<TypeaheadSnapshots.Record> records = new ArrayList<>();
+            CitySearch citySearch;
+            for (CityItem cityItem : cityItemsServiceResponse.getResponseObject()) {
+                citySearch = new CitySearch();
+                citySearch.setName(cityItem.getCityName());
+                records.add(new TypeaheadSnapshots.Record(cityItem.getCityName(), gson.toJson(citySearch)));
+            }
+            return records;
+        });
     }
 
     public Result typeaheadDiagnosisJSONGet(){
 
-        ServiceResponse<List<String>> allDiagnosesServiceResponse = searchService.findDiagnosisForSearch();
-        if (allDiagnosesServiceResponse.hasErrors())
-            return ok("");
+        long generation = ReferenceDataCache.get().getGeneration(ReferenceDataCache.DIAGNOSES);
+        return typeaheadResult("diagnoses", null, generation, () -> {
 
-        return ok(new Gson().toJson(allDiagnosesServiceResponse.getResponseObject()));
+            ServiceResponse<List<String>> allDiagnosesServiceResponse = searchService.findDiagnosisForSearch();
+            if (allDiagnosesServiceResponse.hasErrors())
+                return null;
+
+            return createStringRecords(allDiagnosesServiceResponse.getResponseObject());
+        });
     }
 
     /**
@@ -169,12 +296,15 @@ public class SearchController extends Controller {
      */
     public Result typeaheadMedicationsJSONGet() {
 
-        ServiceResponse<List<String>> medicationServiceResponse = medicationService.retrieveAllMedications();
-        if (medicationServiceResponse.hasErrors()) {
-            return ok("");
-        }
+        long generation = MedicationCatalog.get().getGeneration();
+        return typeaheadResult("medications", null, generation, () -> {
 
-        return ok(new Gson().toJson(medicationServiceResponse.getResponseObject()));
+            ServiceResponse<List<String>> medicationServiceResponse = medicationService.retrieveAllMedications();
+            if (medicationServiceResponse.hasErrors())
+                return null;
+
+            return createStringRecords(medicationServiceResponse.getResponseObject());
+        });
     }
 
     /**
@@ -183,22 +313,123 @@ public class SearchController extends Controller {
      * @return JSON object of medications that exist int he medcations table
      */
     public Result typeaheadMedicationsWithIDJSONGet() {
-        ServiceResponse<ObjectNode> medicationServiceResponse = medicationService.retrieveAllMedicationsWithID();
-        if (medicationServiceResponse.hasErrors()) {
-            return ok("");
-        }
-        return ok(medicationServiceResponse.getResponseObject());
+
+        long generation = MedicationCatalog.get().getGeneration();
+        return typeaheadResult("medicationsWithID", "medication", generation, () -> {
+
+            ServiceResponse<ObjectNode> medicationServiceResponse = medicationService.retrieveAllMedicationsWithID();
+            if (medicationServiceResponse.hasErrors())
+                return null;
+
+            List<TypeaheadSnapshots.Record> records = new ArrayList<>();
+            for (JsonNode medication : medicationServiceResponse.getResponseObject().path("medication"))
+                records.add(new TypeaheadSnapshots.Record(medication.path("id").asText(), medication.toString()));
+            return records;
+        });
     }
 
     /**
      *
      */
     public Result typeaheadMedicationAdministrationsJSONGet() {
-        ServiceResponse<List<MedicationAdministrationItem>> administrationsServiceResponse = medicationService.retrieveAvailableMedicationAdministrations();
-        if (administrationsServiceResponse.hasErrors()) {
+
+        return typeaheadResult("administrations", null, () -> {
+
+            ServiceResponse<List<MedicationAdministrationItem>> administrationsServiceResponse = medicationService.retrieveAvailableMedicationAdministrations();
+            if (administrationsServiceResponse.hasErrors())
+                return null;
+
+            Gson gson = new Gson();
+            List<TypeaheadSnapshots.Record> records = new ArrayList<>();
+            for (MedicationAdministrationItem administrationItem : administrationsServiceResponse.getResponseObject())
+                records.add(new TypeaheadSnapshots.Record(Integer.toString(administrationItem.getId()), gson.toJson(administrationItem)));
+            return records;
+        });
+    }
+
+    private List<TypeaheadSnapshots.Record> createStringRecords(List<String> values) {
+
+        Gson gson = new Gson();
+        List<TypeaheadSnapshots.Record> records = new ArrayList<>();
+        for (String value : values)
+            if (value != null)
+                records.add(new TypeaheadSnapshots.Record(value, gson.toJson(value)));
+        return records;
+    }
+
+    /**
+     * Serves a typeahead list from its snapshot. Without parameters the whole list is returned as before,
+     * with a strong ETag so a client sending it back in If-None-Match gets a 304 while the list is unchanged.
+     * With since=version only what changed after that version is returned:
+     * {"version":..., "reset":..., "more":..., "records":[...], "removed":[keys]}, at most limit changes
+     * at a time. When more is true the client asks again with the returned version; when reset is true the
+     * client drops its copy before applying the records.
+     *
+     * @param property if not null the whole list is wrapped in an object under this property
+     */
+    private Result typeaheadResult(String name, String property, TypeaheadSnapshots.Source source) {
+
+        return typeaheadResult(TypeaheadSnapshots.get().retrieve(name, property, source));
+    }
+
+    /**
+     * Serves a typeahead list that is only rebuilt when stamp changes, see typeaheadResult above.
+     */
+    private Result typeaheadResult(String name, String property, long stamp, TypeaheadSnapshots.Source source) {
+
+        return typeaheadResult(TypeaheadSnapshots.get().retrieve(name, property, stamp, source));
+    }
+
+    private Result typeaheadResult(TypeaheadSnapshots.Snapshot snapshot) {
+
+        if (snapshot == null) {
             return ok("");
         }
+        response().setHeader(CACHE_CONTROL, "private, no-cache");
+
+        String since = request().getQueryString("since");
+        if (since != null) {
+
+            long sinceVersion;
+            int limit = TYPEAHEAD_DELTA_LIMIT;
+            try {
+                sinceVersion = Long.parseLong(since);
+            } catch (NumberFormatException ex) {
+                sinceVersion = -1;
+            }
+            try {
+                String limitString = request().getQueryString("limit");
+                if (limitString != null)
+                    limit = Math.max(1, Math.min(TYPEAHEAD_DELTA_MAX_LIMIT, Integer.parseInt(limitString)));
+            } catch (NumberFormatException ex) {
+                limit = TYPEAHEAD_DELTA_LIMIT;
+            }
+
+            TypeaheadSnapshots.Delta delta = snapshot.retrieveDelta(sinceVersion, limit);
+            Gson gson = new Gson();
+            StringBuilder json = new StringBuilder()
+                    .append("{\"version\":").append(delta.getVersion())
+                    .append(",\"reset\":").append(delta.isReset())
+                    .append(",\"more\":").append(delta.isMore())
+                    .append(",\"records\":[").append(String.join(",", delta.getRecords()))
+                    .append("],\"removed\":").append(gson.toJson(delta.getRemoved()))
+                    .append('}');
+            return ok(json.toString()).as("application/json; charset=utf-8");
+        }
+
+        String eTag = snapshot.getETag();
+        response().setHeader(ETAG, eTag);
+        String ifNoneMatch = request().getHeader(IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/"))
+                    candidate = candidate.substring(2);
+                if (candidate.equals(eTag) || candidate.equals("*"))
+                    return status(NOT_MODIFIED);
+            }
+        }
 
-        return ok(new Gson().toJson(administrationsServiceResponse.getResponseObject()));
+        return ok(snapshot.getPayload()).as("application/json; charset=utf-8");
     }
 }
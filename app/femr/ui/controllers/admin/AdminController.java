@@ -18,7 +18,10 @@
 */
 package femr.ui.controllers.admin;
 
+import com.google.gson.Gson;
 import com.google.inject.Inject;
+import femr.business.helpers.referencedata.ReferenceDataCache;
+import femr.business.helpers.research.ResearchResultCache;
 import femr.common.dtos.CurrentUser;
 import femr.business.services.core.ISessionService;
 import femr.data.models.mysql.Roles;
@@ -41,4 +44,18 @@ public class AdminController extends Controller {
         CurrentUser currentUser = sessionService.retrieveCurrentUserSession();
         return ok(index.render(currentUser));
     }
+
+    /**
+     * Hits, misses and invalidations of the cached reference lists (cities, diagnoses) as JSON.
+     */
+    public Result cacheStatisticsGet() {
+        return ok(new Gson().toJson(ReferenceDataCache.get().retrieveStatistics()));
+    }
+
+    /**
+     * Size, hits, misses, evictions and invalidations of the cached research graphs as JSON.
+     */
+    public Result researchCacheStatisticsGet() {
+        return ok(new Gson().toJson(ResearchResultCache.get().retrieveStatistics()));
+    }
 }
@@ -0,0 +1,401 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.ui.helpers.typeahead;
+
+import femr.business.helpers.LogicDoer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last version of every typeahead list that was sent out. Each record remembers the version in which
+ * it was added or last changed and removed records leave a tombstone, so a client that already holds a
+ * version only has to download what changed since. Versions come from one clock shared by all lists
+ * that starts at the boot time in microseconds, so versions handed out before a restart are older than
+ * every list and those clients are told to start over.
+ */
+public final class TypeaheadSnapshots {
+
+    private static final int MAX_TOMBSTONES = 2000;
+    private static final TypeaheadSnapshots INSTANCE = new TypeaheadSnapshots(LogicDoer.getTypeaheadRefreshMillis(), MAX_TOMBSTONES);
+
+    private final long refreshMillis;
+    private final int maxTombstones;
+    private final Map<String, Snapshot> snapshots = new HashMap<>();
+    private long clock = System.currentTimeMillis() * 1000;
+
+    /**
+     * @param refreshMillis how long a list without a stamp is served before it is rebuilt
+     * @param maxTombstones removed records remembered per list, clients older than the oldest get a reset
+     */
+    public TypeaheadSnapshots(long refreshMillis, int maxTombstones) {
+
+        this.refreshMillis = refreshMillis;
+        this.maxTombstones = maxTombstones;
+    }
+
+    public static TypeaheadSnapshots get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * A list that is rebuilt from the database.
+     */
+    public interface Source {
+
+        /**
+         * @return the records in the order they are shown, null if the list could not be built
+         */
+        List<Record> load();
+    }
+
+    /**
+     * Returns the current snapshot of a list. The list is rebuilt from the source unless it was rebuilt
+     * less than the refresh interval ago, and the versions of records that differ from the previous
+     * snapshot are bumped.
+     *
+     * @param name     name of the list, including anything that changes its contents (e.g. the trip)
+     * @param property if not null the whole list is wrapped in an object under this property
+     * @param source   builds the records of the list
+     * @return the snapshot, null if the list could not be built and there is no earlier snapshot
+     */
+    public Snapshot retrieve(String name, String property, Source source) {
+
+        return retrieveSnapshot(name, property, null, source);
+    }
+
+    /**
+     * Returns the current snapshot of a list whose source says when it changed, e.g. with the generation
+     * of a cache. The list is only rebuilt when the stamp differs from the one it was last built with,
+     * otherwise the serialized payload of the last snapshot is served as it is.
+     *
+     * @param name     name of the list, including anything that changes its contents
+     * @param property if not null the whole list is wrapped in an object under this property
+     * @param stamp    changes whenever the contents of the source change
+     * @param source   builds the records of the list
+     * @return the snapshot, null if the list could not be built and there is no earlier snapshot
+     */
+    public Snapshot retrieve(String name, String property, long stamp, Source source) {
+
+        return retrieveSnapshot(name, property, stamp, source);
+    }
+
+    private Snapshot retrieveSnapshot(String name, String property, Long stamp, Source source) {
+
+        Snapshot snapshot;
+        synchronized (this) {
+            snapshot = snapshots.get(name);
+            if (snapshot == null) {
+                snapshot = new Snapshot(name, property);
+                snapshots.put(name, snapshot);
+            }
+        }
+        synchronized (snapshot) {
+            long now = System.currentTimeMillis();
+            boolean stale = stamp == null ? now - snapshot.refreshed >= refreshMillis : !stamp.equals(snapshot.stamp);
+            if (snapshot.version == 0 || stale) {
+                List<Record> records = source.load();
+                if (records != null) {
+                    update(snapshot, records);
+                    snapshot.refreshed = now;
+                    snapshot.stamp = stamp;
+                }
+            }
+            return snapshot.version == 0 ? null : snapshot;
+        }
+    }
+
+    /**
+     * Forgets every list, the next request for a list rebuilds it and clients start over.
+     */
+    public synchronized void clear() {
+
+        snapshots.clear();
+    }
+
+    private synchronized long nextVersion() {
+
+        return ++clock;
+    }
+
+    private void update(Snapshot snapshot, List<Record> records) {
+
+        if (snapshot.version == 0)
+            snapshot.horizon = nextVersion();
+
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        boolean changed = records.size() != snapshot.entries.size();
+        Iterator<String> previousOrder = snapshot.entries.keySet().iterator();
+
+        for (Record record : records) {
+            if (entries.containsKey(record.getKey()))
+                continue;
+            Entry previous = snapshot.entries.get(record.getKey());
+            if (previous != null && previous.record.getJson().equals(record.getJson())) {
+                entries.put(record.getKey(), previous);
+            } else {
+                entries.put(record.getKey(), new Entry(record, nextVersion()));
+                changed = true;
+            }
+            if (!changed && (!previousOrder.hasNext() || !previousOrder.next().equals(record.getKey())))
+                changed = true;
+        }
+
+        for (Map.Entry<String, Entry> previous : snapshot.entries.entrySet()) {
+            if (!entries.containsKey(previous.getKey())) {
+                snapshot.tombstones.put(previous.getKey(), nextVersion());
+                changed = true;
+            }
+        }
+        for (String key : entries.keySet())
+            snapshot.tombstones.remove(key);
+
+        Iterator<Map.Entry<String, Long>> oldest = snapshot.tombstones.entrySet().iterator();
+        while (snapshot.tombstones.size() > maxTombstones && oldest.hasNext()) {
+            snapshot.horizon = Math.max(snapshot.horizon, oldest.next().getValue());
+            oldest.remove();
+        }
+
+        if (!changed && snapshot.version != 0)
+            return;
+        snapshot.entries = entries;
+        snapshot.version = nextVersion();
+        snapshot.payload = null;
+    }
+
+    /**
+     * One record of a typeahead list, already serialized.
+     */
+    public static final class Record {
+
+        private final String key;
+        private final String json;
+
+        /**
+         * @param key  identifies the record within its list, not null
+         * @param json the record as JSON, not null
+         */
+        public Record(String key, String json) {
+
+            this.key = key;
+            this.json = json;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getJson() {
+            return json;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Record record;
+        private final long version;
+
+        private Entry(Record record, long version) {
+
+            this.record = record;
+            this.version = version;
+        }
+    }
+
+    /**
+     * The records changed or removed after a version, oldest change first.
+     */
+    public static final class Delta {
+
+        private final boolean reset;
+        private final long version;
+        private final boolean more;
+        private final List<String> records;
+        private final List<String> removed;
+
+        private Delta(boolean reset, long version, boolean more, List<String> records, List<String> removed) {
+
+            this.reset = reset;
+            this.version = version;
+            this.more = more;
+            this.records = records;
+            this.removed = removed;
+        }
+
+        /**
+         * @return true if the client has to drop what it holds before applying the records
+         */
+        public boolean isReset() {
+            return reset;
+        }
+
+        /**
+         * @return the version to ask for the next delta with
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return true if the delta was cut off at the limit and there are more changes after getVersion()
+         */
+        public boolean isMore() {
+            return more;
+        }
+
+        /**
+         * @return JSON of the records that were added or changed
+         */
+        public List<String> getRecords() {
+            return records;
+        }
+
+        /**
+         * @return keys of the records that were removed
+         */
+        public List<String> getRemoved() {
+            return removed;
+        }
+    }
+
+    /**
+     * A version of one typeahead list.
+     */
+    public static final class Snapshot {
+
+        private final String name;
+        private final String property;
+        private Map<String, Entry> entries = new LinkedHashMap<>();
+        private final Map<String, Long> tombstones = new LinkedHashMap<>();
+        private long version;
+        private long horizon;
+        private long refreshed;
+        private Long stamp;
+        private byte[] payload;
+
+        private Snapshot(String name, String property) {
+
+            this.name = name;
+            this.property = property;
+        }
+
+        public synchronized long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return a strong entity tag that changes whenever the contents of the list change
+         */
+        public synchronized String getETag() {
+            return "\"" + name + "-" + version + "\"";
+        }
+
+        /**
+         * @return every record as one JSON array in UTF-8, serialized once per version, must not be modified
+         */
+        public synchronized byte[] getPayload() {
+
+            if (payload == null) {
+                StringBuilder builder = new StringBuilder();
+                if (property != null)
+                    builder.append("{\"").append(property).append("\":");
+                builder.append('[');
+                boolean first = true;
+                for (Entry entry : entries.values()) {
+                    if (!first)
+                        builder.append(',');
+                    builder.append(entry.record.getJson());
+                    first = false;
+                }
+                builder.append(']');
+                if (property != null)
+                    builder.append('}');
+                payload = builder.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            return payload;
+        }
+
+        /**
+         * Finds what changed after a version a client holds. If the version is unknown, from before a
+         * restart or older than the oldest tombstone kept, every record is returned and the delta is
+         * marked as a reset. A reset that is cut off at the limit still includes every record older
+         * than the oldest tombstone kept, so the client can carry on from the version it returns.
+         *
+         * @param since the version the client holds
+         * @param limit the maximum number of records and removals in the delta, at least 1, a reset may
+         *              return more
+         * @return the delta
+         */
+        public synchronized Delta retrieveDelta(long since, int limit) {
+
+            boolean reset = since < horizon || since > version;
+            long after = reset ? Long.MIN_VALUE : since;
+
+            List<Change> changes = new ArrayList<>();
+            for (Entry entry : entries.values())
+                if (entry.version > after)
+                    changes.add(new Change(entry.version, entry.record.getJson(), null));
+            if (!reset)
+                for (Map.Entry<String, Long> tombstone : tombstones.entrySet())
+                    if (tombstone.getValue() > after)
+                        changes.add(new Change(tombstone.getValue(), null, tombstone.getKey()));
+            Collections.sort(changes, (a, b) -> Long.compare(a.version, b.version));
+
+            int end = Math.min(limit, changes.size());
+            // a reset has to reach the horizon, a version below it would only get another reset
+            if (reset)
+                while (end < changes.size() && changes.get(end - 1).version < horizon)
+                    end++;
+            boolean more = end < changes.size();
+            changes = changes.subList(0, end);
+
+            List<String> records = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            for (Change change : changes) {
+                if (change.json != null)
+                    records.add(change.json);
+                else
+                    removed.add(change.key);
+            }
+            long next = more ? changes.get(changes.size() - 1).version : version;
+            return new Delta(reset, next, more, records, removed);
+        }
+    }
+
+    private static final class Change {
+
+        private final long version;
+        private final String json;
+        private final String key;
+
+        private Change(long version, String json, String key) {
+
+            this.version = version;
+            this.json = json;
+            this.key = key;
+        }
+    }
+}
@@ -30,6 +30,12 @@ public class IndexPatientViewModelGet {
     private PatientItem patientItem;
     //patient encounters available for the patient
     private List<PatientEncounterItem> patientEncounterItems;
+    //the search, to ask for more of the matching patients
+    private String query;
+    //where the next page of matching patients starts, null if they are all shown
+    private String nextCursor;
+    //roughly how many patients match, may be null
+    private Integer estimatedTotal;
 
     public List<PatientItem> getPatientItems() {
         return patientItems;
@@ -54,4 +60,28 @@ public class IndexPatientViewModelGet {
     public void setPatientEncounterItems(List<PatientEncounterItem> patientEncounterItems) {
         this.patientEncounterItems = patientEncounterItems;
     }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public Integer getEstimatedTotal() {
+        return estimatedTotal;
+    }
+
+    public void setEstimatedTotal(Integer estimatedTotal) {
+        this.estimatedTotal = estimatedTotal;
+    }
 }
@@ -8,6 +8,9 @@ public class PatientSearch {
     String age;
     String photo;//the file location
 
+    public String getId(){
+        return id;
+    }
     public void setId(String id){
         this.id = id;
     }
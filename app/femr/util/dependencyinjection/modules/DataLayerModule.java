@@ -48,6 +48,7 @@ public class DataLayerModule extends AbstractModule {
         bind(IMissionTrip.class).toProvider(MissionTripProvider.class);
         bind(IPatient.class).toProvider(PatientProvider.class);
         bind(IPatientAgeClassification.class).toProvider(PatientAgeClassificationProvider.class);
+        bind(IPatientCountry.class).toProvider(PatientCountryProvider.class);
         bind(IPatientEncounter.class).toProvider(PatientEncounterProvider.class);
         bind(IPatientEncounterPhoto.class).toProvider(PatientEncounterPhotoProvider.class);
         bind(IPatientEncounterTabField.class).toProvider(PatientEncounterTabFieldProvider.class);
@@ -85,6 +86,7 @@ public class DataLayerModule extends AbstractModule {
         bind(new TypeLiteral<IRepository<IMissionTrip>>() {}).to(new TypeLiteral<Repository<IMissionTrip>>() {});
         bind(new TypeLiteral<IRepository<IPatient>>() {}).to(new TypeLiteral<Repository<IPatient>>() {});
         bind(new TypeLiteral<IRepository<IPatientAgeClassification>>() {}).to(new TypeLiteral<Repository<IPatientAgeClassification>>() {});
+        bind(new TypeLiteral<IRepository<IPatientCountry>>() {}).to(new TypeLiteral<Repository<IPatientCountry>>() {});
         bind(new TypeLiteral<IRepository<IPatientEncounter>>() {}).to(new TypeLiteral<Repository<IPatientEncounter>>() {});
         bind(new TypeLiteral<IRepository<IPatientEncounterPhoto>>() {}).to(new TypeLiteral<Repository<IPatientEncounterPhoto>>() {});
         bind(new TypeLiteral<IRepository<IPatientEncounterTabField>>(){}).to(new TypeLiteral<Repository<IPatientEncounterTabField>>(){});
@@ -0,0 +1,30 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.util.dependencyinjection.providers;
+
+import com.google.inject.Provider;
+import femr.data.models.core.IPatientCountry;
+import femr.data.models.mysql.PatientCountry;
+
+public class PatientCountryProvider implements Provider<IPatientCountry> {
+    @Override
+    public IPatientCountry get() {
+        return new PatientCountry();
+    }
+}
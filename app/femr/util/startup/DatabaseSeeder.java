@@ -19,6 +19,7 @@
 package femr.util.startup;
 
 import com.avaje.ebean.Ebean;
+import femr.business.helpers.referencedata.ReferenceDataCache;
 import femr.data.daos.IRepository;
 import femr.data.daos.Repository;
 import femr.data.models.core.*;
@@ -83,6 +84,9 @@ public class DatabaseSeeder {
         seedPatientAgeClassification();
         seedDiagnosis();
         seedMedicationAdministrations();
+
+        //cities and diagnoses may have been added
+        ReferenceDataCache.get().invalidateAll();
     }
 
     private void seedDiagnosis() {
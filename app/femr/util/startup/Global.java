@@ -18,14 +18,23 @@
 */
 package femr.util.startup;
 
+import femr.business.helpers.LogicDoer;
+import femr.business.helpers.photo.PhotoWriteQueue;
+import femr.business.helpers.research.ResearchAggregationPool;
+import femr.business.helpers.research.ResearchExportQueue;
+import femr.data.daos.UnitOfWork;
 import play.Application;
 import play.GlobalSettings;
+import play.Logger;
 import play.mvc.*;
 import play.mvc.Http.*;
 import play.libs.F.*;
 import static play.mvc.Results.*;
 import femr.ui.views.html.errors.global;
 
+import java.io.File;
+import java.lang.reflect.Method;
+
 public class Global extends GlobalSettings {
 
     @Override
@@ -33,6 +42,45 @@ public class Global extends GlobalSettings {
 
         super.onStart(app);
         new DatabaseSeeder().seed();
+        //write the patient photos a previous run left unwritten
+        PhotoWriteQueue.get().recover(new File(LogicDoer.getPatientPhotoPath()));
+    }
+
+    @Override
+    public void onStop(Application app) {
+
+        //stop the background threads, dev mode reloads start new ones with the new classes
+        PhotoWriteQueue.get().shutdown();
+        ResearchExportQueue.get().shutdown();
+        ResearchAggregationPool.shutdown();
+        super.onStop(app);
+    }
+
+    /**
+     * Runs every action inside a unit of work, so repeated lookups made while handling one request only go to
+     * the database once, and logs how many queries that saved.
+     */
+    @Override
+    public Action onRequest(Request request, Method actionMethod) {
+
+        return new Action.Simple() {
+
+            @Override
+            public Promise<Result> call(Context ctx) throws Throwable {
+
+                //the unit of work only covers synchronous actions, it ends as soon as delegate.call returns.
+                //Work an action finishes in a promise (e.g. ResearchController.indexPost) runs without one
+                UnitOfWork unitOfWork = UnitOfWork.begin();
+                try {
+                    return delegate.call(ctx);
+                } finally {
+                    unitOfWork.end();
+                    if (unitOfWork.getSavedQueries() > 0)
+                        Logger.debug("{} {}: {} lookups queried, {} saved by the unit of work",
+                                request.method(), request.path(), unitOfWork.getQueries(), unitOfWork.getSavedQueries());
+                }
+            }
+        };
     }
 
     /*
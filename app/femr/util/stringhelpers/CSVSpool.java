@@ -0,0 +1,165 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.util.stringhelpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects CSV rows whose columns are only known once every row has been seen, then writes them under a header
+ * of every column in alphabetical order. That is the layout {@link GsonFlattener} and {@link CSVWriterGson}
+ * produced, so exports still line up with spreadsheets built from older files. Rows wait in a temporary file
+ * rather than in memory, and cells a row doesn't have are written empty.
+ */
+public class CSVSpool implements Closeable {
+
+    // names of the temporary files, csv-<random>.spool
+    public static final String FILE_PREFIX = "csv-";
+    public static final String FILE_SUFFIX = ".spool";
+
+    private final File file;
+    private final DataOutputStream out;
+    private final Map<String, Integer> columnIndexes = new HashMap<>();
+    private final List<String> columns = new ArrayList<>();
+    private long rowCount = 0;
+
+    /**
+     * @param directory folder for the temporary file, null for the system temp folder
+     * @throws IOException if the temporary file can't be created
+     */
+    public CSVSpool(File directory) throws IOException {
+
+        this.file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, directory);
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    /**
+     * Adds one row. Columns are created the first time a row has a value for them.
+     *
+     * @param row column name to value, null names and values are skipped
+     */
+    public void addRow(Map<String, String> row) throws IOException {
+
+        int cells = 0;
+        for (Map.Entry<String, String> cell : row.entrySet()) {
+
+            if (cell.getKey() != null && cell.getValue() != null) cells++;
+        }
+
+        out.writeInt(cells);
+        for (Map.Entry<String, String> cell : row.entrySet()) {
+
+            if (cell.getKey() == null || cell.getValue() == null) continue;
+
+            Integer index = columnIndexes.get(cell.getKey());
+            if (index == null) {
+
+                index = columns.size();
+                columns.add(cell.getKey());
+                columnIndexes.put(cell.getKey(), index);
+            }
+            out.writeInt(index);
+            writeString(cell.getValue());
+        }
+        rowCount++;
+    }
+
+    /**
+     * @return number of rows added so far
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Writes the header row followed by every row added so far.
+     */
+    public void writeTo(CSVWriter writer) throws IOException {
+
+        out.flush();
+
+        List<String> header = new ArrayList<>(columns);
+        Collections.sort(header);
+        int[] positions = new int[columns.size()];
+        for (int i = 0; i < header.size(); i++) {
+
+            positions[columnIndexes.get(header.get(i))] = i;
+        }
+        writer.writeRow(header);
+
+        String[] cells = new String[header.size()];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+
+            for (long row = 0; row < rowCount; row++) {
+
+                Arrays.fill(cells, null);
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+
+                    int index = in.readInt();
+                    cells[positions[index]] = readString(in);
+                }
+                writer.writeRow(Arrays.asList(cells));
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary file.
+     */
+    @Override
+    public void close() throws IOException {
+
+        try {
+
+            out.close();
+        } finally {
+
+            file.delete();
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package femr.util.stringhelpers;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streams RFC 4180 CSV rows to a Writer. Each row is assembled in a reusable StringBuilder and handed to the
+ * underlying writer in one call, so the cost of an export is linear in its size. Fields containing a comma,
+ * double quote or line break are wrapped in double quotes and embedded quotes are doubled. Null fields are
+ * written as empty cells.
+ *
+ * Replaces {@link CSVWriterGson}, which builds the whole file with string concatenation and strips commas.
+ */
+public class CSVWriter implements Closeable, Flushable {
+
+    private static final String LINE_BREAK = "\r\n";
+
+    private final Writer writer;
+    private final StringBuilder row = new StringBuilder(256);
+    private final int flushInterval;
+    private long rowsWritten = 0;
+
+    /**
+     * @param writer where rows are written, callers should pass a buffered writer, not null
+     */
+    public CSVWriter(Writer writer) {
+        this(writer, 0);
+    }
+
+    /**
+     * @param writer        where rows are written, callers should pass a buffered writer, not null
+     * @param flushInterval flush the writer after this many rows, 0 to only flush when asked
+     */
+    public CSVWriter(Writer writer, int flushInterval) {
+        this.writer = writer;
+        this.flushInterval = flushInterval;
+    }
+
+    public void writeRow(String... fields) throws IOException {
+        writeRow(Arrays.asList(fields));
+    }
+
+    /**
+     * Writes one row followed by a CRLF line break.
+     *
+     * @param fields values in column order, items may be null
+     */
+    public void writeRow(List<String> fields) throws IOException {
+
+        row.setLength(0);
+        for (int i = 0; i < fields.size(); i++) {
+
+            if (i > 0) row.append(',');
+            appendField(fields.get(i));
+        }
+        row.append(LINE_BREAK);
+        writer.append(row);
+
+        rowsWritten++;
+        if (flushInterval > 0 && rowsWritten % flushInterval == 0) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * @return number of rows written so far, including the header row
+     */
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private void appendField(String field) {
+
+        if (field == null || field.isEmpty()) return;
+
+        if (!needsQuotes(field)) {
+
+            row.append(field);
+            return;
+        }
+
+        row.append('"');
+        for (int i = 0; i < field.length(); i++) {
+
+            char c = field.charAt(i);
+            if (c == '"') row.append('"');
+            row.append(c);
+        }
+        row.append('"');
+    }
+
+    private static boolean needsQuotes(String field) {
+
+        for (int i = 0; i < field.length(); i++) {
+
+            char c = field.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,30 @@
+# --- !Ups
+
+CREATE TABLE `patient_countries` (
+  `id` INT(11) NOT NULL AUTO_INCREMENT,
+  `patient_id` INT(11) NOT NULL,
+  `mission_country_id` INT(11) NOT NULL,
+  PRIMARY KEY (`id`),
+  UNIQUE INDEX `id_UNIQUE` (`id` ASC),
+  UNIQUE INDEX `idx_patient_countries_country_patient` (`mission_country_id` ASC, `patient_id` ASC),
+  INDEX `fk_patient_countries_patient_id_idx` (`patient_id` ASC),
+  CONSTRAINT `fk_patient_countries_patient_id`
+  FOREIGN KEY (`patient_id`)
+  REFERENCES `patients` (`id`)
+    ON DELETE NO ACTION
+    ON UPDATE NO ACTION,
+  CONSTRAINT `fk_patient_countries_mission_country_id`
+  FOREIGN KEY (`mission_country_id`)
+  REFERENCES `mission_countries` (`id`)
+    ON DELETE NO ACTION
+    ON UPDATE NO ACTION);
+
+INSERT INTO `patient_countries` (`patient_id`, `mission_country_id`)
+SELECT DISTINCT pe.patient_id, mc.mission_country_id
+FROM patient_encounters pe
+JOIN mission_trips mt ON mt.id = pe.mission_trip_id
+JOIN mission_cities mc ON mc.id = mt.mission_city_id;
+
+# --- !Downs
+
+DROP TABLE `patient_countries`;
@@ -0,0 +1,9 @@
+# --- !Ups
+
+ALTER TABLE `patient_encounter_tab_fields`
+ADD FULLTEXT INDEX `ft_patient_encounter_tab_fields_value` (`tab_field_value`);
+
+# --- !Downs
+
+ALTER TABLE `patient_encounter_tab_fields`
+DROP INDEX `ft_patient_encounter_tab_fields_value`;
@@ -0,0 +1,9 @@
+# --- !Ups
+
+ALTER TABLE `photos`
+ADD INDEX `idx_photos_file_path` (`file_path`(191));
+
+# --- !Downs
+
+ALTER TABLE `photos`
+DROP INDEX `idx_photos_file_path`;
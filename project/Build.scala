@@ -23,6 +23,7 @@ object ApplicationBuild extends Build {
     "mysql" % "mysql-connector-java" % "5.1.36",
     "org.mindrot" % "jbcrypt" % "0.3m",
     "org.apache.commons" % "commons-collections4" % "4.0",
+    "commons-codec" % "commons-codec" % "1.10",
     "com.google.code.gson" % "gson" % "2.3.1",
     "com.itextpdf" % "itextpdf" % "5.5.6",
     "com.itextpdf.tool" % "xmlworker" % "5.5.6"
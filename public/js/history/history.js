@@ -75,13 +75,46 @@ $(document).ready(function () {
     });
 
     //selects a patient from the duplicate patient search to be seen in triage
-    $('.selectPageFromRow').click(function () {
+    //(delegated so rows added by "Show more" work too)
+    $(document).on('click', '.selectPageFromRow', function () {
 
         var id = $.trim($(this).parent().parent().find('.patientId').html());
         document.getElementById("nameOrIdSearchForm").value = id;
         document.getElementById("searchBtn").click();
     });
 
+    //adds the next page of the duplicate patient search
+    $("#morePatientsBtn").click(function () {
+
+        var $button = $(this);
+        $button.prop("disabled", true);
+        $.getJSON($button.data("url"), {cursor: $button.attr("data-cursor")}, function (page) {
+
+            var $table = $("#duplicatePatients");
+            $.each(page.patientItems, function (i, patient) {
+
+                $("<tr>")
+                    .append($("<td class='vert-align'>").append($("<img class='thumbnail searchThumb' width='90' height='90'/>").attr("src", patient.pathToPhoto)))
+                    .append($("<td class='vert-align patientId'>").text(patient.Id))
+                    .append($("<td class='vert-align'>").text(patient.firstName + " " + patient.lastName))
+                    .append($("<td class='vert-align'>").text(patient.sex || ""))
+                    .append($("<td class='vert-align'>").text(patient.age || ""))
+                    .append($("<td class='vert-align'>").text(patient.city || ""))
+                    .append($("<td class='vert-align'>").append("<button type='button' class='selectPageFromRow fButton pull-right'>Select</button>"))
+                    .appendTo($table);
+            });
+
+            if (page.nextCursor) {
+                $button.attr("data-cursor", page.nextCursor).prop("disabled", false);
+            } else {
+                $button.remove();
+            }
+        }).fail(function () {
+
+            $button.prop("disabled", false);
+        });
+    });
+
     //this is used to get the dialog for editing a field
     $(".infoLabel.editable").click(function () {
 
@@ -159,11 +159,61 @@ var filterMenuModule = (function () {
 
     var exportData = function () {
 
-        $(form).submit();
+        var exportButton = $("#export-button");
+        if ($(exportButton).prop("disabled")) return false;
+
+        // the export is built in the background, poll it until the file is ready
+        $(exportButton).prop("disabled", true).val("Exporting...");
+        $.post($(form).attr("action"), $(form).serialize(), function (rawData) {
+
+            pollExport($.parseJSON(rawData).jobId);
+        }).fail(function () {
+
+            finishExport();
+            alert("Too many exports are running, please try again later");
+        });
 
         return false;
     };
 
+    var pollExport = function (jobId) {
+
+        $.get("/research/exportData/" + jobId, function (rawData) {
+
+            var job = $.parseJSON(rawData);
+            if (job.status == "FINISHED") {
+
+                finishExport();
+                window.location = "/research/exportData/" + jobId + "/file";
+            }
+            else if (job.status == "FAILED") {
+
+                finishExport();
+                alert("The export failed: " + job.error);
+            }
+            else {
+
+                if (job.totalEncounters > 0) {
+
+                    var percent = Math.min(100, Math.floor(job.processedEncounters * 100 / job.totalEncounters));
+                    $("#export-button").val("Exporting " + percent + "%");
+                }
+                setTimeout(function () {
+                    pollExport(jobId);
+                }, 1000);
+            }
+        }).fail(function () {
+
+            finishExport();
+            alert("The export could not be found");
+        });
+    };
+
+    var finishExport = function () {
+
+        $("#export-button").prop("disabled", false).val("Export Data");
+    };
+
     var showImageOptions = function () {
 
         $(".save-image-cont").find(".options").show();
@@ -80,74 +80,50 @@ $(document).ready(function () {
     /* Search typeahead */
     if ($("#patientSearchContainer").length > 0) {
 
-        var patient_data = [];
+        // only the best matches for what has been typed are sent by the server
+        var patients = new Bloodhound({
 
-        // Get Patients from server
-        $.getJSON("/search/typeahead/patients", function (data) {
+            datumTokenizer: function (d) {
 
-            patient_data = data;
-
-            var patients = new Bloodhound({
-
-                datumTokenizer: function (d) {
-
-                    // break apart first/last name into separate words
-                    var words = Bloodhound.tokenizers.whitespace(d.id + " " + d.firstName + " " + d.lastName);
-
-                    // make all possible substring words
-                    // Original Word: Name
-                    // Add  ame, me, e to the list also
-                    $.each(words, function (k, v) {
-                        var i = 0;
-                        while ((i + 1) < v.length) {
-                            words.push(v.substr(i, v.length));
-                            i++;
-                        }
-                    });
-
-                    return words;
-                },
-                queryTokenizer: Bloodhound.tokenizers.whitespace,
-                local: patient_data,
-                limit: 30
-            });
-            patients.initialize();
-
-            var typeahead_options = {
-
-                highlight: true
-            };
+                return Bloodhound.tokenizers.whitespace(d.id + " " + d.firstName + " " + d.lastName);
+            },
+            queryTokenizer: Bloodhound.tokenizers.whitespace,
+            remote: {
+                url: "/search/typeahead/patients?q=%QUERY",
+                rateLimitWait: 150
+            },
+            limit: 15
+        });
+        patients.initialize();
 
-            //initalize typeahead
-            $("#patientSearchContainer").find(".patientSearch").typeahead(typeahead_options, {
-                name: 'patients',
-                displayKey: 'firstName',
-                source: patients.ttAdapter(),
-                matcher: function (item) {
-                    if (item.toLowerCase().indexOf(this.query.trim().toLowerCase()) != -1) {
-                        return true;
-                    }
-                },
-                templates: {
-                    empty: [
-                        '<div class="emptyMessage">',
-                        'No matching patients found',
-                        '</div>'
-                    ].join('\n'),
-                    suggestion: Handlebars.compile('<p class="patientResult"><a href="/triage/{{id}}">' +
-                        '<img class="photo" src="{{photo}}" height="80" width="80">' +
-                        '<span class="name">({{id}}) {{firstName}} {{lastName}}</span>' +
-                        '<span class="age">{{age}}</span>' +
-                        '</a></p>')
-                }
-            });
+        var typeahead_options = {
 
-            // Reenable search input field
-            $("input.patientSearch").removeClass("loading")
-                .removeAttr("disabled")
-                .attr("placeholder", "Patient ID or Name");
+            highlight: true
+        };
 
+        //initalize typeahead
+        $("#patientSearchContainer").find(".patientSearch").typeahead(typeahead_options, {
+            name: 'patients',
+            displayKey: 'firstName',
+            source: patients.ttAdapter(),
+            templates: {
+                empty: [
+                    '<div class="emptyMessage">',
+                    'No matching patients found',
+                    '</div>'
+                ].join('\n'),
+                suggestion: Handlebars.compile('<p class="patientResult"><a href="/triage/{{id}}">' +
+                    '<img class="photo" src="{{photo}}" height="80" width="80">' +
+                    '<span class="name">({{id}}) {{firstName}} {{lastName}}</span>' +
+                    '<span class="age">{{age}}</span>' +
+                    '</a></p>')
+            }
         });
+
+        // Reenable search input field
+        $("input.patientSearch").removeClass("loading")
+            .removeAttr("disabled")
+            .attr("placeholder", "Patient ID or Name");
     }
 });
 
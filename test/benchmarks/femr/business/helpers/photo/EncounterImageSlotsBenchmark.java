@@ -0,0 +1,123 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package benchmarks.femr.business.helpers.photo;
+
+import femr.business.helpers.photo.EncounterImageSlots;
+import play.mvc.Http.MultipartFormData.FilePart;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares matching uploaded encounter photos to their slots with {@link EncounterImageSlots} against the
+ * scan createEncounterPhotos used to do, which looked through every upload for every slot. Wound-care
+ * encounters on surgical trips often hold dozens of photos.
+ *
+ * JMH isn't part of the build, so this is a plain timing harness. Run it with
+ * activator "test:runMain benchmarks.femr.business.helpers.photo.EncounterImageSlotsBenchmark"
+ */
+public class EncounterImageSlotsBenchmark {
+
+    private static final int[] PHOTO_COUNTS = {12, 48, 96, 192};
+    // one encounter form is far below timer resolution, so each run saves this many forms
+    private static final int FORMS_PER_RUN = 1000;
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 10;
+
+    private static long matched;
+
+    public static void main(String[] args) {
+
+        for (int photoCount : PHOTO_COUNTS) {
+
+            List<FilePart> uploads = buildUploads(photoCount);
+
+            System.out.println(String.format("scan every upload   %4d photos: %8.3f ms per 1000 forms", photoCount, time(() -> matchByScanning(uploads, photoCount)) * 1000 / FORMS_PER_RUN));
+            System.out.println(String.format("EncounterImageSlots %4d photos: %8.3f ms per 1000 forms", photoCount, time(() -> matchByIndex(uploads, photoCount)) * 1000 / FORMS_PER_RUN));
+        }
+        System.out.println("(matched " + matched + ")");
+    }
+
+    /**
+     * @return average milliseconds per measured run
+     */
+    private static double time(Runnable run) {
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            run.run();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            run.run();
+        }
+        return (System.nanoTime() - start) / 1000000.0 / MEASURED_RUNS;
+    }
+
+    /**
+     * The matching createEncounterPhotos did before, kept here as the baseline.
+     */
+    private static void matchByScanning(List<FilePart> uploads, int slotCount) {
+
+        for (int form = 0; form < FORMS_PER_RUN; form++) {
+            for (Integer i = 0; i < slotCount; i++) {
+                for (FilePart fp_iterator : uploads) {
+                    String keyName = fp_iterator.getKey();
+                    int leftBracket = keyName.indexOf("[");
+                    int rightBracket = keyName.indexOf("]");
+                    if (leftBracket >= 0 && rightBracket >= 0) {
+                        keyName = keyName.substring(leftBracket + 1, rightBracket);
+                        if (keyName.equalsIgnoreCase(i.toString())) {
+                            matched++;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void matchByIndex(List<FilePart> uploads, int slotCount) {
+
+        for (int form = 0; form < FORMS_PER_RUN; form++) {
+            Map<Integer, FilePart> uploadsBySlot = EncounterImageSlots.index(uploads);
+            for (Integer i = 0; i < slotCount; i++) {
+                if (uploadsBySlot.get(i) != null)
+                    matched++;
+            }
+        }
+    }
+
+    /**
+     * One upload per slot, in a shuffled order like a browser may send them.
+     */
+    private static List<FilePart> buildUploads(int photoCount) {
+
+        List<FilePart> uploads = new ArrayList<>(photoCount);
+        for (int i = 0; i < photoCount; i++) {
+            uploads.add(new FilePart("patientPhoto[" + i + "]", "wound_" + i + ".jpg", "image/jpeg", new File("wound_" + i + ".jpg")));
+        }
+        Collections.shuffle(uploads, new Random(42));
+        return uploads;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package benchmarks.femr.util.stringhelpers;
+
+import femr.util.stringhelpers.CSVWriter;
+import femr.util.stringhelpers.CSVWriterGson;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compares {@link CSVWriter} against {@link CSVWriterGson} on research export sized files.
+ *
+ * JMH isn't part of the build, so this is a plain timing harness. Run it with
+ * activator "test:runMain benchmarks.femr.util.stringhelpers.CSVWriterBenchmark"
+ *
+ * CSVWriterGson is quadratic in file size. 10k rows takes seconds per run, 100k rows takes around ten minutes and
+ * 1M rows takes days, so it is skipped above 10k rows unless "all" is passed as an argument.
+ */
+public class CSVWriterBenchmark {
+
+    private static final int[] ROW_COUNTS = {10000, 100000, 1000000};
+    private static final int CSV_WRITER_GSON_MAX_ROWS = 10000;
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    public static void main(String[] args) throws IOException {
+
+        File output = File.createTempFile("csv-benchmark", ".csv");
+        output.deleteOnExit();
+        boolean runAll = args.length > 0 && args[0].equals("all");
+
+        for (int rowCount : ROW_COUNTS) {
+
+            List<String> columns = buildColumns();
+            List<Map<String, String>> rows = buildRows(columns, rowCount);
+
+            System.out.println(String.format("CSVWriter      %8d rows: %8.1f ms", rowCount, time(() -> writeWithCsvWriter(columns, rows, output))));
+
+            if (runAll || rowCount <= CSV_WRITER_GSON_MAX_ROWS) {
+                System.out.println(String.format("CSVWriterGson  %8d rows: %8.1f ms", rowCount, time(() -> writeWithCsvWriterGson(rows, output))));
+            } else {
+                System.out.println(String.format("CSVWriterGson  %8d rows:  skipped", rowCount));
+            }
+        }
+    }
+
+    private interface BenchmarkRun {
+        void run() throws IOException;
+    }
+
+    /**
+     * @return average milliseconds per measured run
+     */
+    private static double time(BenchmarkRun run) throws IOException {
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            run.run();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            run.run();
+        }
+        return (System.nanoTime() - start) / 1000000.0 / MEASURED_RUNS;
+    }
+
+    private static void writeWithCsvWriter(List<String> columns, List<Map<String, String>> rows, File output) throws IOException {
+
+        try (CSVWriter writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)), 1000)) {
+
+            writer.writeRow(columns);
+            List<String> row = new ArrayList<>(columns.size());
+            for (Map<String, String> map : rows) {
+
+                row.clear();
+                for (String column : columns) {
+                    row.add(map.get(column));
+                }
+                writer.writeRow(row);
+            }
+        }
+    }
+
+    private static void writeWithCsvWriterGson(List<Map<String, String>> rows, File output) throws IOException {
+
+        new CSVWriterGson().writeAsCSV(rows, output.getAbsolutePath());
+    }
+
+    private static List<String> buildColumns() {
+
+        return Arrays.asList("patientId", "age", "gender", "isPregnant", "weeksPregnant", "dayOfVisit",
+                "chiefComplaints", "prescribedMedications", "dispensedMedications",
+                "bloodPressureSystolic", "bloodPressureDiastolic", "heartRate", "temperature", "weight",
+                "assessment", "treatment");
+    }
+
+    /**
+     * Rows look like real exports, including free text that needs quoting.
+     */
+    private static List<Map<String, String>> buildRows(List<String> columns, int rowCount) {
+
+        Random random = new Random(42);
+        List<Map<String, String>> rows = new ArrayList<>(rowCount);
+        for (int i = 0; i < rowCount; i++) {
+
+            Map<String, String> row = new HashMap<>();
+            row.put("patientId", UUID.randomUUID().toString());
+            row.put("age", Integer.toString(random.nextInt(90)));
+            row.put("gender", random.nextBoolean() ? "Male" : "Female");
+            row.put("isPregnant", "false");
+            row.put("weeksPregnant", "0");
+            row.put("dayOfVisit", "March 2015");
+            row.put("chiefComplaints", "headache; cough");
+            row.put("prescribedMedications", "Ibuprofen 200mg; Amoxicillin 500mg");
+            row.put("dispensedMedications", "Ibuprofen 200mg");
+            for (String column : columns.subList(9, 14)) {
+                row.put(column, Float.toString(random.nextInt(200) + 0.5f));
+            }
+            row.put("assessment", "Patient reports \"sharp\" pain, worse at night");
+            row.put("treatment", "Rest, fluids\nfollow up in 2 weeks");
+            rows.add(row);
+        }
+        return rows;
+    }
+}
@@ -5,6 +5,7 @@ import com.avaje.ebean.Query;
 import femr.data.daos.IRepository;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public class MockRepository<T> implements IRepository<T> {
     public T entityPassedIn;
@@ -20,6 +21,11 @@ public class MockRepository<T> implements IRepository<T> {
         return 0;
     }
 
+    @Override
+    public int count(ExpressionList<? extends T> query) {
+        return 0;
+    }
+
     @Override
     public T create(T entity) {
         createWasCalled = true;
@@ -54,6 +60,11 @@ public class MockRepository<T> implements IRepository<T> {
         return null;
     }
 
+    @Override
+    public void findEach(Query<? extends T> query, Consumer<? super T> consumer) {
+
+    }
+
     @Override
     public T findOne(ExpressionList<? extends T> query) {
         findOneWasCalled = true;
@@ -61,6 +72,13 @@ public class MockRepository<T> implements IRepository<T> {
         return null;
     }
 
+    @Override
+    public T findOne(Class<? extends T> clazz, String property, Object value) {
+        findOneWasCalled = true;
+
+        return null;
+    }
+
     @Override
     public T update(T entity) {
         updateWasCalled = true;
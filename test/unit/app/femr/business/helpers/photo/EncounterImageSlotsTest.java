@@ -0,0 +1,69 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package unit.app.femr.business.helpers.photo;
+
+import femr.business.helpers.photo.EncounterImageSlots;
+import org.junit.Test;
+import play.mvc.Http.MultipartFormData.FilePart;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EncounterImageSlotsTest {
+
+    @Test
+    public void parseSlotReadsTheNumberBetweenTheBrackets() {
+
+        assertEquals(Integer.valueOf(3), EncounterImageSlots.parseSlot("patientPhotos[3]"));
+        assertEquals(Integer.valueOf(12), EncounterImageSlots.parseSlot("patientPhotos[ 12 ]"));
+        assertEquals(Integer.valueOf(0), EncounterImageSlots.parseSlot("[0]"));
+    }
+
+    @Test
+    public void parseSlotIsNullWithoutANumberBetweenBrackets() {
+
+        assertNull(EncounterImageSlots.parseSlot(null));
+        assertNull(EncounterImageSlots.parseSlot("patientPhotos"));
+        assertNull(EncounterImageSlots.parseSlot("patientPhotos[]"));
+        assertNull(EncounterImageSlots.parseSlot("patientPhotos[x]"));
+        assertNull(EncounterImageSlots.parseSlot("patientPhotos]3["));
+        assertNull(EncounterImageSlots.parseSlot("patientPhotos[3"));
+    }
+
+    @Test
+    public void indexKeepsTheFirstImageOfEachSlot() {
+
+        FilePart first = image("patientPhotos[1]");
+        FilePart second = image("patientPhotos[2]");
+        FilePart duplicate = image("patientPhotos[1]");
+        FilePart noSlot = image("patientPhotos");
+
+        Map<Integer, FilePart> imagesBySlot = EncounterImageSlots.index(Arrays.asList(first, noSlot, second, duplicate));
+        assertEquals(2, imagesBySlot.size());
+        assertSame(first, imagesBySlot.get(1));
+        assertSame(second, imagesBySlot.get(2));
+    }
+
+    private static FilePart image(String key) {
+
+        return new FilePart(key, "photo.jpg", "image/jpeg", null);
+    }
+}
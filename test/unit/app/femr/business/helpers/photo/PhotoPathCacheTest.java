@@ -0,0 +1,94 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package unit.app.femr.business.helpers.photo;
+
+import femr.business.helpers.photo.PhotoPathCache;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PhotoPathCacheTest {
+
+    @Test
+    public void patientsWithoutAPhotoAreRemembered() {
+
+        PhotoPathCache cache = new PhotoPathCache(10);
+        assertNull(cache.findPatientPhotoPath(1));
+        assertNull(cache.findPhotoPath(7));
+
+        long generation = cache.getGeneration();
+        cache.putPatientPhotoPath(1, "/blobs/ab/abc.jpg", generation);
+        cache.putPatientPhotoPath(2, PhotoPathCache.NO_PHOTO, generation);
+        cache.putPhotoPath(7, "/blobs/cd/cde", generation);
+
+        assertEquals("/blobs/ab/abc.jpg", cache.findPatientPhotoPath(1));
+        assertEquals(PhotoPathCache.NO_PHOTO, cache.findPatientPhotoPath(2));
+        assertEquals("/blobs/cd/cde", cache.findPhotoPath(7));
+    }
+
+    @Test
+    public void aPathReadBeforeAnUploadIsNotCached() {
+
+        PhotoPathCache cache = new PhotoPathCache(10);
+
+        long generation = cache.getGeneration();
+        cache.invalidatePatient(3);
+        cache.putPatientPhotoPath(1, "/stale.jpg", generation);
+        assertNull(cache.findPatientPhotoPath(1));
+
+        generation = cache.getGeneration();
+        cache.invalidatePhoto(3);
+        cache.putPhotoPath(7, "/stale", generation);
+        assertNull(cache.findPhotoPath(7));
+    }
+
+    @Test
+    public void patientAndPhotoIdsAreInvalidatedSeparately() {
+
+        PhotoPathCache cache = new PhotoPathCache(10);
+        long generation = cache.getGeneration();
+        cache.putPatientPhotoPath(1, "/one.jpg", generation);
+        cache.putPatientPhotoPath(2, "/two.jpg", generation);
+        cache.putPhotoPath(1, "/one", generation);
+
+        cache.invalidatePatient(1);
+        assertNull(cache.findPatientPhotoPath(1));
+        assertEquals("/two.jpg", cache.findPatientPhotoPath(2));
+        // patient and photo ids are kept apart
+        assertEquals("/one", cache.findPhotoPath(1));
+
+        cache.invalidatePhoto(1);
+        assertNull(cache.findPhotoPath(1));
+    }
+
+    @Test
+    public void onlyTheMostRecentlyUsedPathsAreKept() {
+
+        PhotoPathCache cache = new PhotoPathCache(2);
+        long generation = cache.getGeneration();
+        cache.putPhotoPath(1, "/one", generation);
+        cache.putPhotoPath(2, "/two", generation);
+        cache.findPhotoPath(1);
+        cache.putPhotoPath(3, "/three", generation);
+
+        assertEquals("/one", cache.findPhotoPath(1));
+        assertNull(cache.findPhotoPath(2));
+        assertEquals("/three", cache.findPhotoPath(3));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package unit.app.femr.business.helpers.referencedata;
+
+import femr.business.helpers.referencedata.ReferenceDataCache;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReferenceDataCacheTest {
+
+    @Test
+    public void aLoadedListIsServedFromMemory() {
+
+        ReferenceDataCache cache = new ReferenceDataCache();
+        assertNull(cache.find(ReferenceDataCache.CITIES));
+
+        long generation = cache.getGeneration(ReferenceDataCache.CITIES);
+        cache.put(ReferenceDataCache.CITIES, Arrays.asList("Belmopan", "Orange Walk"), generation);
+
+        List<String> cities = cache.find(ReferenceDataCache.CITIES);
+        assertEquals(Arrays.asList("Belmopan", "Orange Walk"), cities);
+        assertNull(cache.find(ReferenceDataCache.DIAGNOSES));
+    }
+
+    @Test
+    public void aListAddedToDuringItsLoadIsLoadedAgain() {
+
+        ReferenceDataCache cache = new ReferenceDataCache();
+        long generation = cache.getGeneration(ReferenceDataCache.CITIES);
+        cache.invalidate(ReferenceDataCache.CITIES);
+        cache.put(ReferenceDataCache.CITIES, Collections.singletonList("Belmopan"), generation);
+
+        assertNull(cache.find(ReferenceDataCache.CITIES));
+        assertNotEquals(generation, cache.getGeneration(ReferenceDataCache.CITIES));
+    }
+
+    @Test
+    public void invalidateAllDropsEveryListTheSeederMayHaveChanged() {
+
+        ReferenceDataCache cache = new ReferenceDataCache();
+        cache.put(ReferenceDataCache.CITIES, Collections.singletonList("Belmopan"), cache.getGeneration(ReferenceDataCache.CITIES));
+        cache.put(ReferenceDataCache.DIAGNOSES, Collections.singletonList("Asthma"), cache.getGeneration(ReferenceDataCache.DIAGNOSES));
+        long diagnosesGeneration = cache.getGeneration(ReferenceDataCache.DIAGNOSES);
+
+        cache.invalidate(ReferenceDataCache.CITIES);
+        assertNull(cache.find(ReferenceDataCache.CITIES));
+        assertEquals(Collections.singletonList("Asthma"), cache.find(ReferenceDataCache.DIAGNOSES));
+        assertEquals(diagnosesGeneration, cache.getGeneration(ReferenceDataCache.DIAGNOSES));
+
+        cache.invalidateAll();
+        assertNull(cache.find(ReferenceDataCache.DIAGNOSES));
+        assertNotEquals(diagnosesGeneration, cache.getGeneration(ReferenceDataCache.DIAGNOSES));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cachedListsCantBeModified() {
+
+        ReferenceDataCache cache = new ReferenceDataCache();
+        cache.put(ReferenceDataCache.CITIES, Arrays.asList("Belmopan"), cache.getGeneration(ReferenceDataCache.CITIES));
+        cache.<String>find(ReferenceDataCache.CITIES).add("Orange Walk");
+    }
+
+    @Test
+    public void statisticsCountHitsMissesAndInvalidations() {
+
+        ReferenceDataCache cache = new ReferenceDataCache();
+        cache.find(ReferenceDataCache.DIAGNOSES);
+        cache.put(ReferenceDataCache.DIAGNOSES, Arrays.asList("Asthma", "Flu"), cache.getGeneration(ReferenceDataCache.DIAGNOSES));
+        cache.find(ReferenceDataCache.DIAGNOSES);
+        cache.find(ReferenceDataCache.DIAGNOSES);
+        cache.invalidate(ReferenceDataCache.CITIES);
+
+        List<ReferenceDataCache.Statistics> statistics = cache.retrieveStatistics();
+        assertEquals(2, statistics.size());
+
+        ReferenceDataCache.Statistics cities = statistics.get(0);
+        assertEquals(ReferenceDataCache.CITIES, cities.getName());
+        assertNull(cities.getSize());
+        assertNull(cities.getLoaded());
+        assertEquals(1, cities.getInvalidations());
+
+        ReferenceDataCache.Statistics diagnoses = statistics.get(1);
+        assertEquals(ReferenceDataCache.DIAGNOSES, diagnoses.getName());
+        assertEquals(Integer.valueOf(2), diagnoses.getSize());
+        assertNotNull(diagnoses.getLoaded());
+        assertEquals(2, diagnoses.getHits());
+        assertEquals(1, diagnoses.getMisses());
+        assertEquals(0, diagnoses.getInvalidations());
+    }
+}
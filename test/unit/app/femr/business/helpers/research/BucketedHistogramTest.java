@@ -0,0 +1,145 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package unit.app.femr.business.helpers.research;
+
+import femr.business.helpers.research.BucketedHistogram;
+import femr.common.models.ResearchResultItem;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BucketedHistogramTest {
+
+    @Test
+    public void valuesAreAddedToTheBucketTheyFallIn() {
+
+        BucketedHistogram histogram = new BucketedHistogram(10, Collections.<String>emptyList());
+        histogram.add(0, 1, null);
+        histogram.add(9.9f, 2, null);
+        histogram.add(10, 4, null);
+        histogram.add(-0.5f, 8, null);
+
+        List<ResearchResultItem> items = histogram.toResultItems();
+        assertEquals(Arrays.asList("-10 - -1", "0 - 9", "10 - 19"), names(items));
+        assertEquals(Arrays.asList(8f, 3f, 4f), values(items));
+        assertNull(items.get(0).getSecondaryData());
+    }
+
+    @Test
+    public void valuesAddedOutOfOrderEndUpInOrder() {
+
+        BucketedHistogram histogram = new BucketedHistogram(1, Collections.<String>emptyList());
+        histogram.add(5, 1, null);
+        histogram.add(1, 1, null);
+        histogram.add(3, 1, null);
+        histogram.add(1, 1, null);
+        // more buckets than the histogram starts with
+        for (int value = 40; value > 20; value--)
+            histogram.add(value, 1, null);
+
+        assertEquals(23, histogram.getBucketCount());
+        List<ResearchResultItem> items = histogram.toResultItems();
+        assertEquals("1 - 1", items.get(0).getPrimaryName());
+        assertEquals(2f, items.get(0).getPrimaryValue(), 0);
+        assertEquals("40 - 40", items.get(items.size() - 1).getPrimaryName());
+    }
+
+    @Test
+    public void gapsAreFilledWithEmptyBuckets() {
+
+        BucketedHistogram histogram = new BucketedHistogram(5, Collections.<String>emptyList());
+        histogram.add(0, 1, null);
+        histogram.add(17, 1, null);
+
+        assertEquals(2, histogram.getBucketCount());
+        List<ResearchResultItem> items = histogram.toResultItems();
+        assertEquals(Arrays.asList("0 - 4", "5 - 9", "10 - 14", "15 - 19"), names(items));
+        assertEquals(Arrays.asList(1f, 0f, 0f, 1f), values(items));
+    }
+
+    @Test
+    public void wideGapsAreNotFilled() {
+
+        BucketedHistogram histogram = new BucketedHistogram(1, Collections.<String>emptyList());
+        histogram.add(0, 1, null);
+        histogram.add(BucketedHistogram.MAX_FILLED_BUCKETS, 1, null);
+
+        assertEquals(Arrays.asList("0 - 0", "1000 - 1000"), names(histogram.toResultItems()));
+    }
+
+    @Test
+    public void secondaryCountsAreKeptPerBucketAndCategory() {
+
+        BucketedHistogram histogram = new BucketedHistogram(10, Arrays.asList("male", "female"));
+        histogram.add(12, 3, secondary("male", 1f, "female", 2f));
+        histogram.add(2, 1, secondary("female", 1f, "unknown", 5f));
+        histogram.add(15, 1, secondary("male", 1f));
+        histogram.add(30, 1, null);
+
+        List<ResearchResultItem> items = histogram.toResultItems();
+        assertEquals(Arrays.asList("0 - 9", "10 - 19", "20 - 29", "30 - 39"), names(items));
+        assertEquals(secondary("male", 0f, "female", 1f), items.get(0).getSecondaryData());
+        assertEquals(secondary("male", 2f, "female", 2f), items.get(1).getSecondaryData());
+        assertEquals(secondary("male", 0f, "female", 0f), items.get(2).getSecondaryData());
+        assertEquals(secondary("male", 0f, "female", 0f), items.get(3).getSecondaryData());
+    }
+
+    @Test
+    public void anEmptyHistogramHasNoItems() {
+
+        assertTrue(new BucketedHistogram(1, Collections.<String>emptyList()).toResultItems().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bucketWidthMustBePositive() {
+
+        new BucketedHistogram(0, Collections.<String>emptyList());
+    }
+
+    private static Map<String, Float> secondary(Object... keysAndValues) {
+
+        Map<String, Float> secondary = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2)
+            secondary.put((String) keysAndValues[i], (Float) keysAndValues[i + 1]);
+        return secondary;
+    }
+
+    private static List<String> names(List<ResearchResultItem> items) {
+
+        List<String> names = new ArrayList<>();
+        for (ResearchResultItem item : items)
+            names.add(item.getPrimaryName());
+        return names;
+    }
+
+    private static List<Float> values(List<ResearchResultItem> items) {
+
+        List<Float> values = new ArrayList<>();
+        for (ResearchResultItem item : items)
+            values.add(item.getPrimaryValue());
+        return values;
+    }
+}
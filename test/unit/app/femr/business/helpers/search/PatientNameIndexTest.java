@@ -0,0 +1,200 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package unit.app.femr.business.helpers.search;
+
+import femr.business.helpers.search.PatientNameIndex;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PatientNameIndexTest {
+
+    @Test
+    public void searchFindsEveryWordAsAPrefixAndRanksExactWordsFirst() {
+
+        PatientNameIndex index = new PatientNameIndex();
+        index.add(patient(1, "Maria", "Lopez"));
+        index.add(patient(2, "Mariana", "Lopez"));
+        index.add(patient(3, "Marco", "Diaz"));
+
+        assertEquals(Arrays.asList(2, 1), ids(index.search("lop mari", null, 10)));
+        // an exact word beats a newer patient that only matches by prefix
+        assertEquals(Arrays.asList(1, 2), ids(index.search("maria", null, 10)));
+        assertEquals(Arrays.asList(3, 2, 1), ids(index.search("mar", null, 10)));
+        assertEquals(Arrays.asList(3, 2), ids(index.search("mar", null, 2)));
+        assertEquals(Collections.singletonList(2), ids(index.search("2", null, 10)));
+    }
+
+    @Test
+    public void searchIgnoresCaseAndAccents() {
+
+        PatientNameIndex index = new PatientNameIndex();
+        index.add(patient(1, "Jos\u00e9", "P\u00e9rez"));
+
+        assertEquals(Collections.singletonList(1), ids(index.search("JOSE perez", null, 10)));
+        assertEquals(Collections.singletonList(1), ids(index.search("p\u00c9r", null, 10)));
+    }
+
+    @Test
+    public void searchOnlyIncludesPatientsSeenInTheCountry() {
+
+        PatientNameIndex index = new PatientNameIndex();
+        index.add(new PatientNameIndex.Entry(1, "Ana", "Cruz", null, false, Collections.singletonList("Belize")));
+        index.add(patient(2, "Ana", "Cruz"));
+        index.addCountry(2, "Haiti");
+
+        assertEquals(Collections.singletonList(1), ids(index.search("ana", "belize", 10)));
+        assertEquals(Collections.singletonList(2), ids(index.search("ana", "Haiti", 10)));
+        assertEquals(Collections.singletonList(1), index.searchFuzzy("anna", "Belize", 0, 10));
+    }
+
+    @Test
+    public void removedAndRenamedPatientsAreNotFound() {
+
+        PatientNameIndex index = new PatientNameIndex();
+        index.add(patient(1, "Carlos", "Mendez"));
+        index.add(patient(2, "Carla", "Mendez"));
+
+        index.remove(1);
+        assertEquals(Collections.singletonList(2), ids(index.search("mendez", null, 10)));
+        assertEquals(Collections.singletonList(2), index.searchFuzzy("mendes", null, 0, 10));
+        assertTrue(index.search("carlos", null, 10).isEmpty());
+        assertTrue(index.searchFuzzy("carlos", null, 0, 10).contains(2));
+        assertFalse(index.searchFuzzy("carlos", null, 0, 10).contains(1));
+
+        index.add(patient(2, "Carla", "Ramos"));
+        assertTrue(index.search("mendez", null, 10).isEmpty());
+        assertEquals(Collections.singletonList(2), ids(index.search("ramos", null, 10)));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void searchFuzzyFindsMisspelledAndSoundAlikeNames() {
+
+        PatientNameIndex index = new PatientNameIndex();
+        index.add(patient(1, "Mohammed", "Khan"));
+        index.add(patient(2, "Catherine", "Smith"));
+        index.add(patient(3, "Peter", "Jones"));
+
+        // one letter off
+        assertEquals(Collections.singletonList(1), index.searchFuzzy("mohamed kahn", null, 0, 10));
+        // spelled differently, sounds the same
+        assertEquals(Collections.singletonList(2), index.searchFuzzy("kathryn smyth", null, 0, 10));
+        // every query word has to match
+        assertTrue(index.searchFuzzy("peter khan", null, 0, 10).isEmpty());
+        // numbers only match ids
+        assertEquals(Collections.singletonList(3), index.searchFuzzy("3", null, 0, 10));
+        assertTrue(index.searchFuzzy("4", null, 0, 10).isEmpty());
+    }
+
+    @Test
+    public void searchFuzzyRanksCloserMatchesFirstAndPages() {
+
+        PatientNameIndex index = new PatientNameIndex();
+        index.add(patient(1, "Jon", "Doe"));
+        index.add(patient(2, "John", "Doe"));
+        index.add(patient(3, "Joan", "Doe"));
+
+        List<Integer> ranked = index.searchFuzzy("john doe", null, 0, 10);
+        assertEquals(3, ranked.size());
+        assertEquals(Integer.valueOf(2), ranked.get(0));
+
+        List<Integer> paged = new ArrayList<>(index.searchFuzzy("john doe", null, 0, 2));
+        paged.addAll(index.searchFuzzy("john doe", null, 2, 2));
+        assertEquals(ranked, paged);
+    }
+
+    @Test
+    public void failedLoadClearsTheIndexForTheNextLoad() {
+
+        PatientNameIndex index = new PatientNameIndex();
+        assertTrue(index.startLoading());
+        assertFalse(index.startLoading());
+        index.load(patient(1, "Rosa", "Vega"));
+        index.finishLoading(false);
+
+        assertFalse(index.isLoaded());
+        assertEquals(0, index.size());
+        assertTrue(index.searchFuzzy("rosa vega", null, 0, 10).isEmpty());
+        assertTrue(index.searchFuzzy("roza", null, 0, 10).isEmpty());
+
+        assertTrue(index.startLoading());
+        index.load(patient(2, "Rosa", "Vegas"));
+        index.finishLoading(true);
+        assertTrue(index.isLoaded());
+        assertEquals(Collections.singletonList(2), index.searchFuzzy("roza vega", null, 0, 10));
+    }
+
+    @Test
+    public void patientsChangedWhileLoadingKeepTheirChanges() {
+
+        PatientNameIndex index = new PatientNameIndex();
+        assertTrue(index.startLoading());
+        index.add(patient(1, "Luis", "Soto"));
+        index.remove(2);
+        index.load(patient(1, "Luis", "Old"));
+        index.load(patient(2, "Deleted", "Patient"));
+        index.finishLoading(true);
+
+        assertEquals(Collections.singletonList(1), ids(index.search("soto", null, 10)));
+        assertTrue(index.search("old", null, 10).isEmpty());
+        assertTrue(index.search("deleted", null, 10).isEmpty());
+    }
+
+    @Test
+    public void generationChangesWithEveryChange() {
+
+        PatientNameIndex index = new PatientNameIndex();
+
+        assertGenerationChanges(index, () -> index.add(patient(1, "Elena", "Ruiz")));
+        assertGenerationChanges(index, () -> index.addCountry(1, "Belize"));
+        assertGenerationChanges(index, () -> index.setHasPhoto(1, true));
+        assertGenerationChanges(index, index::invalidateLists);
+        assertGenerationChanges(index, () -> index.remove(1));
+        // even without the patient in the index, a list built from the database may include them
+        assertGenerationChanges(index, () -> index.addCountry(2, "Belize"));
+    }
+
+    private static PatientNameIndex.Entry patient(int id, String firstName, String lastName) {
+
+        return new PatientNameIndex.Entry(id, firstName, lastName, null, false, Collections.<String>emptyList());
+    }
+
+    private static void assertGenerationChanges(PatientNameIndex index, Runnable change) {
+
+        long generation = index.getGeneration();
+        change.run();
+        assertNotEquals(generation, index.getGeneration());
+    }
+
+    private static List<Integer> ids(List<PatientNameIndex.Entry> entries) {
+
+        List<Integer> ids = new ArrayList<>();
+        for (PatientNameIndex.Entry entry : entries) {
+
+            ids.add(entry.getId());
+        }
+        return ids;
+    }
+}
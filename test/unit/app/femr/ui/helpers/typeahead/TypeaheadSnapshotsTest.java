@@ -0,0 +1,219 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package unit.app.femr.ui.helpers.typeahead;
+
+import femr.ui.helpers.typeahead.TypeaheadSnapshots;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TypeaheadSnapshotsTest {
+
+    @Test
+    public void stampedListsAreOnlyRebuiltWhenTheStampChanges() {
+
+        TypeaheadSnapshots snapshots = new TypeaheadSnapshots(0, 10);
+        int[] loads = { 0 };
+        TypeaheadSnapshots.Source source = () -> {
+            loads[0]++;
+            return records("a", "b");
+        };
+
+        snapshots.retrieve("list", null, 1, source);
+        snapshots.retrieve("list", null, 1, source);
+        assertEquals(1, loads[0]);
+
+        snapshots.retrieve("list", null, 2, source);
+        assertEquals(2, loads[0]);
+    }
+
+    @Test
+    public void unstampedListsAreRebuiltOnceTheRefreshIntervalPassed() {
+
+        int[] loads = { 0 };
+        TypeaheadSnapshots.Source source = () -> {
+            loads[0]++;
+            return records("a");
+        };
+
+        TypeaheadSnapshots everyTime = new TypeaheadSnapshots(0, 10);
+        everyTime.retrieve("list", null, source);
+        everyTime.retrieve("list", null, source);
+        assertEquals(2, loads[0]);
+
+        TypeaheadSnapshots rarely = new TypeaheadSnapshots(60000, 10);
+        rarely.retrieve("list", null, source);
+        rarely.retrieve("list", null, source);
+        assertEquals(3, loads[0]);
+    }
+
+    @Test
+    public void aListThatCantBeBuiltIsNull() {
+
+        TypeaheadSnapshots snapshots = new TypeaheadSnapshots(0, 10);
+        assertNull(snapshots.retrieve("list", null, 1, () -> null));
+
+        TypeaheadSnapshots.Snapshot snapshot = snapshots.retrieve("list", null, 2, () -> records("a"));
+        // a failed rebuild keeps the last snapshot
+        assertSame(snapshot, snapshots.retrieve("list", null, 3, () -> null));
+        assertEquals("[\"a\"]", payload(snapshot));
+    }
+
+    @Test
+    public void payloadAndETagOnlyChangeWithTheContents() {
+
+        TypeaheadSnapshots snapshots = new TypeaheadSnapshots(0, 10);
+        TypeaheadSnapshots.Snapshot snapshot = snapshots.retrieve("list", "medication", 1, () -> records("a", "b"));
+        String eTag = snapshot.getETag();
+        assertEquals("{\"medication\":[\"a\",\"b\"]}", payload(snapshot));
+
+        snapshots.retrieve("list", "medication", 2, () -> records("a", "b"));
+        assertEquals(eTag, snapshot.getETag());
+
+        snapshots.retrieve("list", "medication", 3, () -> records("b", "a"));
+        assertNotEquals(eTag, snapshot.getETag());
+        assertEquals("{\"medication\":[\"b\",\"a\"]}", payload(snapshot));
+    }
+
+    @Test
+    public void deltaHoldsWhatChangedAndWhatWasRemoved() {
+
+        TypeaheadSnapshots snapshots = new TypeaheadSnapshots(0, 10);
+        TypeaheadSnapshots.Snapshot snapshot = snapshots.retrieve("list", null, 1, () -> records("a", "b", "c"));
+        long version = snapshot.getVersion();
+
+        snapshots.retrieve("list", null, 2, () -> Arrays.asList(
+                new TypeaheadSnapshots.Record("a", "\"a2\""),
+                new TypeaheadSnapshots.Record("c", "\"c\""),
+                new TypeaheadSnapshots.Record("d", "\"d\"")));
+
+        TypeaheadSnapshots.Delta delta = snapshot.retrieveDelta(version, 10);
+        assertFalse(delta.isReset());
+        assertFalse(delta.isMore());
+        assertEquals(Arrays.asList("\"a2\"", "\"d\""), delta.getRecords());
+        assertEquals(Collections.singletonList("b"), delta.getRemoved());
+        assertEquals(snapshot.getVersion(), delta.getVersion());
+
+        TypeaheadSnapshots.Delta upToDate = snapshot.retrieveDelta(delta.getVersion(), 10);
+        assertTrue(upToDate.getRecords().isEmpty());
+        assertTrue(upToDate.getRemoved().isEmpty());
+        assertEquals(delta.getVersion(), upToDate.getVersion());
+    }
+
+    @Test
+    public void unknownVersionsGetEveryRecordAsAReset() {
+
+        TypeaheadSnapshots snapshots = new TypeaheadSnapshots(0, 10);
+        TypeaheadSnapshots.Snapshot snapshot = snapshots.retrieve("list", null, 1, () -> records("a", "b"));
+
+        for (long since : new long[]{ 0, -1, snapshot.getVersion() + 1 }) {
+
+            TypeaheadSnapshots.Delta delta = snapshot.retrieveDelta(since, 10);
+            assertTrue(delta.isReset());
+            assertEquals(Arrays.asList("\"a\"", "\"b\""), delta.getRecords());
+            assertTrue(delta.getRemoved().isEmpty());
+        }
+    }
+
+    @Test
+    public void deltasArePagedOldestChangeFirst() {
+
+        TypeaheadSnapshots snapshots = new TypeaheadSnapshots(0, 10);
+        TypeaheadSnapshots.Snapshot snapshot = snapshots.retrieve("list", null, 1, () -> records("a", "b", "c"));
+        long version = snapshot.getVersion();
+        snapshots.retrieve("list", null, 2, () -> records("c", "b", "a", "d", "e"));
+
+        TypeaheadSnapshots.Delta first = snapshot.retrieveDelta(version, 1);
+        assertTrue(first.isMore());
+        assertEquals(Collections.singletonList("\"d\""), first.getRecords());
+
+        TypeaheadSnapshots.Delta second = snapshot.retrieveDelta(first.getVersion(), 1);
+        assertFalse(second.isMore());
+        assertEquals(Collections.singletonList("\"e\""), second.getRecords());
+        assertEquals(snapshot.getVersion(), second.getVersion());
+    }
+
+    @Test
+    public void clientsOlderThanTheOldestTombstoneStartOver() {
+
+        TypeaheadSnapshots snapshots = new TypeaheadSnapshots(0, 1);
+        TypeaheadSnapshots.Snapshot snapshot = snapshots.retrieve("list", null, 1, () -> records("a", "b", "c"));
+        long version = snapshot.getVersion();
+
+        snapshots.retrieve("list", null, 2, () -> records("a", "b"));
+        snapshots.retrieve("list", null, 3, () -> records("a"));
+
+        // the tombstone of c was dropped to keep only one, so the client can't learn that c is gone
+        TypeaheadSnapshots.Delta delta = snapshot.retrieveDelta(version, 10);
+        assertTrue(delta.isReset());
+        assertEquals(Collections.singletonList("\"a\""), delta.getRecords());
+    }
+
+    @Test
+    public void aResetCutOffAtTheLimitCanBeContinued() {
+
+        TypeaheadSnapshots snapshots = new TypeaheadSnapshots(0, 1);
+        TypeaheadSnapshots.Snapshot snapshot = snapshots.retrieve("list", null, 1, () -> records("a", "b", "c", "x", "y"));
+        snapshots.retrieve("list", null, 2, () -> records("a", "b", "c", "x"));
+        // drops the tombstone of y, so a, b and c are older than the oldest tombstone kept
+        snapshots.retrieve("list", null, 3, () -> records("a", "b", "c"));
+        snapshots.retrieve("list", null, 4, () -> records("a", "b", "c", "d", "e", "f"));
+
+        Set<String> client = new LinkedHashSet<>();
+        long since = 0;
+        int requests = 0;
+        TypeaheadSnapshots.Delta delta;
+        do {
+
+            delta = snapshot.retrieveDelta(since, 1);
+            if (delta.isReset())
+                client.clear();
+            client.addAll(delta.getRecords());
+            client.removeAll(delta.getRemoved());
+            since = delta.getVersion();
+            requests++;
+        } while (delta.isMore() && requests < 10);
+
+        assertFalse(delta.isMore());
+        assertEquals(new LinkedHashSet<>(Arrays.asList("\"a\"", "\"b\"", "\"c\"", "\"d\"", "\"e\"", "\"f\"")), client);
+        // the first page reaches the oldest tombstone, the rest are one record each
+        assertEquals(3, requests);
+    }
+
+    private static List<TypeaheadSnapshots.Record> records(String... keys) {
+
+        List<TypeaheadSnapshots.Record> records = new ArrayList<>();
+        for (String key : keys)
+            records.add(new TypeaheadSnapshots.Record(key, "\"" + key + "\""));
+        return records;
+    }
+
+    private static String payload(TypeaheadSnapshots.Snapshot snapshot) {
+
+        return new String(snapshot.getPayload(), StandardCharsets.UTF_8);
+    }
+}
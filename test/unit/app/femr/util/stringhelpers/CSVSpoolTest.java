@@ -0,0 +1,85 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package unit.app.femr.util.stringhelpers;
+
+import femr.util.stringhelpers.CSVSpool;
+import femr.util.stringhelpers.CSVWriter;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CSVSpoolTest {
+
+    @Test
+    public void writesColumnsInAlphabeticalOrderWithEmptyCellsForMissingValues() throws Exception {
+
+        StringWriter output = new StringWriter();
+        try (CSVSpool spool = new CSVSpool(null)) {
+
+            spool.addRow(row("patientId", "1", "chiefComplaints1", "cough"));
+            spool.addRow(row("patientId", "2", "age", "40", "weeksPregnant", null));
+
+            spool.writeTo(new CSVWriter(output));
+            assertEquals(2, spool.getRowCount());
+        }
+
+        assertEquals("age,chiefComplaints1,patientId\r\n" +
+                ",cough,1\r\n" +
+                "40,,2\r\n", output.toString());
+    }
+
+    @Test
+    public void keepsValuesThatNeedQuoting() throws Exception {
+
+        StringWriter output = new StringWriter();
+        try (CSVSpool spool = new CSVSpool(null)) {
+
+            spool.addRow(row("note", "fever, \"high\"\nsince monday \u00e9"));
+            spool.writeTo(new CSVWriter(output));
+        }
+
+        assertEquals("note\r\n\"fever, \"\"high\"\"\nsince monday \u00e9\"\r\n", output.toString());
+    }
+
+    @Test
+    public void writesOnlyTheHeaderRowWhenThereAreNoRows() throws Exception {
+
+        StringWriter output = new StringWriter();
+        try (CSVSpool spool = new CSVSpool(null)) {
+
+            spool.writeTo(new CSVWriter(output));
+        }
+
+        assertEquals("\r\n", output.toString());
+    }
+
+    private static Map<String, String> row(String... namesAndValues) {
+
+        Map<String, String> row = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+
+            row.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return row;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+     fEMR - fast Electronic Medical Records
+     Copyright (C) 2014  Team fEMR
+
+     fEMR is free software: you can redistribute it and/or modify
+     it under the terms of the GNU General Public License as published by
+     the Free Software Foundation, either version 3 of the License, or
+     (at your option) any later version.
+
+     fEMR is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with fEMR.  If not, see <http://www.gnu.org/licenses/>. If
+     you have any questions, contact <info@teamfemr.org>.
+*/
+package unit.app.femr.util.stringhelpers;
+
+import femr.util.stringhelpers.CSVWriter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class CSVWriterTest {
+
+    @Test
+    public void plainFieldsAreWrittenAsTheyAre() throws Exception {
+
+        StringWriter output = new StringWriter();
+        CSVWriter writer = new CSVWriter(output);
+        writer.writeRow("patientId", "age");
+        writer.writeRow(Arrays.asList("1", "40 years"));
+
+        assertEquals("patientId,age\r\n1,40 years\r\n", output.toString());
+        assertEquals(2, writer.getRowsWritten());
+    }
+
+    @Test
+    public void fieldsWithCommasQuotesOrLineBreaksAreQuoted() throws Exception {
+
+        StringWriter output = new StringWriter();
+        CSVWriter writer = new CSVWriter(output);
+        writer.writeRow("a,b", "say \"hi\"", "two\nlines", "cr\rlf", "'single'");
+
+        assertEquals("\"a,b\",\"say \"\"hi\"\"\",\"two\nlines\",\"cr\rlf\",'single'\r\n", output.toString());
+    }
+
+    @Test
+    public void nullAndEmptyFieldsAreEmptyCells() throws Exception {
+
+        StringWriter output = new StringWriter();
+        CSVWriter writer = new CSVWriter(output);
+        writer.writeRow(null, "", "x", null);
+        writer.writeRow(Collections.<String>emptyList());
+
+        assertEquals(",,x,\r\n\r\n", output.toString());
+    }
+
+    @Test
+    public void flushesEveryFlushIntervalRows() throws Exception {
+
+        int[] flushes = { 0 };
+        Writer output = new StringWriter() {
+
+            @Override
+            public void flush() {
+
+                flushes[0]++;
+            }
+        };
+
+        CSVWriter writer = new CSVWriter(output, 2);
+        for (int i = 0; i < 5; i++)
+            writer.writeRow(String.valueOf(i));
+        assertEquals(2, flushes[0]);
+
+        CSVWriter unflushed = new CSVWriter(output);
+        for (int i = 0; i < 5; i++)
+            unflushed.writeRow(String.valueOf(i));
+        assertEquals(2, flushes[0]);
+    }
+
+    @Test
+    public void closeClosesTheWriter() throws Exception {
+
+        boolean[] closed = { false };
+        Writer output = new StringWriter() {
+
+            @Override
+            public void close() throws IOException {
+
+                closed[0] = true;
+            }
+        };
+
+        new CSVWriter(output).close();
+        assertTrue(closed[0]);
+    }
+}
@@ -51,6 +51,7 @@ public class TestDataLayerModule extends AbstractModule {
         bind(IMissionTrip.class).toProvider(MissionTripProvider.class);
         bind(IPatient.class).toProvider(PatientProvider.class);
         bind(IPatientAgeClassification.class).toProvider(PatientAgeClassificationProvider.class);
+        bind(IPatientCountry.class).toProvider(PatientCountryProvider.class);
         bind(IPatientEncounter.class).toProvider(PatientEncounterProvider.class);
         bind(IPatientEncounterPhoto.class).toProvider(PatientEncounterPhotoProvider.class);
         bind(IPatientEncounterTabField.class).toProvider(PatientEncounterTabFieldProvider.class);
@@ -85,6 +86,7 @@ public class TestDataLayerModule extends AbstractModule {
         bind(new TypeLiteral<IRepository<IMissionTrip>>() {}).to(new TypeLiteral<MockRepository<IMissionTrip>>() {});
         bind(new TypeLiteral<IRepository<IPatient>>() {}).to(new TypeLiteral<MockRepository<IPatient>>() {});
         bind(new TypeLiteral<IRepository<IPatientAgeClassification>>() {}).to(new TypeLiteral<MockRepository<IPatientAgeClassification>>() {});
+        bind(new TypeLiteral<IRepository<IPatientCountry>>() {}).to(new TypeLiteral<MockRepository<IPatientCountry>>() {});
         bind(new TypeLiteral<IRepository<IPatientEncounter>>() {}).to(new TypeLiteral<MockRepository<IPatientEncounter>>() {});
         bind(new TypeLiteral<IRepository<IPatientEncounterPhoto>>() {}).to(new TypeLiteral<MockRepository<IPatientEncounterPhoto>>() {});
         bind(new TypeLiteral<IRepository<IPatientEncounterTabField>>(){}).to(new TypeLiteral<MockRepository<IPatientEncounterTabField>>(){});